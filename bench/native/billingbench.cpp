@@ -0,0 +1,268 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+// Host benchmark for the native half of tzbilling.  Drives the
+// exported Java_com_turbulenz_turbulenz_payment_* entry points
+// through a fake JNIEnv and reports the cost per callback and the
+// number of heap allocations per purchase.
+//
+//   make -C bench/native run
+
+#include "googleplaybilling.h"
+#include "fakejni.h"
+
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <new>
+
+using namespace turbulenz;
+
+// -- Allocation counting ---------------------------------------------
+
+static size_t sAllocations = 0;
+
+void *
+operator new(size_t size)
+{
+    ++sAllocations;
+    void *p = malloc(size);
+    if (0 == p)
+    {
+        throw std::bad_alloc();
+    }
+    return p;
+}
+
+void
+operator delete(void *p) noexcept
+{
+    free(p);
+}
+
+void
+operator delete(void *p, size_t) noexcept
+{
+    free(p);
+}
+
+// -- Entry points (defined in googleplaybilling.cpp) -----------------
+
+extern "C" void
+Java_com_turbulenz_turbulenz_payment_nativePurchaseQueryResponse
+(JNIEnv *env, jobject thiz, jlong context, jstring sku, jstring details,
+ jstring token, jstring devPayload, jstring sig);
+
+extern "C" void
+Java_com_turbulenz_turbulenz_payment_nativePurchaseListQueryResponse
+(JNIEnv *env, jobject thiz, jlong context, jobjectArray skus,
+ jobjectArray details, jobjectArray tokens, jobjectArray devPayloads,
+ jobjectArray sigs, jboolean last);
+
+extern "C" void
+Java_com_turbulenz_turbulenz_payment_nativeProductQueryResponse
+(JNIEnv *env, jobject thiz, jlong context, jstring sku, jstring title,
+ jstring description, jstring price);
+
+// -- Test data -------------------------------------------------------
+
+struct PurchaseData
+{
+    std::vector<jstring>   skus;
+    std::vector<jstring>   details;
+    std::vector<jstring>   tokens;
+    std::vector<jstring>   devPayloads;
+    std::vector<jstring>   sigs;
+
+    jobjectArray           skuArray;
+    jobjectArray           detailsArray;
+    jobjectArray           tokenArray;
+    jobjectArray           devPayloadArray;
+    jobjectArray           sigArray;
+};
+
+static jobjectArray
+MakeArray(JNIEnv *env, const std::vector<jstring> &strings)
+{
+    jobjectArray a = env->NewObjectArray((jsize )strings.size(), 0, 0);
+    for (size_t i = 0 ; i < strings.size() ; ++i)
+    {
+        env->SetObjectArrayElement(a, (jsize )i, strings[i]);
+    }
+    return a;
+}
+
+// Roughly the sizes seen from Play: ~300 byte JSON, ~100 byte token,
+// 344 byte base64 signature.
+static void
+MakePurchaseData(JNIEnv *env, size_t count, PurchaseData &out)
+{
+    for (size_t i = 0 ; i < count ; ++i)
+    {
+        char sku[48];
+        snprintf(sku, sizeof(sku), "com.example.item.%zu", i);
+        const std::string token = std::string(96, 't') + sku;
+        const std::string json =
+            std::string("{\"orderId\":\"GPA.0000-0000-0000-00000\",") +
+            "\"packageName\":\"com.example.game\",\"productId\":\"" + sku +
+            "\",\"purchaseTime\":1700000000000,\"purchaseState\":0," +
+            "\"purchaseToken\":\"" + token + "\",\"quantity\":1," +
+            "\"acknowledged\":true}";
+
+        out.skus.push_back(fakejni::NewString(sku));
+        out.details.push_back(fakejni::NewString(json));
+        out.tokens.push_back(fakejni::NewString(token));
+        out.devPayloads.push_back(0);
+        out.sigs.push_back(fakejni::NewString(std::string(344, 's')));
+    }
+
+    out.skuArray = MakeArray(env, out.skus);
+    out.detailsArray = MakeArray(env, out.details);
+    out.tokenArray = MakeArray(env, out.tokens);
+    out.devPayloadArray = MakeArray(env, out.devPayloads);
+    out.sigArray = MakeArray(env, out.sigs);
+}
+
+// -- Callbacks -------------------------------------------------------
+
+static size_t sSink = 0;
+
+static void
+OnPurchases(void *ctx, const GooglePlayBilling::PurchaseList &purchases)
+{
+    sSink += purchases.size();
+}
+
+static void
+OnPurchaseViews(void *ctx, const GooglePlayBilling::PurchaseView *purchases,
+                size_t count, bool last)
+{
+    sSink += count;
+}
+
+static void
+OnProduct(void *ctx, const GooglePlayBilling::Product &product)
+{
+    sSink += product.price.size();
+}
+
+// -- Harness ---------------------------------------------------------
+
+typedef std::chrono::steady_clock Clock;
+
+struct Result
+{
+    double        nsPerCallback;
+    double        nsPerPurchase;
+    double        allocsPerPurchase;
+};
+
+template <typename F>
+static Result
+Measure(size_t purchases, size_t callbacks, F f)
+{
+    // Warm up (also sizes any reused buffers)
+    const size_t iterations =
+        (purchases >= 100000)?(1):(size_t )(200000 / (purchases + 1)) + 10;
+    for (size_t i = 0 ; i < 3 ; ++i)
+    {
+        f();
+    }
+
+    const size_t allocsBefore = sAllocations;
+    const Clock::time_point start = Clock::now();
+    for (size_t i = 0 ; i < iterations ; ++i)
+    {
+        f();
+    }
+    const double ns = (double )std::chrono::duration_cast
+        <std::chrono::nanoseconds>(Clock::now() - start).count();
+    const size_t allocs = sAllocations - allocsBefore;
+
+    Result r;
+    r.nsPerCallback = ns / (double )(iterations * callbacks);
+    r.nsPerPurchase = ns / (double )(iterations * (purchases ? purchases : 1));
+    r.allocsPerPurchase =
+        (double )allocs / (double )(iterations * (purchases ? purchases : 1));
+    return r;
+}
+
+static void
+Report(const char *name, size_t count, const Result &r)
+{
+    printf("%-28s %8zu %14.1f %14.1f %14.2f\n", name, count,
+           r.nsPerCallback, r.nsPerPurchase, r.allocsPerPurchase);
+}
+
+int
+main(int argc, char **argv)
+{
+    JNIEnv *env = fakejni::GetEnv();
+    GooglePlayBilling billing(env);
+
+    printf("%-28s %8s %14s %14s %14s\n", "benchmark", "items",
+           "ns/callback", "ns/item", "allocs/item");
+
+    static const size_t kSizes[] = { 1, 10, 100, 1000, 10000 };
+    for (size_t s = 0 ; s < sizeof(kSizes) / sizeof(kSizes[0]) ; ++s)
+    {
+        const size_t count = kSizes[s];
+        PurchaseData data;
+        MakePurchaseData(env, count, data);
+
+        jstring empty = fakejni::NewString("");
+
+        // One nativePurchaseQueryResponse per purchase + terminator
+        Report("purchases/per-entry", count, Measure(count, count + 1, [&]() {
+            billing.QueryPurchases(0, OnPurchases);
+            const jlong ctx = fakejni::LastCallContext();
+            for (size_t i = 0 ; i < count ; ++i)
+            {
+                Java_com_turbulenz_turbulenz_payment_nativePurchaseQueryResponse
+                    (env, 0, ctx, data.skus[i], data.details[i],
+                     data.tokens[i], data.devPayloads[i], data.sigs[i]);
+            }
+            Java_com_turbulenz_turbulenz_payment_nativePurchaseQueryResponse
+                (env, 0, ctx, empty, 0, 0, 0, 0);
+        }));
+
+        // Whole list in one nativePurchaseListQueryResponse
+        Report("purchases/list", count, Measure(count, 1, [&]() {
+            billing.QueryPurchases(0, OnPurchases);
+            Java_com_turbulenz_turbulenz_payment_nativePurchaseListQueryResponse
+                (env, 0, fakejni::LastCallContext(), data.skuArray,
+                 data.detailsArray, data.tokenArray, data.devPayloadArray,
+                 data.sigArray, JNI_TRUE);
+        }));
+
+        // As above, delivered as views
+        Report("purchases/list-views", count, Measure(count, 1, [&]() {
+            billing.QueryPurchaseViews(0, OnPurchaseViews);
+            Java_com_turbulenz_turbulenz_payment_nativePurchaseListQueryResponse
+                (env, 0, fakejni::LastCallContext(), data.skuArray,
+                 data.detailsArray, data.tokenArray, data.devPayloadArray,
+                 data.sigArray, JNI_TRUE);
+        }));
+    }
+
+    // Single product query round trip (context allocation + callback)
+    {
+        jstring sku = fakejni::NewString("com.example.item.0");
+        jstring title = fakejni::NewString("Bag of gold");
+        jstring description = fakejni::NewString("A small bag of gold coins");
+        jstring price = fakejni::NewString("$0.99");
+        Report("product/single", 1, Measure(1, 1, [&]() {
+            billing.QueryProduct(0, "com.example.item.0", OnProduct);
+            Java_com_turbulenz_turbulenz_payment_nativeProductQueryResponse
+                (env, 0, fakejni::LastCallContext(), sku, title, description,
+                 price);
+        }));
+    }
+
+    // Readiness poll, as done every frame
+    Report("ready/poll", 1, Measure(1, 1, [&]() {
+        sSink += billing.IsReady()?(1):(2);
+    }));
+
+    return (0 == sSink)?(1):(0);
+}
@@ -0,0 +1,283 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+#include "fakejni.h"
+
+#include <cstdarg>
+#include <cstring>
+
+namespace fakejni
+{
+
+struct Method
+{
+    std::string   name;
+    std::string   sig;
+};
+
+static JNINativeInterface_  sFunctions;
+static JNIInvokeInterface_  sInvoke;
+static JNIEnv               sEnv;
+static JavaVM               sVM;
+static int                  sClass;
+static jlong                sLastCallContext = 0;
+
+static String *
+AsString(jobject o)
+{
+    return (String *)o;
+}
+
+static ObjectArray *
+AsArray(jobject o)
+{
+    return (ObjectArray *)o;
+}
+
+// -- JNIEnv ----------------------------------------------------------
+
+static jint JNICALL
+GetJavaVM(JNIEnv *, JavaVM **vm)
+{
+    *vm = &sVM;
+    return JNI_OK;
+}
+
+static jclass JNICALL
+FindClass(JNIEnv *, const char *)
+{
+    return (jclass )&sClass;
+}
+
+static jobject JNICALL
+NewGlobalRef(JNIEnv *, jobject o)
+{
+    return o;
+}
+
+static void JNICALL
+DeleteGlobalRef(JNIEnv *, jobject)
+{
+}
+
+static void JNICALL
+DeleteLocalRef(JNIEnv *, jobject)
+{
+}
+
+static jmethodID JNICALL
+GetStaticMethodID(JNIEnv *, jclass, const char *name, const char *sig)
+{
+    Method *m = new Method;
+    m->name = name;
+    m->sig = sig;
+    return (jmethodID )m;
+}
+
+// Records the last jlong argument (the native context, by convention
+// the final argument of every do* method).  Every call succeeds.
+static jboolean JNICALL
+CallStaticBooleanMethodV(JNIEnv *, jclass, jmethodID methodID, va_list args)
+{
+    const Method *m = (const Method *)methodID;
+    const char *p = m->sig.c_str() + 1;
+    while (')' != *p)
+    {
+        switch (*p)
+        {
+        case 'J': sLastCallContext = va_arg(args, jlong); ++p; break;
+        case 'Z': case 'I': (void )va_arg(args, int); ++p; break;
+        case 'L':
+            (void )va_arg(args, jobject);
+            p = strchr(p, ';') + 1;
+            break;
+        case '[':
+            (void )va_arg(args, jobject);
+            while ('[' == *p) ++p;
+            p = ('L' == *p)?(strchr(p, ';') + 1):(p + 1);
+            break;
+        default: ++p; break;
+        }
+    }
+    return JNI_TRUE;
+}
+
+static jthrowable JNICALL
+ExceptionOccurred(JNIEnv *)
+{
+    return 0;
+}
+
+static void JNICALL
+ExceptionDescribe(JNIEnv *)
+{
+}
+
+static void JNICALL
+ExceptionClear(JNIEnv *)
+{
+}
+
+static jstring JNICALL
+NewStringUTF(JNIEnv *, const char *utf)
+{
+    return NewString(utf);
+}
+
+static jsize JNICALL
+GetStringLength(JNIEnv *, jstring s)
+{
+    return (jsize )AsString(s)->utf.size();
+}
+
+static jsize JNICALL
+GetStringUTFLength(JNIEnv *, jstring s)
+{
+    return (jsize )AsString(s)->utf.size();
+}
+
+static const char * JNICALL
+GetStringUTFChars(JNIEnv *, jstring s, jboolean *isCopy)
+{
+    if (isCopy)
+    {
+        *isCopy = JNI_FALSE;
+    }
+    return AsString(s)->utf.c_str();
+}
+
+static void JNICALL
+ReleaseStringUTFChars(JNIEnv *, jstring, const char *)
+{
+}
+
+static void JNICALL
+GetStringUTFRegion(JNIEnv *, jstring s, jsize start, jsize len, char *buf)
+{
+    memcpy(buf, AsString(s)->utf.data() + start, len);
+}
+
+static jsize JNICALL
+GetArrayLength(JNIEnv *, jarray a)
+{
+    return (jsize )AsArray(a)->elements.size();
+}
+
+static jobjectArray JNICALL
+NewObjectArray(JNIEnv *, jsize len, jclass, jobject init)
+{
+    ObjectArray *a = new ObjectArray;
+    a->elements.resize(len, init);
+    return (jobjectArray )a;
+}
+
+static jobject JNICALL
+GetObjectArrayElement(JNIEnv *, jobjectArray a, jsize index)
+{
+    return AsArray(a)->elements[index];
+}
+
+static void JNICALL
+SetObjectArrayElement(JNIEnv *, jobjectArray a, jsize index, jobject o)
+{
+    AsArray(a)->elements[index] = o;
+}
+
+// -- JavaVM ----------------------------------------------------------
+
+static jint JNICALL
+VMGetEnv(JavaVM *, void **env, jint)
+{
+    *env = &sEnv;
+    return JNI_OK;
+}
+
+static jint JNICALL
+AttachCurrentThread(JavaVM *, void **env, void *)
+{
+    *env = &sEnv;
+    return JNI_OK;
+}
+
+static jint JNICALL
+DetachCurrentThread(JavaVM *)
+{
+    return JNI_OK;
+}
+
+static void
+Init()
+{
+    static bool initialized = false;
+    if (initialized)
+    {
+        return;
+    }
+    initialized = true;
+
+    memset(&sFunctions, 0, sizeof(sFunctions));
+    sFunctions.GetJavaVM = GetJavaVM;
+    sFunctions.FindClass = FindClass;
+    sFunctions.NewGlobalRef = NewGlobalRef;
+    sFunctions.DeleteGlobalRef = DeleteGlobalRef;
+    sFunctions.DeleteLocalRef = DeleteLocalRef;
+    sFunctions.GetStaticMethodID = GetStaticMethodID;
+    sFunctions.CallStaticBooleanMethodV = CallStaticBooleanMethodV;
+    sFunctions.ExceptionOccurred = ExceptionOccurred;
+    sFunctions.ExceptionDescribe = ExceptionDescribe;
+    sFunctions.ExceptionClear = ExceptionClear;
+    sFunctions.NewStringUTF = NewStringUTF;
+    sFunctions.GetStringLength = GetStringLength;
+    sFunctions.GetStringUTFLength = GetStringUTFLength;
+    sFunctions.GetStringUTFChars = GetStringUTFChars;
+    sFunctions.ReleaseStringUTFChars = ReleaseStringUTFChars;
+    sFunctions.GetStringUTFRegion = GetStringUTFRegion;
+    sFunctions.GetArrayLength = GetArrayLength;
+    sFunctions.NewObjectArray = NewObjectArray;
+    sFunctions.GetObjectArrayElement = GetObjectArrayElement;
+    sFunctions.SetObjectArrayElement = SetObjectArrayElement;
+    sEnv.functions = &sFunctions;
+
+    memset(&sInvoke, 0, sizeof(sInvoke));
+    sInvoke.GetEnv = VMGetEnv;
+    sInvoke.AttachCurrentThread = AttachCurrentThread;
+    sInvoke.DetachCurrentThread = DetachCurrentThread;
+    sVM.functions = &sInvoke;
+}
+
+// -- Public ----------------------------------------------------------
+
+JNIEnv *
+GetEnv()
+{
+    Init();
+    return &sEnv;
+}
+
+jstring
+NewString(const std::string &utf)
+{
+    String *s = new String;
+    s->utf = utf;
+    return (jstring )s;
+}
+
+jobjectArray
+NewStringArray(const std::vector<std::string> &strings)
+{
+    ObjectArray *a = new ObjectArray;
+    a->elements.reserve(strings.size());
+    for (size_t i = 0 ; i < strings.size() ; ++i)
+    {
+        a->elements.push_back(NewString(strings[i]));
+    }
+    return (jobjectArray )a;
+}
+
+jlong
+LastCallContext()
+{
+    return sLastCallContext;
+}
+
+} // namespace fakejni
@@ -0,0 +1,41 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+// A minimal in-process JNIEnv / JavaVM for driving the native billing
+// code on a host machine.  Strings and object arrays are plain C++
+// objects.  Only the functions used by googleplaybilling.cpp are
+// implemented.  Calls to static Java methods are recorded, so that
+// the context passed to Java can be picked up by the caller.
+
+#ifndef __TURBULENZ_BENCH_FAKEJNI_H__
+#define __TURBULENZ_BENCH_FAKEJNI_H__
+
+#include <jni.h>
+#include <string>
+#include <vector>
+
+namespace fakejni
+{
+
+struct String
+{
+    std::string   utf;
+};
+
+struct ObjectArray
+{
+    std::vector<jobject>  elements;
+};
+
+JNIEnv *GetEnv();
+
+jstring NewString(const std::string &utf);
+
+jobjectArray NewStringArray(const std::vector<std::string> &strings);
+
+/// The last jlong argument passed to a static Java method.
+jlong LastCallContext();
+
+} // namespace fakejni
+
+#endif // __TURBULENZ_BENCH_FAKEJNI_H__
@@ -0,0 +1,19 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+// Host stand-in for the NDK header.  Logging is discarded.
+
+#ifndef __TURBULENZ_BENCH_ANDROID_LOG_H__
+#define __TURBULENZ_BENCH_ANDROID_LOG_H__
+
+#define ANDROID_LOG_INFO  4
+#define ANDROID_LOG_WARN  5
+#define ANDROID_LOG_ERROR 6
+
+static inline int
+__android_log_print(int prio, const char *tag, const char *fmt, ...)
+{
+    return 0;
+}
+
+#endif // __TURBULENZ_BENCH_ANDROID_LOG_H__
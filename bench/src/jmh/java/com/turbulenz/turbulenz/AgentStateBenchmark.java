@@ -0,0 +1,346 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import android.app.Activity;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Stress harness for the agent state.  Each group hammers the billing
+// entry points from several threads at once:
+//
+//   agent  - readiness polls, purchases and purchase queries while
+//            the connection flaps
+//   churn  - readiness polls and purchases while another thread
+//            shuts down and re-initializes payment
+//
+// Posted callbacks run in order on one thread, as they would on the
+// callback thread, with the native calls replaced by bookkeeping
+// (see CheckedAgent).  Every iteration ends by checking that:
+//
+//   - the published ready word agrees with the agent
+//   - the last ready callback carries the agent's final state
+//   - each accepted purchase got exactly one result
+//
+// A failed check, or any exception on a benchmark or callback
+// thread, fails the run.
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+public class AgentStateBenchmark
+{
+    static final long READY_CONTEXT = 1;
+    static final int  SKUS = 8;
+
+    // Runs posted callbacks in order on one thread.  Unlike
+    // ThreadCallbackHandler it is not stopped by payment.shutdown(),
+    // so it outlives the agents of the churn group.
+    static final class SerialHandler extends payment.CallbackHandler
+    {
+        private final ExecutorService mExecutor =
+            Executors.newSingleThreadExecutor();
+        final AtomicReference<Throwable> failure =
+            new AtomicReference<Throwable>();
+
+        @Override public void post(final Runnable r)
+        {
+            mExecutor.execute(new Runnable() {
+                    @Override public void run() {
+                        try {
+                            r.run();
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                    }
+                });
+        }
+
+        /// Wait until everything posted so far has run.
+        void drain() throws Exception
+        {
+            mExecutor.submit(new Runnable() {
+                    @Override public void run() {
+                    }
+                }).get();
+        }
+
+        void close()
+        {
+            mExecutor.shutdown();
+        }
+    }
+
+    // The simulated agent, with what would be passed to native
+    // recorded instead.  The overrides post to the handler like the
+    // methods they replace, and deliverReadyStatus() is called from
+    // the agent's own posted callback.  Purchase query results are
+    // not checked.
+    final class CheckedAgent extends simulatedpayment
+    {
+        // -1 until the first ready callback, then 0 or 1
+        volatile int mLastReady = -1;
+
+        CheckedAgent()
+        {
+            super(2);
+            for (String sku : mSkus) {
+                addProduct(sku, "title", "description", "$0.99", "USD");
+            }
+        }
+
+        @Override
+        protected void deliverReadyStatus(final long context,
+                                          final boolean ready)
+        {
+            mLastReady = (ready)?(1):(0);
+        }
+
+        @Override
+        protected void sendPurchaseFailure(final long ctx, final String msg)
+        {
+            postResult(ctx);
+        }
+
+        @Override
+        protected void sendPurchaseResult(final long ctx,
+                                          final String sku, final String data,
+                                          final String token,
+                                          final String devPayload,
+                                          final String signature)
+        {
+            postResult(ctx);
+        }
+
+        @Override
+        protected void sendPurchaseInfoList(final long context,
+                                            final String[] skus,
+                                            final String[] data,
+                                            final String[] tokens,
+                                            final String[] devPayloads,
+                                            final String[] sigs,
+                                            final boolean last)
+        {
+            postNothing();
+        }
+
+        @Override
+        protected void sendPurchaseInfoError(final long context,
+                                             final String msg)
+        {
+            postNothing();
+        }
+
+        private void postResult(final long ctx)
+        {
+            getCallbackHandler().post(new Runnable() {
+                    @Override public void run() {
+                        AtomicInteger count = mResults.get(ctx);
+                        if (null == count) {
+                            count = new AtomicInteger();
+                            mResults.put(ctx, count);
+                        }
+                        count.incrementAndGet();
+                    }
+                });
+        }
+
+        private void postNothing()
+        {
+            getCallbackHandler().post(new Runnable() {
+                    @Override public void run() {
+                    }
+                });
+        }
+    }
+
+    SerialHandler mHandler;
+    String[]      mSkus;
+
+    // Purchase contexts are unique within an iteration.  Results are
+    // only written on the handler thread.
+    final Set<Long> mAccepted = ConcurrentHashMap.newKeySet();
+    final ConcurrentHashMap<Long, AtomicInteger> mResults =
+        new ConcurrentHashMap<Long, AtomicInteger>();
+    final AtomicLong mNext = new AtomicLong();
+
+    CheckedAgent newAgent()
+    {
+        return new CheckedAgent();
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() throws InterruptedException
+    {
+        mSkus = new String[SKUS];
+        for (int i = 0 ; i < SKUS ; ++i) {
+            mSkus[i] = "sku." + i;
+        }
+
+        mHandler = new SerialHandler();
+        mAccepted.clear();
+        mResults.clear();
+        CheckedAgent agent = newAgent();
+        payment.initialize(new Activity(), 1, mHandler, agent,
+                           payment.LOG_NONE);
+        while (!agent.isReady()) {
+            Thread.sleep(1);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws Exception
+    {
+        // Let reconnects and simulated responses settle, then run
+        // everything they posted
+        Thread.sleep(50);
+        mHandler.drain();
+
+        final payment.BillingAgent agent = payment.getBillingAgent();
+        final boolean ready = (null != agent && agent.isReady());
+        final boolean published = (0 != (payment.getReadyWord() & 1));
+        if (ready != published) {
+            throw new IllegalStateException
+                ("ready word (" + published + ") disagrees with agent (" +
+                 ready + ")");
+        }
+
+        // A registered context is told about every change (and about
+        // the current state when it registers while ready), so the
+        // last report must match.  No report at all means not ready.
+        if (agent instanceof CheckedAgent &&
+            0 != agent.getState().readyContext) {
+            final boolean reported = (1 == ((CheckedAgent )agent).mLastReady);
+            if (reported != ready) {
+                throw new IllegalStateException
+                    ("last ready callback (" + reported +
+                     ") disagrees with agent (" + ready + ")");
+            }
+        }
+
+        // Purchases still in flight fail on shutdown, so every
+        // accepted purchase gets its result, although a simulated
+        // store thread may still be posting one.
+        payment.shutdown();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        for (;;) {
+            mHandler.drain();
+            if (mResults.size() >= mAccepted.size() ||
+                System.nanoTime() > deadline) {
+                break;
+            }
+            Thread.sleep(1);
+        }
+        mHandler.close();
+
+        if (null != mHandler.failure.get()) {
+            throw new IllegalStateException
+                ("callback threw", mHandler.failure.get());
+        }
+
+        for (Long ctx : mAccepted) {
+            final AtomicInteger count = mResults.get(ctx);
+            final int n = (null == count)?(0):(count.get());
+            if (1 != n) {
+                throw new IllegalStateException
+                    ("purchase " + ctx + " got " + n + " results");
+            }
+        }
+        if (mResults.size() != mAccepted.size()) {
+            throw new IllegalStateException
+                (mResults.size() + " purchases got results, only " +
+                 mAccepted.size() + " accepted");
+        }
+
+        if (0 != (payment.getReadyWord() & 1)) {
+            throw new IllegalStateException("ready after shutdown");
+        }
+    }
+
+    private boolean purchaseNext()
+    {
+        final long ctx = mNext.incrementAndGet();
+        final boolean accepted =
+            payment.doPurchase(mSkus[(int )(ctx % SKUS)], "", true, ctx);
+        if (accepted) {
+            mAccepted.add(ctx);
+        }
+        return accepted;
+    }
+
+    // -- agent ----------------------------------------------------------
+
+    @Benchmark
+    @Group("agent")
+    @GroupThreads(4)
+    public boolean poll()
+    {
+        return payment.doCheckReady(READY_CONTEXT);
+    }
+
+    @Benchmark
+    @Group("agent")
+    @GroupThreads(2)
+    public boolean purchase()
+    {
+        return purchaseNext();
+    }
+
+    @Benchmark
+    @Group("agent")
+    @GroupThreads(1)
+    public boolean queryPurchases()
+    {
+        return payment.doQueryPurchases(1);
+    }
+
+    @Benchmark
+    @Group("agent")
+    @GroupThreads(1)
+    public void flap()
+    {
+        final payment.BillingAgent agent = payment.getBillingAgent();
+        if (agent instanceof simulatedpayment) {
+            ((simulatedpayment )agent).injectDisconnect(20);
+        }
+    }
+
+    // -- churn ----------------------------------------------------------
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(3)
+    public boolean churnPoll()
+    {
+        return payment.doCheckReady(READY_CONTEXT);
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(2)
+    public boolean churnPurchase()
+    {
+        return purchaseNext();
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    public void reinitialize()
+    {
+        payment.shutdown();
+        payment.initialize(new Activity(), 1, mHandler, newAgent(),
+                           payment.LOG_NONE);
+    }
+}
@@ -0,0 +1,122 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import android.app.Activity;
+
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.StandInBillingClient;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost of the payment -> googlepayment dispatch and of posting
+// callbacks, with a BillingClient stand-in that answers immediately.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DispatchBenchmark
+{
+    // Keeps the last posted callback without running it (callbacks
+    // call into native code).
+    static final class DiscardingHandler extends payment.CallbackHandler
+    {
+        volatile Runnable last;
+
+        @Override public void post(Runnable r)
+        {
+            last = r;
+        }
+    }
+
+    static final int STORE_SKUS = 40;
+    static final int BACKLOG_TOKENS = 200;
+
+    DiscardingHandler  mHandler;
+    googlepayment      mAgent;
+    String[]           mSkus;
+    String[]           mTokens;
+    Purchase           mPurchase;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        mHandler = new DiscardingHandler();
+        payment.initialize(new Activity(), 1, mHandler);
+        mAgent = (googlepayment )payment.getBillingAgent();
+
+        // One in four is a subscription, so doQueryProductsStore
+        // covers the merged in-app / subscription query.
+        mSkus = new String[STORE_SKUS];
+        for (int i = 0 ; i < STORE_SKUS ; ++i) {
+            mSkus[i] = ((0 == i % 4)?("sub."):("sku.")) + i;
+        }
+        mPurchase = StandInBillingClient.makePurchases(1).get(0);
+
+        mTokens = new String[BACKLOG_TOKENS];
+        for (int i = 0 ; i < BACKLOG_TOKENS ; ++i) {
+            mTokens[i] = "token." + i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        payment.shutdown();
+    }
+
+    @Benchmark
+    public void doQueryProductCached(Blackhole bh)
+    {
+        bh.consume(payment.doQueryProduct("sku.0", 1));
+        bh.consume(mHandler.last);
+    }
+
+    @Benchmark
+    public void doQueryProductUncached(Blackhole bh)
+    {
+        mAgent.getProductCache().clear();
+        bh.consume(payment.doQueryProduct("sku.0", 1));
+        bh.consume(mHandler.last);
+    }
+
+    @Benchmark
+    public void doQueryProductsStore(Blackhole bh)
+    {
+        mAgent.getProductCache().clear();
+        bh.consume(payment.doQueryProducts(mSkus, 1));
+        bh.consume(mHandler.last);
+    }
+
+    // Pipeline overhead for a restored backlog (the stand-in store
+    // answers immediately).
+    @Benchmark
+    public void doConsumePurchasesBacklog(Blackhole bh)
+    {
+        bh.consume(payment.doConsumePurchases(mTokens, 1));
+        bh.consume(mHandler.last);
+    }
+
+    @Benchmark
+    public void sendPurchaseInfo(Blackhole bh)
+    {
+        mAgent.sendPurchaseInfo(1, "sku.0", "{}", "token", null, "sig");
+        bh.consume(mHandler.last);
+    }
+
+    @Benchmark
+    public void sendProductInfo(Blackhole bh)
+    {
+        mAgent.sendProductInfo(1, "sku.0", "title", "description", "$0.99");
+        bh.consume(mHandler.last);
+    }
+
+    @Benchmark
+    public String getFirstProductId()
+    {
+        return googlepayment.getFirstProductId(mPurchase);
+    }
+}
@@ -0,0 +1,63 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import android.app.Activity;
+
+import com.android.billingclient.api.StandInBillingClient;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// doQueryPurchases for accounts of different sizes, up to the point
+// where the result is posted to the callback handler.
+// doQueryPurchaseChanges is the steady-state refresh, where nothing
+// has changed since the previous query.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PurchaseQueryBenchmark
+{
+    @Param({"1", "100", "1000"})
+    int ownedPurchases;
+
+    // payment.LOG_NONE and payment.LOG_VERBOSE
+    @Param({"0", "3"})
+    int logLevel;
+
+    DispatchBenchmark.DiscardingHandler mHandler;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        StandInBillingClient.setOwnedPurchases
+            (StandInBillingClient.makePurchases(ownedPurchases));
+
+        mHandler = new DispatchBenchmark.DiscardingHandler();
+        payment.initialize(new Activity(), 1, mHandler, null, logLevel);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        payment.shutdown();
+        payment.setLogLevel(payment.LOG_VERBOSE);
+    }
+
+    @Benchmark
+    public void doQueryPurchases(Blackhole bh)
+    {
+        bh.consume(payment.doQueryPurchases(1));
+        bh.consume(mHandler.last);
+    }
+
+    @Benchmark
+    public void doQueryPurchaseChanges(Blackhole bh)
+    {
+        bh.consume(payment.doQueryPurchaseChanges(false, 1));
+        bh.consume(mHandler.last);
+    }
+}
@@ -0,0 +1,79 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.Charset;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+// Signature checks for a restored inventory of 'inventory' purchases,
+// signed with a 2048-bit key as Play does.  verifyAll is the bulk
+// path used by doQueryPurchases, verifySerial the same work on one
+// thread.  Scores are per inventory; multiply by 'inventory' for
+// verifications per second.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class VerifyBenchmark
+{
+    @Param({"1", "100", "1000"})
+    int inventory;
+
+    purchaseverifier mVerifier;
+    String[]         mData;
+    String[]         mSignatures;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keys = generator.generateKeyPair();
+
+        mVerifier = purchaseverifier.fromBase64
+            (Base64.getEncoder().encodeToString(keys.getPublic().getEncoded()));
+
+        Signature signer = Signature.getInstance("SHA1withRSA");
+        signer.initSign(keys.getPrivate());
+        mData = new String[inventory];
+        mSignatures = new String[inventory];
+        for (int i = 0 ; i < inventory ; ++i) {
+            mData[i] = "{\"orderId\":\"GPA.0000-0000-0000-" + i +
+                "\",\"packageName\":\"com.example\",\"productId\":\"sku." + i +
+                "\",\"purchaseTime\":1700000000000,\"purchaseState\":0," +
+                "\"purchaseToken\":\"token." + i + "\",\"acknowledged\":true}";
+            signer.update(mData[i].getBytes(Charset.forName("UTF-8")));
+            mSignatures[i] = Base64.getEncoder().encodeToString(signer.sign());
+        }
+    }
+
+    @Benchmark
+    public void verifyAll(Blackhole bh)
+    {
+        bh.consume(mVerifier.verifyAll(mData, mSignatures));
+    }
+
+    @Benchmark
+    public void verifySerial(Blackhole bh)
+    {
+        for (int i = 0 ; i < inventory ; ++i) {
+            bh.consume(mVerifier.verify(mData[i], mSignatures[i]));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void check()
+    {
+        if (0 != mVerifier.getRejectedCount()) {
+            throw new IllegalStateException
+                (mVerifier.getRejectedCount() + " signatures rejected");
+        }
+    }
+}
@@ -0,0 +1,26 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.app;
+
+import android.content.Intent;
+import android.content.IntentSender;
+
+// Stand-in for the Android class.
+public class Activity extends android.content.Context
+{
+    public static final int RESULT_CANCELED = 0;
+    public static final int RESULT_OK = -1;
+
+    public void runOnUiThread(Runnable action)
+    {
+        action.run();
+    }
+
+    public void startIntentSenderForResult(IntentSender intent, int requestCode,
+                                           Intent fillInIntent, int flagsMask,
+                                           int flagsValues, int extraFlags)
+        throws IntentSender.SendIntentException
+    {
+    }
+}
@@ -0,0 +1,15 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.app;
+
+import android.content.IntentSender;
+
+// Stand-in for the Android class.
+public class PendingIntent
+{
+    public IntentSender getIntentSender()
+    {
+        return new IntentSender();
+    }
+}
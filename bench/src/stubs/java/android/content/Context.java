@@ -0,0 +1,38 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.content;
+
+import android.content.pm.PackageManager;
+
+import java.io.File;
+
+// Stand-in for the Android class.  Services cannot be bound.
+public class Context
+{
+    public static final int BIND_AUTO_CREATE = 1;
+
+    public File getFilesDir()
+    {
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    public String getPackageName()
+    {
+        return "com.example.game";
+    }
+
+    public PackageManager getPackageManager()
+    {
+        return new PackageManager();
+    }
+
+    public boolean bindService(Intent service, ServiceConnection conn, int flags)
+    {
+        return false;
+    }
+
+    public void unbindService(ServiceConnection conn)
+    {
+    }
+}
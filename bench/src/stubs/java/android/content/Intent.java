@@ -0,0 +1,31 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.content;
+
+// Stand-in for the Android class.  Extras are not stored.
+public class Intent
+{
+    public Intent()
+    {
+    }
+
+    public Intent(String action)
+    {
+    }
+
+    public Intent setPackage(String packageName)
+    {
+        return this;
+    }
+
+    public int getIntExtra(String name, int defaultValue)
+    {
+        return defaultValue;
+    }
+
+    public String getStringExtra(String name)
+    {
+        return null;
+    }
+}
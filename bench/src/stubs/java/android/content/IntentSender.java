@@ -0,0 +1,12 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.content;
+
+// Stand-in for the Android class.
+public class IntentSender
+{
+    public static class SendIntentException extends Exception
+    {
+    }
+}
@@ -0,0 +1,18 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.content.pm;
+
+import android.content.Intent;
+
+import java.util.Collections;
+import java.util.List;
+
+// Stand-in for the Android class.  No services are installed.
+public class PackageManager
+{
+    public List<ResolveInfo> queryIntentServices(Intent intent, int flags)
+    {
+        return Collections.emptyList();
+    }
+}
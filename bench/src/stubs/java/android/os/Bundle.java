@@ -0,0 +1,66 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.os;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Stand-in for the Android class.
+public class Bundle
+{
+    private final HashMap<String, Object> mValues = new HashMap<String, Object>();
+
+    public void putInt(String key, int value)
+    {
+        mValues.put(key, value);
+    }
+
+    public void putString(String key, String value)
+    {
+        mValues.put(key, value);
+    }
+
+    public void putStringArrayList(String key, ArrayList<String> value)
+    {
+        mValues.put(key, value);
+    }
+
+    public void putParcelable(String key, Object value)
+    {
+        mValues.put(key, value);
+    }
+
+    public void putLong(String key, long value)
+    {
+        mValues.put(key, value);
+    }
+
+    public Object get(String key)
+    {
+        return mValues.get(key);
+    }
+
+    public int getInt(String key)
+    {
+        Object value = mValues.get(key);
+        return (value instanceof Integer)?((Integer )value):(0);
+    }
+
+    public String getString(String key)
+    {
+        return (String )mValues.get(key);
+    }
+
+    @SuppressWarnings("unchecked")
+    public ArrayList<String> getStringArrayList(String key)
+    {
+        return (ArrayList<String> )mValues.get(key);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T getParcelable(String key)
+    {
+        return (T )mValues.get(key);
+    }
+}
@@ -0,0 +1,32 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.os;
+
+// Stand-in for the Android class.  Posted work is run immediately;
+// delayed work is dropped.
+public class Handler
+{
+    public Handler()
+    {
+    }
+
+    public Handler(Looper looper)
+    {
+    }
+
+    public boolean post(Runnable r)
+    {
+        r.run();
+        return true;
+    }
+
+    public boolean postDelayed(Runnable r, long delayMillis)
+    {
+        return true;
+    }
+
+    public void removeCallbacks(Runnable r)
+    {
+    }
+}
@@ -0,0 +1,13 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.os;
+
+// Stand-in for the Android class.
+public class Looper
+{
+    public static Looper getMainLooper()
+    {
+        return null;
+    }
+}
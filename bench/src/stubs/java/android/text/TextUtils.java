@@ -0,0 +1,13 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.text;
+
+// Stand-in for the Android class.
+public class TextUtils
+{
+    public static boolean isEmpty(CharSequence s)
+    {
+        return null == s || 0 == s.length();
+    }
+}
@@ -0,0 +1,15 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.util;
+
+// Stand-in for the Android class.  Flags are ignored.
+public class Base64
+{
+    public static final int DEFAULT = 0;
+
+    public static byte[] decode(String str, int flags)
+    {
+        return java.util.Base64.getMimeDecoder().decode(str);
+    }
+}
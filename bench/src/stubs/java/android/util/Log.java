@@ -0,0 +1,12 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.util;
+
+// Stand-in for the Android class.  Logging is discarded.
+public class Log
+{
+    public static int i(String tag, String msg) { return 0; }
+    public static int w(String tag, String msg) { return 0; }
+    public static int e(String tag, String msg) { return 0; }
+}
@@ -0,0 +1,36 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.android.billingclient.api;
+
+// Stand-in for the Play Billing Library class.
+public class AcknowledgePurchaseParams
+{
+    final String mPurchaseToken;
+
+    AcknowledgePurchaseParams(String purchaseToken)
+    {
+        mPurchaseToken = purchaseToken;
+    }
+
+    public static Builder newBuilder()
+    {
+        return new Builder();
+    }
+
+    public static class Builder
+    {
+        private String mPurchaseToken;
+
+        public Builder setPurchaseToken(String purchaseToken)
+        {
+            mPurchaseToken = purchaseToken;
+            return this;
+        }
+
+        public AcknowledgePurchaseParams build()
+        {
+            return new AcknowledgePurchaseParams(mPurchaseToken);
+        }
+    }
+}
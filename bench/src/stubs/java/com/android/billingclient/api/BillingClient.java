@@ -0,0 +1,77 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.android.billingclient.api;
+
+import android.app.Activity;
+import android.content.Context;
+
+// Stand-in for the Play Billing Library class.  build() returns a
+// StandInBillingClient, which answers every request synchronously.
+public abstract class BillingClient
+{
+    public static final class BillingResponseCode
+    {
+        public static final int SERVICE_TIMEOUT = -3;
+        public static final int FEATURE_NOT_SUPPORTED = -2;
+        public static final int SERVICE_DISCONNECTED = -1;
+        public static final int OK = 0;
+        public static final int USER_CANCELED = 1;
+        public static final int SERVICE_UNAVAILABLE = 2;
+        public static final int BILLING_UNAVAILABLE = 3;
+        public static final int ITEM_UNAVAILABLE = 4;
+        public static final int DEVELOPER_ERROR = 5;
+        public static final int ERROR = 6;
+        public static final int ITEM_ALREADY_OWNED = 7;
+        public static final int ITEM_NOT_OWNED = 8;
+        public static final int NETWORK_ERROR = 12;
+    }
+
+    public static final class ProductType
+    {
+        public static final String INAPP = "inapp";
+        public static final String SUBS = "subs";
+    }
+
+    public static Builder newBuilder(Context context)
+    {
+        return new Builder();
+    }
+
+    public static class Builder
+    {
+        private PurchasesUpdatedListener mListener;
+
+        public Builder setListener(PurchasesUpdatedListener listener)
+        {
+            mListener = listener;
+            return this;
+        }
+
+        public Builder enablePendingPurchases()
+        {
+            return this;
+        }
+
+        public BillingClient build()
+        {
+            return new StandInBillingClient(mListener);
+        }
+    }
+
+    public abstract void startConnection(BillingClientStateListener listener);
+    public abstract void endConnection();
+    public abstract boolean isReady();
+    public abstract void queryProductDetailsAsync(QueryProductDetailsParams params,
+                                                  ProductDetailsResponseListener listener);
+    public abstract void queryPurchasesAsync(QueryPurchasesParams params,
+                                             PurchasesResponseListener listener);
+    public abstract void queryPurchaseHistoryAsync(QueryPurchaseHistoryParams params,
+                                                   PurchaseHistoryResponseListener listener);
+    public abstract BillingResult launchBillingFlow(Activity activity,
+                                                    BillingFlowParams params);
+    public abstract void consumeAsync(ConsumeParams params,
+                                      ConsumeResponseListener listener);
+    public abstract void acknowledgePurchase(AcknowledgePurchaseParams params,
+                                             AcknowledgePurchaseResponseListener listener);
+}
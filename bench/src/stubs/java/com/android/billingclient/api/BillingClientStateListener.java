@@ -0,0 +1,10 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.android.billingclient.api;
+
+public interface BillingClientStateListener
+{
+    void onBillingSetupFinished(BillingResult billingResult);
+    void onBillingServiceDisconnected();
+}
@@ -0,0 +1,59 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.android.billingclient.api;
+
+import java.util.List;
+
+// Stand-in for the Play Billing Library class.
+public class BillingFlowParams
+{
+    public static Builder newBuilder()
+    {
+        return new Builder();
+    }
+
+    public static class Builder
+    {
+        public Builder setProductDetailsParamsList(List<ProductDetailsParams> list)
+        {
+            return this;
+        }
+
+        public Builder setObfuscatedAccountId(String accountId)
+        {
+            return this;
+        }
+
+        public BillingFlowParams build()
+        {
+            return new BillingFlowParams();
+        }
+    }
+
+    public static class ProductDetailsParams
+    {
+        public static Builder newBuilder()
+        {
+            return new Builder();
+        }
+
+        public static class Builder
+        {
+            public Builder setProductDetails(ProductDetails productDetails)
+            {
+                return this;
+            }
+
+            public Builder setOfferToken(String offerToken)
+            {
+                return this;
+            }
+
+            public ProductDetailsParams build()
+            {
+                return new ProductDetailsParams();
+            }
+        }
+    }
+}
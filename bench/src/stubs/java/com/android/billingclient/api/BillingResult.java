@@ -0,0 +1,28 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.android.billingclient.api;
+
+// Stand-in for the Play Billing Library class.
+public class BillingResult
+{
+    static final BillingResult OK =
+        new BillingResult(BillingClient.BillingResponseCode.OK);
+
+    private final int mResponseCode;
+
+    public BillingResult(int responseCode)
+    {
+        mResponseCode = responseCode;
+    }
+
+    public int getResponseCode()
+    {
+        return mResponseCode;
+    }
+
+    public String getDebugMessage()
+    {
+        return "";
+    }
+}
@@ -0,0 +1,36 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.android.billingclient.api;
+
+// Stand-in for the Play Billing Library class.
+public class ConsumeParams
+{
+    final String mPurchaseToken;
+
+    ConsumeParams(String purchaseToken)
+    {
+        mPurchaseToken = purchaseToken;
+    }
+
+    public static Builder newBuilder()
+    {
+        return new Builder();
+    }
+
+    public static class Builder
+    {
+        private String mPurchaseToken;
+
+        public Builder setPurchaseToken(String purchaseToken)
+        {
+            mPurchaseToken = purchaseToken;
+            return this;
+        }
+
+        public ConsumeParams build()
+        {
+            return new ConsumeParams(mPurchaseToken);
+        }
+    }
+}
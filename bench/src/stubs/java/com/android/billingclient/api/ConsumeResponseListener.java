@@ -0,0 +1,9 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.android.billingclient.api;
+
+public interface ConsumeResponseListener
+{
+    void onConsumeResponse(BillingResult billingResult, String purchaseToken);
+}
@@ -0,0 +1,99 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.android.billingclient.api;
+
+import java.util.Collections;
+import java.util.List;
+
+// Stand-in for the Play Billing Library class.
+public class ProductDetails
+{
+    public static class OneTimePurchaseOfferDetails
+    {
+        private final String mPrice;
+
+        OneTimePurchaseOfferDetails(String price)
+        {
+            mPrice = price;
+        }
+
+        public String getFormattedPrice() { return mPrice; }
+        public long getPriceAmountMicros() { return 990000; }
+        public String getPriceCurrencyCode() { return "USD"; }
+    }
+
+    public static class PricingPhase
+    {
+        public String getFormattedPrice() { return "$4.99"; }
+        public long getPriceAmountMicros() { return 4990000; }
+        public String getPriceCurrencyCode() { return "USD"; }
+        public String getBillingPeriod() { return "P1M"; }
+        public int getBillingCycleCount() { return 0; }
+        public int getRecurrenceMode() { return RecurrenceMode.INFINITE_RECURRING; }
+    }
+
+    public static class PricingPhases
+    {
+        public List<PricingPhase> getPricingPhaseList()
+        {
+            return Collections.singletonList(new PricingPhase());
+        }
+    }
+
+    public static class SubscriptionOfferDetails
+    {
+        private final String mProductId;
+
+        SubscriptionOfferDetails(String productId)
+        {
+            mProductId = productId;
+        }
+
+        public String getBasePlanId() { return "monthly"; }
+        public String getOfferId() { return null; }
+        public String getOfferToken() { return "offer." + mProductId; }
+        public PricingPhases getPricingPhases() { return new PricingPhases(); }
+    }
+
+    public static final class RecurrenceMode
+    {
+        public static final int INFINITE_RECURRING = 1;
+        public static final int FINITE_RECURRING = 2;
+        public static final int NON_RECURRING = 3;
+    }
+
+    private final String mProductId;
+    private final String mProductType;
+    private final String mTitle;
+    private final String mDescription;
+    private final OneTimePurchaseOfferDetails mOneTime;
+
+    public ProductDetails(String productId, String productType,
+                          String title, String description, String price)
+    {
+        mProductId = productId;
+        mProductType = productType;
+        mTitle = title;
+        mDescription = description;
+        mOneTime = new OneTimePurchaseOfferDetails(price);
+    }
+
+    public String getProductId() { return mProductId; }
+    public String getProductType() { return mProductType; }
+    public String getTitle() { return mTitle; }
+    public String getDescription() { return mDescription; }
+
+    public OneTimePurchaseOfferDetails getOneTimePurchaseOfferDetails()
+    {
+        return (BillingClient.ProductType.SUBS.equals(mProductType))?(null):(mOneTime);
+    }
+
+    public List<SubscriptionOfferDetails> getSubscriptionOfferDetails()
+    {
+        if (!BillingClient.ProductType.SUBS.equals(mProductType)) {
+            return null;
+        }
+        return Collections.singletonList(new SubscriptionOfferDetails(mProductId));
+    }
+}
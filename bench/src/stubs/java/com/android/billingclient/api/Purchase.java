@@ -0,0 +1,42 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.android.billingclient.api;
+
+import java.util.Collections;
+import java.util.List;
+
+// Stand-in for the Play Billing Library class.
+public class Purchase
+{
+    public static final class PurchaseState
+    {
+        public static final int UNSPECIFIED_STATE = 0;
+        public static final int PURCHASED = 1;
+        public static final int PENDING = 2;
+    }
+
+    private final List<String> mProducts;
+    private final String       mToken;
+    private final String       mJson;
+    private final String       mSignature;
+    private final int          mState;
+
+    public Purchase(String productId, String token, String json,
+                    String signature, int state)
+    {
+        mProducts = Collections.singletonList(productId);
+        mToken = token;
+        mJson = json;
+        mSignature = signature;
+        mState = state;
+    }
+
+    public List<String> getProducts() { return mProducts; }
+    public String getOriginalJson() { return mJson; }
+    public String getPurchaseToken() { return mToken; }
+    public String getSignature() { return mSignature; }
+    public int getPurchaseState() { return mState; }
+    public boolean isAcknowledged() { return true; }
+    public long getPurchaseTime() { return 0; }
+}
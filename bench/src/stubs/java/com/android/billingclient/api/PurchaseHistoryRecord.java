@@ -0,0 +1,34 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.android.billingclient.api;
+
+import java.util.Collections;
+import java.util.List;
+
+// Stand-in for the Play Billing Library class.
+public class PurchaseHistoryRecord
+{
+    private final String mProductId;
+    private final String mToken;
+    private final String mJson;
+    private final String mSignature;
+    private final long   mPurchaseTime;
+
+    public PurchaseHistoryRecord(String productId, String token, String json,
+                                 String signature, long purchaseTime)
+    {
+        mProductId = productId;
+        mToken = token;
+        mJson = json;
+        mSignature = signature;
+        mPurchaseTime = purchaseTime;
+    }
+
+    public List<String> getProducts() { return Collections.singletonList(mProductId); }
+    public String getPurchaseToken() { return mToken; }
+    public String getOriginalJson() { return mJson; }
+    public String getSignature() { return mSignature; }
+    public long getPurchaseTime() { return mPurchaseTime; }
+    public int getQuantity() { return 1; }
+}
@@ -0,0 +1,12 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.android.billingclient.api;
+
+import java.util.List;
+
+public interface PurchaseHistoryResponseListener
+{
+    void onPurchaseHistoryResponse(BillingResult billingResult,
+                                   List<PurchaseHistoryRecord> records);
+}
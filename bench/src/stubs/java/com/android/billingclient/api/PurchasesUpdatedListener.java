@@ -0,0 +1,11 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.android.billingclient.api;
+
+import java.util.List;
+
+public interface PurchasesUpdatedListener
+{
+    void onPurchasesUpdated(BillingResult billingResult, List<Purchase> purchases);
+}
@@ -0,0 +1,78 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.android.billingclient.api;
+
+import java.util.List;
+
+// Stand-in for the Play Billing Library class.
+public class QueryProductDetailsParams
+{
+    final List<Product> mProducts;
+
+    QueryProductDetailsParams(List<Product> products)
+    {
+        mProducts = products;
+    }
+
+    public static Builder newBuilder()
+    {
+        return new Builder();
+    }
+
+    public static class Builder
+    {
+        private List<Product> mProducts;
+
+        public Builder setProductList(List<Product> products)
+        {
+            mProducts = products;
+            return this;
+        }
+
+        public QueryProductDetailsParams build()
+        {
+            return new QueryProductDetailsParams(mProducts);
+        }
+    }
+
+    public static class Product
+    {
+        final String mProductId;
+        final String mProductType;
+
+        Product(String productId, String productType)
+        {
+            mProductId = productId;
+            mProductType = productType;
+        }
+
+        public static Builder newBuilder()
+        {
+            return new Builder();
+        }
+
+        public static class Builder
+        {
+            private String mProductId;
+            private String mProductType;
+
+            public Builder setProductId(String productId)
+            {
+                mProductId = productId;
+                return this;
+            }
+
+            public Builder setProductType(String productType)
+            {
+                mProductType = productType;
+                return this;
+            }
+
+            public Product build()
+            {
+                return new Product(mProductId, mProductType);
+            }
+        }
+    }
+}
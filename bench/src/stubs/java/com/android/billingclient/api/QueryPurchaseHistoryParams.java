@@ -0,0 +1,36 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.android.billingclient.api;
+
+// Stand-in for the Play Billing Library class.
+public class QueryPurchaseHistoryParams
+{
+    final String mProductType;
+
+    QueryPurchaseHistoryParams(String productType)
+    {
+        mProductType = productType;
+    }
+
+    public static Builder newBuilder()
+    {
+        return new Builder();
+    }
+
+    public static class Builder
+    {
+        private String mProductType;
+
+        public Builder setProductType(String productType)
+        {
+            mProductType = productType;
+            return this;
+        }
+
+        public QueryPurchaseHistoryParams build()
+        {
+            return new QueryPurchaseHistoryParams(mProductType);
+        }
+    }
+}
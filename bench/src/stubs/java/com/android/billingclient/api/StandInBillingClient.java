@@ -0,0 +1,144 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.android.billingclient.api;
+
+import android.app.Activity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Answers every request synchronously on the calling thread.  Every
+// requested product exists: ids starting with "sub." as
+// subscriptions, all others as in-app products.  The owned purchase list is set by the
+// benchmark through setOwnedPurchases().
+public class StandInBillingClient extends BillingClient
+{
+    private static volatile List<Purchase> sOwned = Collections.emptyList();
+    private static volatile List<PurchaseHistoryRecord> sHistory =
+        Collections.emptyList();
+
+    public static void setOwnedPurchases(List<Purchase> owned)
+    {
+        sOwned = owned;
+    }
+
+    /// In-app purchase history.  There is no subscription history.
+    public static void setPurchaseHistory(List<PurchaseHistoryRecord> history)
+    {
+        sHistory = history;
+    }
+
+    public static List<PurchaseHistoryRecord> makeHistory(int count)
+    {
+        List<PurchaseHistoryRecord> history = new ArrayList<>(count);
+        for (int i = 0 ; i < count ; ++i) {
+            String sku = "sku." + (i % 50);
+            String token = "history." + i;
+            history.add(new PurchaseHistoryRecord
+                        (sku, token,
+                         "{\"productId\":\"" + sku +
+                         "\",\"purchaseToken\":\"" + token + "\"}",
+                         "signature." + i, 1700000000000L + i));
+        }
+        return history;
+    }
+
+    public static List<Purchase> makePurchases(int count)
+    {
+        List<Purchase> owned = new ArrayList<>(count);
+        for (int i = 0 ; i < count ; ++i) {
+            String sku = "sku." + i;
+            String token = "token." + i;
+            owned.add(new Purchase(sku, token,
+                                   "{\"productId\":\"" + sku +
+                                   "\",\"purchaseToken\":\"" + token + "\"}",
+                                   "signature." + i,
+                                   Purchase.PurchaseState.PURCHASED));
+        }
+        return owned;
+    }
+
+    private final PurchasesUpdatedListener mListener;
+    private boolean mReady = false;
+
+    StandInBillingClient(PurchasesUpdatedListener listener)
+    {
+        mListener = listener;
+    }
+
+    @Override public void startConnection(BillingClientStateListener listener)
+    {
+        mReady = true;
+        listener.onBillingSetupFinished(BillingResult.OK);
+    }
+
+    @Override public void endConnection()
+    {
+        mReady = false;
+    }
+
+    @Override public boolean isReady()
+    {
+        return mReady;
+    }
+
+    @Override public void queryProductDetailsAsync(QueryProductDetailsParams params,
+                                                   ProductDetailsResponseListener listener)
+    {
+        List<ProductDetails> result = new ArrayList<>(params.mProducts.size());
+        for (QueryProductDetailsParams.Product p : params.mProducts) {
+            final boolean isSubscription = p.mProductId.startsWith("sub.");
+            if (isSubscription != ProductType.SUBS.equals(p.mProductType)) {
+                continue;
+            }
+            result.add(new ProductDetails(p.mProductId, p.mProductType,
+                                          "Title " + p.mProductId,
+                                          "Description " + p.mProductId,
+                                          "$0.99"));
+        }
+        listener.onProductDetailsResponse(BillingResult.OK, result);
+    }
+
+    @Override public void queryPurchasesAsync(QueryPurchasesParams params,
+                                              PurchasesResponseListener listener)
+    {
+        // All owned purchases are in-app products
+        if (ProductType.SUBS.equals(params.mProductType)) {
+            listener.onQueryPurchasesResponse(BillingResult.OK,
+                                              Collections.<Purchase>emptyList());
+            return;
+        }
+        listener.onQueryPurchasesResponse(BillingResult.OK, sOwned);
+    }
+
+    @Override public void queryPurchaseHistoryAsync(QueryPurchaseHistoryParams params,
+                                                    PurchaseHistoryResponseListener listener)
+    {
+        if (ProductType.SUBS.equals(params.mProductType)) {
+            listener.onPurchaseHistoryResponse
+                (BillingResult.OK, Collections.<PurchaseHistoryRecord>emptyList());
+            return;
+        }
+        listener.onPurchaseHistoryResponse(BillingResult.OK, sHistory);
+    }
+
+    @Override public BillingResult launchBillingFlow(Activity activity,
+                                                     BillingFlowParams params)
+    {
+        return BillingResult.OK;
+    }
+
+    @Override public void consumeAsync(ConsumeParams params,
+                                       ConsumeResponseListener listener)
+    {
+        listener.onConsumeResponse(BillingResult.OK, params.mPurchaseToken);
+    }
+
+    @Override public void acknowledgePurchase(AcknowledgePurchaseParams params,
+                                              AcknowledgePurchaseResponseListener listener)
+    {
+        listener.onAcknowledgePurchaseResponse(BillingResult.OK);
+    }
+}
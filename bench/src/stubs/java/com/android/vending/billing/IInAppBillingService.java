@@ -0,0 +1,39 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.android.vending.billing;
+
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.RemoteException;
+
+// Stand-in for the interface generated from IInAppBillingService.aidl,
+// without the Binder plumbing.  asInterface() accepts a binder that
+// implements the interface itself.
+public interface IInAppBillingService extends IInterface
+{
+    int isBillingSupported(int apiVersion, String packageName, String type)
+        throws RemoteException;
+
+    Bundle getSkuDetails(int apiVersion, String packageName, String type,
+                         Bundle skusBundle) throws RemoteException;
+
+    Bundle getBuyIntent(int apiVersion, String packageName, String sku,
+                        String type, String developerPayload)
+        throws RemoteException;
+
+    Bundle getPurchases(int apiVersion, String packageName, String type,
+                        String continuationToken) throws RemoteException;
+
+    int consumePurchase(int apiVersion, String packageName,
+                        String purchaseToken) throws RemoteException;
+
+    public static abstract class Stub
+    {
+        public static IInAppBillingService asInterface(IBinder obj)
+        {
+            return (IInAppBillingService )obj;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package org.json;
+
+// Stand-in for the Android class.
+public class JSONException extends Exception
+{
+    public JSONException(String message)
+    {
+        super(message);
+    }
+}
@@ -0,0 +1,54 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package org.json;
+
+import java.util.HashMap;
+
+// Stand-in for the Android class.  Only reads flat objects of string
+// and number values (no escapes), which is all the billing service
+// returns.
+public class JSONObject
+{
+    private final HashMap<String, String> mValues = new HashMap<String, String>();
+
+    public JSONObject(String json) throws JSONException
+    {
+        String s = json.trim();
+        if (s.length() < 2 || '{' != s.charAt(0) || '}' != s.charAt(s.length() - 1)) {
+            throw new JSONException("not an object: " + json);
+        }
+        for (String member : s.substring(1, s.length() - 1).split(",")) {
+            int colon = member.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            mValues.put(unquote(member.substring(0, colon)),
+                        unquote(member.substring(colon + 1)));
+        }
+    }
+
+    private static String unquote(String s)
+    {
+        s = s.trim();
+        if (s.length() >= 2 && '"' == s.charAt(0)) {
+            return s.substring(1, s.length() - 1);
+        }
+        return s;
+    }
+
+    public String optString(String name)
+    {
+        String value = mValues.get(name);
+        return (null == value)?(""):(value);
+    }
+
+    public int optInt(String name)
+    {
+        try {
+            return Integer.parseInt(optString(name));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
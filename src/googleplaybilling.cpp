@@ -4,26 +4,58 @@
 #include "googleplaybilling.h"
 
 #include <android/log.h>
+#include <pthread.h>
+#include <atomic>
 
 using namespace turbulenz;
 
-#define LOGI(...)
-#ifndef LOGI
+// Compile-time log level: 0 = none, 1 = errors, 2 = errors and info.
+// Disabled levels expand to nothing, so their arguments are never
+// evaluated.  Build with -DTZBILLING_LOG_LEVEL=0 for release.
+#ifndef TZBILLING_LOG_LEVEL
+# define TZBILLING_LOG_LEVEL 1
+#endif
+
+#if TZBILLING_LOG_LEVEL >= 2
 # define LOGI(...) \
     ((void)__android_log_print(ANDROID_LOG_INFO, "nativebilling", __VA_ARGS__))
+#else
+# define LOGI(...) ((void)0)
 #endif
 
-#define LOGE(...) \
+#if TZBILLING_LOG_LEVEL >= 1
+# define LOGE(...) \
     ((void)__android_log_print(ANDROID_LOG_ERROR, "nativebilling", __VA_ARGS__))
+#else
+# define LOGE(...) ((void)0)
+#endif
 
 static void
 InitStringFromJString(std::string &out_string, JNIEnv *env, jstring jstr)
 {
+    if (0 == jstr)
+    {
+        out_string.clear();
+        return;
+    }
+
     const char *jstrChars = env->GetStringUTFChars(jstr, 0);
     out_string = jstrChars;
     env->ReleaseStringUTFChars(jstr, jstrChars);
 }
 
+static void
+InitStringFromArrayElement(std::string &out_string, JNIEnv *env,
+                           jobjectArray array, jsize index)
+{
+    jstring jstr = (jstring )env->GetObjectArrayElement(array, index);
+    if (0 != jstr)
+    {
+        InitStringFromJString(out_string, env, jstr);
+        env->DeleteLocalRef(jstr);
+    }
+}
+
 struct PurchaseContext
 {
     void                                 *callerContext;
@@ -84,11 +116,146 @@ Java_com_turbulenz_turbulenz_payment_nativeOnPurchaseFailed
 
 struct QueryContext
 {
-    void                               *callerContext;
-    GooglePlayBilling::PurchaseQueryCB  callback;
-    GooglePlayBilling::PurchaseList     purchases;
+    void                                   *callerContext;
+    GooglePlayBilling::PurchaseQueryCB      callback;
+    GooglePlayBilling::PurchaseList         purchases;
+
+    // Used instead of 'callback' / 'purchases' by QueryPurchaseViews.
+    GooglePlayBilling::PurchaseViewQueryCB  viewCallback {};
+};
+
+// The strings of a page of purchase views are copied into 'arena',
+// and 'views' point into it.  A page is filled and delivered within
+// one JNI callback, so each thread reuses a single page for every
+// query.  Once it has grown to the largest page seen, delivering
+// views allocates nothing.
+struct PurchaseViewPage
+{
+    std::vector<char>                             arena;
+    std::vector<size_t>                           offsets;
+    std::vector<GooglePlayBilling::PurchaseView>  views;
 };
 
+static pthread_key_t   sViewPageKey;
+static pthread_once_t  sViewPageKeyOnce = PTHREAD_ONCE_INIT;
+
+static void
+DeleteViewPage(void *page)
+{
+    delete (PurchaseViewPage *)page;
+}
+
+static void
+CreateViewPageKey()
+{
+    pthread_key_create(&sViewPageKey, DeleteViewPage);
+}
+
+static PurchaseViewPage *
+GetViewPage()
+{
+    pthread_once(&sViewPageKeyOnce, CreateViewPageKey);
+    PurchaseViewPage *page =
+        (PurchaseViewPage *)pthread_getspecific(sViewPageKey);
+    if (0 == page)
+    {
+        page = new PurchaseViewPage;
+        pthread_setspecific(sViewPageKey, page);
+    }
+    return page;
+}
+
+static const size_t kStringsPerPurchaseView = 5;
+
+// Copy the modified UTF-8 of jstr onto the end of the arena, with a
+// terminating 0.  A null jstr gives an empty string.
+static void
+AppendStringToArena(PurchaseViewPage *page, JNIEnv *env, jstring jstr)
+{
+    std::vector<char> &arena = page->arena;
+    const size_t offset = arena.size();
+    page->offsets.push_back(offset);
+
+    size_t utfLength = 0;
+    if (0 != jstr)
+    {
+        utfLength = (size_t )env->GetStringUTFLength(jstr);
+        arena.resize(offset + utfLength + 1);
+        env->GetStringUTFRegion(jstr, 0, env->GetStringLength(jstr),
+                                &arena[offset]);
+    }
+    else
+    {
+        arena.resize(offset + 1);
+    }
+    arena[offset + utfLength] = 0;
+}
+
+static void
+AppendArrayElementToArena(PurchaseViewPage *page, JNIEnv *env,
+                          jobjectArray array, jsize index)
+{
+    jstring jstr = (jstring )env->GetObjectArrayElement(array, index);
+    AppendStringToArena(page, env, jstr);
+    if (0 != jstr)
+    {
+        env->DeleteLocalRef(jstr);
+    }
+}
+
+// Build views over the arena (which no longer grows) for the current
+// page, make the callback and reset the page.
+static void
+DeliverPurchaseViews(QueryContext *queryCtx, PurchaseViewPage *page,
+                     bool last)
+{
+    const std::vector<char> &arena = page->arena;
+    const std::vector<size_t> &offsets = page->offsets;
+    const size_t count = offsets.size() / kStringsPerPurchaseView;
+
+    std::vector<GooglePlayBilling::PurchaseView> &views = page->views;
+    views.resize(count);
+    for (size_t i = 0 ; i < offsets.size() ; ++i)
+    {
+        const size_t end =
+            (i + 1 < offsets.size())?(offsets[i + 1]):(arena.size());
+        GooglePlayBilling::StringView v;
+        v.data = &arena[offsets[i]];
+        v.length = end - offsets[i] - 1;
+
+        GooglePlayBilling::PurchaseView &view =
+            views[i / kStringsPerPurchaseView];
+        switch (i % kStringsPerPurchaseView)
+        {
+        case 0: view.sku = v; break;
+        case 1: view.details = v; break;
+        case 2: view.googleToken = v; break;
+        case 3: view.clientToken = v; break;
+        case 4: view.signature = v; break;
+        }
+    }
+
+    queryCtx->viewCallback(queryCtx->callerContext,
+                           (0 == count)?(0):(&views[0]), count, last);
+
+    // Keeps the capacity for the next page
+    page->arena.clear();
+    page->offsets.clear();
+}
+
+static void
+DeliverPurchaseViewsError(QueryContext *queryCtx, PurchaseViewPage *page)
+{
+    page->arena.clear();
+    page->offsets.clear();
+    for (size_t i = 0 ; i < kStringsPerPurchaseView ; ++i)
+    {
+        page->offsets.push_back(i);
+        page->arena.push_back(0);
+    }
+    DeliverPurchaseViews(queryCtx, page, true);
+}
+
 extern "C" void
 Java_com_turbulenz_turbulenz_payment_nativePurchaseQueryResponse
 (JNIEnv *env, jobject thiz, jlong context, jstring sku, jstring details,
@@ -121,6 +288,13 @@ Java_com_turbulenz_turbulenz_payment_nativePurchaseQueryResponse
 
         // Create a single empty entry to indicate an error.
 
+        if (0 != queryCtx->viewCallback)
+        {
+            DeliverPurchaseViewsError(queryCtx, GetViewPage());
+            delete queryCtx;
+            return;
+        }
+
         GooglePlayBilling::PurchaseList &list = queryCtx->purchases;
         list.clear();
         list.push_back({ "", "", "", "", "" });
@@ -132,10 +306,29 @@ Java_com_turbulenz_turbulenz_payment_nativePurchaseQueryResponse
     {
         // The list has been terminated.  We can make the callback now.
 
+        if (0 != queryCtx->viewCallback)
+        {
+            DeliverPurchaseViews(queryCtx, GetViewPage(), true);
+            delete queryCtx;
+            return;
+        }
+
         queryCtx->callback(queryCtx->callerContext, queryCtx->purchases);
 
         delete queryCtx;
     }
+    else if (0 != queryCtx->viewCallback)
+    {
+        // Deliver each entry as a page of one
+
+        PurchaseViewPage *page = GetViewPage();
+        AppendStringToArena(page, env, sku);
+        AppendStringToArena(page, env, details);
+        AppendStringToArena(page, env, token);
+        AppendStringToArena(page, env, devPayload);
+        AppendStringToArena(page, env, sig);
+        DeliverPurchaseViews(queryCtx, page, false);
+    }
     else
     {
         // We have a purchase to add to the list
@@ -152,6 +345,215 @@ Java_com_turbulenz_turbulenz_payment_nativePurchaseQueryResponse
     }
 }
 
+extern "C" void
+Java_com_turbulenz_turbulenz_payment_nativePurchaseListQueryResponse
+(JNIEnv *env, jobject thiz, jlong context, jobjectArray skus,
+ jobjectArray details, jobjectArray tokens, jobjectArray devPayloads,
+ jobjectArray sigs, jboolean last)
+{
+    if (0 == context)
+    {
+        LOGE("purchase list query callback called with null context");
+        return;
+    }
+
+    QueryContext *queryCtx = (QueryContext *)(size_t )context;
+    GooglePlayBilling::PurchaseList &list = queryCtx->purchases;
+
+    if (0 == skus || 0 == details || 0 == tokens || 0 == devPayloads ||
+        0 == sigs)
+    {
+        LOGE("query failed: (internal error - null purchase arrays)");
+
+        if (0 != queryCtx->viewCallback)
+        {
+            DeliverPurchaseViewsError(queryCtx, GetViewPage());
+            delete queryCtx;
+            return;
+        }
+
+        list.clear();
+        list.push_back({ "", "", "", "", "" });
+        queryCtx->callback(queryCtx->callerContext, queryCtx->purchases);
+
+        delete queryCtx;
+        return;
+    }
+
+    const jsize count = env->GetArrayLength(skus);
+
+    if (0 != queryCtx->viewCallback)
+    {
+        PurchaseViewPage *page = GetViewPage();
+        for (jsize i = 0 ; i < count ; ++i)
+        {
+            AppendArrayElementToArena(page, env, skus, i);
+            AppendArrayElementToArena(page, env, details, i);
+            AppendArrayElementToArena(page, env, tokens, i);
+            AppendArrayElementToArena(page, env, devPayloads, i);
+            AppendArrayElementToArena(page, env, sigs, i);
+        }
+        DeliverPurchaseViews(queryCtx, page, !!last);
+        if (last)
+        {
+            delete queryCtx;
+        }
+        return;
+    }
+
+    // Grow the list once for the whole page and fill it in place
+
+    const size_t base = list.size();
+    list.resize(base + count);
+    for (jsize i = 0 ; i < count ; ++i)
+    {
+        GooglePlayBilling::Purchase &purchase = list[base + i];
+        InitStringFromArrayElement(purchase.sku, env, skus, i);
+        InitStringFromArrayElement(purchase.details, env, details, i);
+        InitStringFromArrayElement(purchase.googleToken, env, tokens, i);
+        InitStringFromArrayElement(purchase.clientToken, env, devPayloads, i);
+        InitStringFromArrayElement(purchase.signature, env, sigs, i);
+    }
+
+    if (last)
+    {
+        queryCtx->callback(queryCtx->callerContext, queryCtx->purchases);
+
+        delete queryCtx;
+    }
+}
+
+struct PurchaseChangesContext
+{
+    void                                 *callerContext;
+    GooglePlayBilling::PurchaseChangesCB  callback;
+};
+
+extern "C" void
+Java_com_turbulenz_turbulenz_payment_nativePurchaseChangesResponse
+(JNIEnv *env, jobject thiz, jlong context, jboolean ok, jintArray types,
+ jobjectArray skus, jobjectArray details, jobjectArray tokens,
+ jobjectArray sigs)
+{
+    if (0 == context)
+    {
+        LOGE("purchase changes callback called with null context");
+        return;
+    }
+
+    PurchaseChangesContext *ctx = (PurchaseChangesContext *)(size_t )context;
+
+    GooglePlayBilling::PurchaseChangeList changes;
+    if (ok && (0 == types || 0 == skus || 0 == details || 0 == tokens ||
+               0 == sigs))
+    {
+        LOGE("purchase changes callback has null arrays");
+        ok = JNI_FALSE;
+    }
+
+    if (ok)
+    {
+        const jsize count = env->GetArrayLength(types);
+        std::vector<jint> typeValues(count);
+        if (0 != count)
+        {
+            env->GetIntArrayRegion(types, 0, count, &typeValues[0]);
+        }
+
+        changes.resize(count);
+        for (jsize i = 0 ; i < count ; ++i)
+        {
+            GooglePlayBilling::PurchaseChange &change = changes[i];
+            change.type = (GooglePlayBilling::PurchaseChangeType )typeValues[i];
+
+            GooglePlayBilling::Purchase &purchase = change.purchase;
+            InitStringFromArrayElement(purchase.sku, env, skus, i);
+            InitStringFromArrayElement(purchase.googleToken, env, tokens, i);
+            if (GooglePlayBilling::PurchaseRemoved != change.type)
+            {
+                InitStringFromArrayElement(purchase.details, env, details, i);
+                InitStringFromArrayElement(purchase.signature, env, sigs, i);
+            }
+        }
+    }
+
+    ctx->callback(ctx->callerContext, !!ok, changes);
+    delete ctx;
+}
+
+struct PurchaseHistoryContext
+{
+    void                                 *callerContext;
+    GooglePlayBilling::PurchaseHistoryCB  callback;
+    GooglePlayBilling::PurchaseHistoryList records;
+};
+
+extern "C" void
+Java_com_turbulenz_turbulenz_payment_nativePurchaseHistoryResponse
+(JNIEnv *env, jobject thiz, jlong context, jstring error, jobjectArray skus,
+ jobjectArray details, jobjectArray tokens, jobjectArray sigs,
+ jlongArray times, jboolean last)
+{
+    if (0 == context)
+    {
+        LOGE("purchase history callback called with null context");
+        return;
+    }
+
+    PurchaseHistoryContext *ctx = (PurchaseHistoryContext *)(size_t )context;
+    GooglePlayBilling::PurchaseHistoryList &records = ctx->records;
+
+    std::string errorString;
+    if (0 != error)
+    {
+        InitStringFromJString(errorString, env, error);
+    }
+    else if (0 == skus || 0 == details || 0 == tokens || 0 == sigs ||
+             0 == times)
+    {
+        errorString = "internal error - null purchase history arrays";
+    }
+
+    if (!errorString.empty())
+    {
+        LOGE("purchase history query failed: %s", errorString.c_str());
+        records.clear();
+        ctx->callback(ctx->callerContext, records, true, errorString.c_str());
+        delete ctx;
+        return;
+    }
+
+    // Reuse the strings of the previous chunk
+
+    const jsize count = env->GetArrayLength(skus);
+    records.resize(count);
+    std::vector<jlong> timeValues(count);
+    if (0 != count)
+    {
+        env->GetLongArrayRegion(times, 0, count, &timeValues[0]);
+    }
+    for (jsize i = 0 ; i < count ; ++i)
+    {
+        GooglePlayBilling::PurchaseHistoryRecord &record = records[i];
+        record.sku.clear();
+        record.details.clear();
+        record.googleToken.clear();
+        record.signature.clear();
+        InitStringFromArrayElement(record.sku, env, skus, i);
+        InitStringFromArrayElement(record.details, env, details, i);
+        InitStringFromArrayElement(record.googleToken, env, tokens, i);
+        InitStringFromArrayElement(record.signature, env, sigs, i);
+        record.purchaseTime = timeValues[i];
+    }
+
+    ctx->callback(ctx->callerContext, records, !!last, 0);
+
+    if (last)
+    {
+        delete ctx;
+    }
+}
+
 struct ProductQueryContext
 {
     void                              *callerContext;
@@ -196,90 +598,455 @@ Java_com_turbulenz_turbulenz_payment_nativeProductQueryResponse
     delete ctx;
 }
 
-extern "C" void
-Java_com_turbulenz_turbulenz_payment_nativeOnReadyStatus
-(JNIEnv *env, jobject thiz, jlong context, jboolean ready)
+struct ProductListQueryContext
 {
-    LOGI("ready state updated: %s", (ready)?("true"):("false"));
+    void                                  *callerContext;
+    GooglePlayBilling::ProductListQueryCB  callback;
+};
 
-    if (0 == context)
+// Fill in product.offers from the flattened arrays (see
+// productoffers.java), advancing the offer and phase cursors.
+static void
+InitProductOffers(GooglePlayBilling::Product &product, JNIEnv *env,
+                  jint offerCount, const std::vector<jint> &phaseCounts,
+                  jobjectArray offerStrings, jobjectArray phaseStrings,
+                  const std::vector<jlong> &phaseMicros,
+                  const std::vector<jint> &phaseInts,
+                  jsize &offer, jsize &phase)
+{
+    product.offers.resize(offerCount);
+    for (jint o = 0 ; o < offerCount ; ++o, ++offer)
     {
-        LOGE("purchase query callback called with null context");
-        return;
+        GooglePlayBilling::SubscriptionOffer &out = product.offers[o];
+        InitStringFromArrayElement(out.basePlanId, env, offerStrings, 3*offer);
+        InitStringFromArrayElement(out.offerId, env, offerStrings, 3*offer + 1);
+        InitStringFromArrayElement(out.offerToken, env, offerStrings,
+                                   3*offer + 2);
+
+        out.pricingPhases.resize(phaseCounts[offer]);
+        for (jint p = 0 ; p < phaseCounts[offer] ; ++p, ++phase)
+        {
+            GooglePlayBilling::PricingPhase &pp = out.pricingPhases[p];
+            InitStringFromArrayElement(pp.price, env, phaseStrings, 3*phase);
+            InitStringFromArrayElement(pp.currency, env, phaseStrings,
+                                       3*phase + 1);
+            InitStringFromArrayElement(pp.billingPeriod, env, phaseStrings,
+                                       3*phase + 2);
+            pp.priceMicros = phaseMicros[phase];
+            pp.billingCycleCount = phaseInts[2*phase];
+            pp.recurrenceMode = phaseInts[2*phase + 1];
+        }
     }
+}
 
-    GooglePlayBilling *billing = (GooglePlayBilling *)context;
-    if (0 != billing->mReadyStatusCallback)
-    {
-        LOGI("making onreadystate callback ...");
-        billing->mReadyStatusCallback(billing->mReadyStatusContext, !!ready);
-        LOGI("back from onreadystate callback.");
-    }
-    else
+static void
+CopyIntArray(std::vector<jint> &out, JNIEnv *env, jintArray array)
+{
+    out.resize(env->GetArrayLength(array));
+    if (!out.empty())
     {
-        LOGE("!! no onreadystate callback");
+        env->GetIntArrayRegion(array, 0, (jsize )out.size(), &out[0]);
     }
 }
 
-namespace turbulenz
+static void
+CopyLongArray(std::vector<jlong> &out, JNIEnv *env, jlongArray array)
 {
+    out.resize(env->GetArrayLength(array));
+    if (!out.empty())
+    {
+        env->GetLongArrayRegion(array, 0, (jsize )out.size(), &out[0]);
+    }
+}
 
-GooglePlayBilling::GooglePlayBilling(JNIEnv *jniEnv, jclass paymentClass)
-    : mJNIEnv(jniEnv)
-    , mPaymentClass(paymentClass)
+extern "C" void
+Java_com_turbulenz_turbulenz_payment_nativeProductListQueryResponse
+(JNIEnv *env, jobject thiz, jlong context, jobjectArray skus, jintArray types,
+ jobjectArray titles, jobjectArray descriptions, jobjectArray prices,
+ jintArray offerCounts, jobjectArray offerStrings, jintArray phaseCounts,
+ jobjectArray phaseStrings, jlongArray phaseMicros, jintArray phaseInts)
 {
-    LOGI("initializing");
-
-    if (0 == jniEnv)
+    if (0 == context)
     {
-        LOGE("constructor called with null jniEnv parameter");
+        LOGE("product list query callback called with null context");
         return;
     }
 
-    if (0 == mPaymentClass)
+    ProductListQueryContext *ctx = (ProductListQueryContext *)(size_t )context;
+
+    GooglePlayBilling::ProductList products;
+
+    if (0 == skus || 0 == titles || 0 == descriptions || 0 == prices)
     {
-        static const char *paymentClassName = "com/turbulenz/turbulenz/payment";
-        jclass paymentLocal = jniEnv->FindClass(paymentClassName);
-        if (0 == paymentLocal)
-        {
-            mJNIEnv = 0;
-            LOGE("cannot find Java class");
-            return;
-        }
-        mPaymentClass = (jclass )(jniEnv->NewGlobalRef(paymentLocal));
-        jniEnv->DeleteLocalRef(paymentLocal);
+        LOGE("product list query has null arrays");
     }
-
-    jmethodID checkInitMethod =
-        jniEnv->GetStaticMethodID(mPaymentClass, "doCheckInitialized", "()Z");
-    if (0 != checkInitMethod)
+    else
     {
-        if (CallJavaMethod(checkInitMethod))
+        // Arrays are parallel.  If a title is null, there is no
+        // such product.  Subscription offers are only present if all
+        // of the offer arrays are.
+
+        const bool hasOffers = (0 != offerCounts && 0 != offerStrings &&
+                                0 != phaseCounts && 0 != phaseStrings &&
+                                0 != phaseMicros && 0 != phaseInts);
+        std::vector<jint> typeValues;
+        std::vector<jint> offerCountValues;
+        std::vector<jint> phaseCountValues;
+        std::vector<jlong> phaseMicroValues;
+        std::vector<jint> phaseIntValues;
+        if (0 != types)
         {
-            mDoCheckReadyMethod = jniEnv->GetStaticMethodID
-                (mPaymentClass, "doCheckReady", "(J)Z");
-            mDoPurchaseMethod = jniEnv->GetStaticMethodID
-                (mPaymentClass, "doPurchase",
-                 "(Ljava/lang/String;Ljava/lang/String;ZJ)Z");
-            mDoQueryPurchasesMethod = jniEnv->GetStaticMethodID
-                (mPaymentClass, "doQueryPurchases", "(J)Z");
-            mDoQueryProductMethod = jniEnv->GetStaticMethodID
-                (mPaymentClass, "doQueryProduct", "(Ljava/lang/String;J)Z");
-            mDoConsumeMethod = jniEnv->GetStaticMethodID
-                (mPaymentClass, "doConsume", "(Ljava/lang/String;)Z");
+            CopyIntArray(typeValues, env, types);
+        }
+        if (hasOffers)
+        {
+            CopyIntArray(offerCountValues, env, offerCounts);
+            CopyIntArray(phaseCountValues, env, phaseCounts);
+            CopyLongArray(phaseMicroValues, env, phaseMicros);
+            CopyIntArray(phaseIntValues, env, phaseInts);
+        }
 
-            if (0 == mDoCheckReadyMethod     ||
-                0 == mDoQueryPurchasesMethod ||
-                0 == mDoQueryProductMethod   ||
-                0 == mDoPurchaseMethod       ||
-                0 == mDoConsumeMethod)
+        const jsize count = env->GetArrayLength(skus);
+        products.resize(count);
+        jsize offer = 0;
+        jsize phase = 0;
+        for (jsize i = 0 ; i < count ; ++i)
+        {
+            GooglePlayBilling::Product &product = products[i];
+            InitStringFromArrayElement(product.sku, env, skus, i);
+            InitStringFromArrayElement(product.title, env, titles, i);
+            if (i < (jsize )typeValues.size())
             {
-                LOGE("Cannot find all methods on Java class");
+                product.type = (GooglePlayBilling::ProductType )typeValues[i];
             }
-            else
+            if (!product.title.empty())
             {
-                LOGI("initialized");
-                return;
+                InitStringFromArrayElement(product.description, env,
+                                           descriptions, i);
+                InitStringFromArrayElement(product.price, env, prices, i);
+            }
+            if (i < (jsize )offerCountValues.size())
+            {
+                InitProductOffers(product, env, offerCountValues[i],
+                                  phaseCountValues, offerStrings,
+                                  phaseStrings, phaseMicroValues,
+                                  phaseIntValues, offer, phase);
+            }
+        }
+    }
+
+    ctx->callback(ctx->callerContext, products);
+
+    delete ctx;
+}
+
+struct CatalogContext
+{
+    void                         *callerContext;
+    GooglePlayBilling::CatalogCB  callback;
+};
+
+extern "C" void
+Java_com_turbulenz_turbulenz_payment_nativeCatalogResponse
+(JNIEnv *env, jobject thiz, jlong context, jint update, jobjectArray skus,
+ jobjectArray titles, jobjectArray descriptions, jobjectArray prices,
+ jobjectArray currencies)
+{
+    if (0 == context)
+    {
+        LOGE("catalog callback called with null context");
+        return;
+    }
+
+    CatalogContext *ctx = (CatalogContext *)(size_t )context;
+
+    GooglePlayBilling::ProductList products;
+    if (0 != skus && 0 != titles && 0 != descriptions && 0 != prices &&
+        0 != currencies)
+    {
+        const jsize count = env->GetArrayLength(skus);
+        products.resize(count);
+        for (jsize i = 0 ; i < count ; ++i)
+        {
+            GooglePlayBilling::Product &product = products[i];
+            InitStringFromArrayElement(product.sku, env, skus, i);
+            InitStringFromArrayElement(product.title, env, titles, i);
+            if (!product.title.empty())
+            {
+                InitStringFromArrayElement(product.description, env,
+                                           descriptions, i);
+                InitStringFromArrayElement(product.price, env, prices, i);
+                InitStringFromArrayElement(product.currency, env,
+                                           currencies, i);
+            }
+        }
+    }
+    else
+    {
+        LOGE("catalog callback has null arrays");
+    }
+
+    const GooglePlayBilling::CatalogUpdate catalogUpdate =
+        (GooglePlayBilling::CatalogUpdate )update;
+    ctx->callback(ctx->callerContext, catalogUpdate, products);
+
+    // The snapshot is always followed by a delta or a failure
+
+    if (GooglePlayBilling::CatalogSnapshot != catalogUpdate)
+    {
+        delete ctx;
+    }
+}
+
+extern "C" void
+Java_com_turbulenz_turbulenz_payment_nativeOnReadyStatus
+(JNIEnv *env, jobject thiz, jlong context, jboolean ready)
+{
+    LOGI("ready state updated: %s", (ready)?("true"):("false"));
+
+    if (0 == context)
+    {
+        LOGE("purchase query callback called with null context");
+        return;
+    }
+
+    GooglePlayBilling *billing = (GooglePlayBilling *)context;
+    if (0 != billing->mReadyStatusCallback)
+    {
+        LOGI("making onreadystate callback ...");
+        billing->mReadyStatusCallback(billing->mReadyStatusContext, !!ready);
+        LOGI("back from onreadystate callback.");
+    }
+    else
+    {
+        LOGE("!! no onreadystate callback");
+    }
+}
+
+struct TokenContext
+{
+    void                               *callerContext;
+    GooglePlayBilling::TokenCompleteCB  callback;
+};
+
+extern "C" void
+Java_com_turbulenz_turbulenz_payment_nativeTokenResponse
+(JNIEnv *env, jobject thiz, jlong context, jint op, jstring token,
+ jint responseCode, jint remaining)
+{
+    if (0 == context)
+    {
+        LOGE("token callback called with null context");
+        return;
+    }
+
+    TokenContext *ctx = (TokenContext *)(size_t )context;
+
+    const char *tokenChars = (0 == token)?(0):(env->GetStringUTFChars(token, 0));
+    ctx->callback(ctx->callerContext, (GooglePlayBilling::TokenOp )op,
+                  (0 == tokenChars)?(""):(tokenChars), (int )responseCode,
+                  (size_t )remaining);
+    if (0 != tokenChars)
+    {
+        env->ReleaseStringUTFChars(token, tokenChars);
+    }
+
+    if (0 >= remaining)
+    {
+        delete ctx;
+    }
+}
+
+// Mirror of the Java ready state, pushed by payment.publishReadyWord.
+// Bit 0 is the ready flag, the other bits count changes.
+
+static std::atomic<uint32_t> sReadyWord(0);
+
+extern "C" void
+Java_com_turbulenz_turbulenz_payment_nativeSetReadyWord
+(JNIEnv *env, jclass clazz, jint word)
+{
+    sReadyWord.store((uint32_t )word, std::memory_order_release);
+}
+
+// JNIEnv pointers are only valid on the thread they belong to.  Calls
+// can come from any native thread, so each thread gets its own env.
+// Threads that were not already attached are attached on first use,
+// and detached by the TLS destructor when they exit.
+
+static JavaVM         *sJavaVM = 0;
+static pthread_key_t   sEnvKey;
+static pthread_once_t  sEnvKeyOnce = PTHREAD_ONCE_INIT;
+
+static void
+DetachThreadEnv(void *env)
+{
+    if (0 != env && 0 != sJavaVM)
+    {
+        sJavaVM->DetachCurrentThread();
+    }
+}
+
+static void
+CreateEnvKey()
+{
+    pthread_key_create(&sEnvKey, DetachThreadEnv);
+}
+
+namespace turbulenz
+{
+
+JNIEnv *
+GooglePlayBilling::GetJNIEnv()
+{
+    if (0 == mJavaVM)
+    {
+        return 0;
+    }
+
+    pthread_once(&sEnvKeyOnce, CreateEnvKey);
+    JNIEnv *env = (JNIEnv *)pthread_getspecific(sEnvKey);
+    if (0 != env)
+    {
+        return env;
+    }
+
+    // Java threads (and threads attached elsewhere) already have an
+    // env, which we must not detach.
+
+    if (JNI_OK == mJavaVM->GetEnv((void **)&env, JNI_VERSION_1_6))
+    {
+        return env;
+    }
+
+    LOGI("attaching thread to JavaVM");
+    // The NDK and JDK headers disagree on the type of the first
+    // argument.
+#if defined(__ANDROID__)
+    const jint attached = mJavaVM->AttachCurrentThread(&env, 0);
+#else
+    const jint attached = mJavaVM->AttachCurrentThread((void **)&env, 0);
+#endif
+    if (JNI_OK != attached)
+    {
+        LOGE("failed to attach thread to JavaVM");
+        return 0;
+    }
+    pthread_setspecific(sEnvKey, env);
+    return env;
+}
+
+GooglePlayBilling::GooglePlayBilling(JNIEnv *jniEnv, jclass paymentClass)
+    : mJavaVM(0)
+    , mPaymentClass(paymentClass)
+    , mStringClass(0)
+{
+    LOGI("initializing");
+
+    if (0 == jniEnv)
+    {
+        LOGE("constructor called with null jniEnv parameter");
+        return;
+    }
+
+    if (JNI_OK != jniEnv->GetJavaVM(&mJavaVM))
+    {
+        mJavaVM = 0;
+        LOGE("cannot get JavaVM");
+        return;
+    }
+    sJavaVM = mJavaVM;
+
+    if (0 == mPaymentClass)
+    {
+        static const char *paymentClassName = "com/turbulenz/turbulenz/payment";
+        jclass paymentLocal = jniEnv->FindClass(paymentClassName);
+        if (0 == paymentLocal)
+        {
+            mJavaVM = 0;
+            LOGE("cannot find Java class");
+            return;
+        }
+        mPaymentClass = (jclass )(jniEnv->NewGlobalRef(paymentLocal));
+        jniEnv->DeleteLocalRef(paymentLocal);
+    }
+
+    jmethodID checkInitMethod =
+        jniEnv->GetStaticMethodID(mPaymentClass, "doCheckInitialized", "()Z");
+    if (0 != checkInitMethod)
+    {
+        if (CallJavaMethod(checkInitMethod))
+        {
+            mDoCheckReadyMethod = jniEnv->GetStaticMethodID
+                (mPaymentClass, "doCheckReady", "(J)Z");
+            mDoPurchaseMethod = jniEnv->GetStaticMethodID
+                (mPaymentClass, "doPurchase",
+                 "(Ljava/lang/String;Ljava/lang/String;ZJ)Z");
+            mDoPurchaseOfferMethod = jniEnv->GetStaticMethodID
+                (mPaymentClass, "doPurchaseOffer",
+                 "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;J)Z");
+            mDoQueryPurchasesMethod = jniEnv->GetStaticMethodID
+                (mPaymentClass, "doQueryPurchases", "(J)Z");
+            mDoQueryIncompletePurchasesMethod = jniEnv->GetStaticMethodID
+                (mPaymentClass, "doQueryIncompletePurchases", "(J)Z");
+            mDoQueryPurchaseChangesMethod = jniEnv->GetStaticMethodID
+                (mPaymentClass, "doQueryPurchaseChanges", "(ZJ)Z");
+            mDoQueryPurchaseHistoryMethod = jniEnv->GetStaticMethodID
+                (mPaymentClass, "doQueryPurchaseHistory", "(J)Z");
+            mDoQueryProductMethod = jniEnv->GetStaticMethodID
+                (mPaymentClass, "doQueryProduct", "(Ljava/lang/String;J)Z");
+            mDoQueryProductsMethod = jniEnv->GetStaticMethodID
+                (mPaymentClass, "doQueryProducts", "([Ljava/lang/String;J)Z");
+            mDoPrefetchProductsMethod = jniEnv->GetStaticMethodID
+                (mPaymentClass, "doPrefetchProducts", "([Ljava/lang/String;)Z");
+            mDoQueryCatalogMethod = jniEnv->GetStaticMethodID
+                (mPaymentClass, "doQueryCatalog", "([Ljava/lang/String;J)Z");
+            mDoConsumeMethod = jniEnv->GetStaticMethodID
+                (mPaymentClass, "doConsume", "(Ljava/lang/String;)Z");
+            mDoGetMetricsMethod = jniEnv->GetStaticMethodID
+                (mPaymentClass, "doGetMetrics", "()[J");
+            mDoConsumePurchasesMethod = jniEnv->GetStaticMethodID
+                (mPaymentClass, "doConsumePurchases", "([Ljava/lang/String;J)Z");
+            mDoAcknowledgePurchasesMethod = jniEnv->GetStaticMethodID
+                (mPaymentClass, "doAcknowledgePurchases", "([Ljava/lang/String;J)Z");
+            mWarmUpMethod = jniEnv->GetStaticMethodID
+                (mPaymentClass, "warmUp", "()Z");
+            jmethodID enableReadyWordMethod = jniEnv->GetStaticMethodID
+                (mPaymentClass, "doEnableReadyWord", "()Z");
+
+            jclass stringLocal = jniEnv->FindClass("java/lang/String");
+            if (0 != stringLocal)
+            {
+                mStringClass = (jclass )(jniEnv->NewGlobalRef(stringLocal));
+                jniEnv->DeleteLocalRef(stringLocal);
+            }
+
+            if (0 == mDoCheckReadyMethod               ||
+                0 == mDoQueryPurchasesMethod           ||
+                0 == mDoQueryIncompletePurchasesMethod ||
+                0 == mDoQueryPurchaseChangesMethod     ||
+                0 == mDoQueryPurchaseHistoryMethod     ||
+                0 == mDoQueryProductMethod             ||
+                0 == mDoQueryProductsMethod            ||
+                0 == mDoPrefetchProductsMethod         ||
+                0 == mDoQueryCatalogMethod             ||
+                0 == mDoPurchaseMethod                 ||
+                0 == mDoPurchaseOfferMethod            ||
+                0 == mDoConsumeMethod                  ||
+                0 == mDoGetMetricsMethod               ||
+                0 == mDoConsumePurchasesMethod         ||
+                0 == mDoAcknowledgePurchasesMethod     ||
+                0 == mWarmUpMethod                     ||
+                0 == enableReadyWordMethod             ||
+                0 == mStringClass)
+            {
+                LOGE("Cannot find all methods on Java class");
+            }
+            else
+            {
+                CallJavaMethod(enableReadyWordMethod);
+                LOGI("initialized");
+                return;
             }
         }
         else
@@ -292,15 +1059,21 @@ GooglePlayBilling::GooglePlayBilling(JNIEnv *jniEnv, jclass paymentClass)
         LOGE("cannot find 'doCheckInitialized' method");
     }
 
+    if (0 != mStringClass)
+    {
+        jniEnv->DeleteGlobalRef(mStringClass);
+        mStringClass = 0;
+    }
     jniEnv->DeleteGlobalRef(mPaymentClass);
     mPaymentClass = 0;
-    mJNIEnv = 0;
+    mJavaVM = 0;
 }
 
 GooglePlayBilling::~GooglePlayBilling()
 {
     LOGI("shutting down");
-    if (0 != mJNIEnv)
+    JNIEnv *env = GetJNIEnv();
+    if (0 != env)
     {
         if (0 != mPaymentClass)
         {
@@ -308,16 +1081,22 @@ GooglePlayBilling::~GooglePlayBilling()
 
             CallJavaMethod(mDoCheckReadyMethod, (jlong )0);
 
-            mJNIEnv->DeleteGlobalRef(mPaymentClass);
+            env->DeleteGlobalRef(mPaymentClass);
             mPaymentClass = 0;
         }
+        if (0 != mStringClass)
+        {
+            env->DeleteGlobalRef(mStringClass);
+            mStringClass = 0;
+        }
     }
 }
 
 bool
 GooglePlayBilling::CallJavaMethod(jmethodID method, ...)
 {
-    if (0 == mJNIEnv)
+    JNIEnv *env = GetJNIEnv();
+    if (0 == env)
     {
         LOGE("attempt to call Java with no JNI env set");
         return false;
@@ -338,13 +1117,10 @@ GooglePlayBilling::CallJavaMethod(jmethodID method, ...)
 
     LOGI("making call to Java ...");
     jboolean ret =
-        mJNIEnv->CallStaticBooleanMethodV(mPaymentClass, method, args);
-    jthrowable exc = mJNIEnv->ExceptionOccurred();
-    if (exc)
+        env->CallStaticBooleanMethodV(mPaymentClass, method, args);
+    if (ClearJavaException(env))
     {
-        LOGE("!! exception in Java call:");
-        mJNIEnv->ExceptionDescribe();
-        mJNIEnv->ExceptionClear();
+        ret = JNI_FALSE;
     }
     LOGI("done");
 
@@ -353,6 +1129,56 @@ GooglePlayBilling::CallJavaMethod(jmethodID method, ...)
     return !!ret;
 }
 
+jobject
+GooglePlayBilling::CallJavaObjectMethod(JNIEnv *env, jmethodID method, ...)
+{
+    if (0 == mPaymentClass)
+    {
+        LOGE("attempt to call Java with no reference to payment class");
+        return 0;
+    }
+    if (0 == method)
+    {
+        LOGE("attempt to call null Java method");
+        return 0;
+    }
+
+    va_list args;
+    va_start(args, method);
+
+    LOGI("making call to Java ...");
+    jobject ret = env->CallStaticObjectMethodV(mPaymentClass, method, args);
+    if (ClearJavaException(env))
+    {
+        if (0 != ret)
+        {
+            env->DeleteLocalRef(ret);
+        }
+        ret = 0;
+    }
+    LOGI("done");
+
+    va_end(args);
+
+    return ret;
+}
+
+bool
+GooglePlayBilling::ClearJavaException(JNIEnv *env)
+{
+    jthrowable exc = env->ExceptionOccurred();
+    if (0 == exc)
+    {
+        return false;
+    }
+
+    LOGE("!! exception in Java call:");
+    env->ExceptionDescribe();
+    env->ExceptionClear();
+    env->DeleteLocalRef(exc);
+    return true;
+}
+
 bool
 GooglePlayBilling::QueryPurchases(void *ctx,
                                   GooglePlayBilling::PurchaseQueryCB callback)
@@ -370,11 +1196,85 @@ GooglePlayBilling::QueryPurchases(void *ctx,
     return true;
 }
 
+bool
+GooglePlayBilling::QueryPurchaseChanges(void *ctx,
+                                        GooglePlayBilling::PurchaseChangesCB callback,
+                                        bool full)
+{
+    PurchaseChangesContext *changesCtx = new PurchaseChangesContext;
+    changesCtx->callerContext = ctx;
+    changesCtx->callback = callback;
+
+    if (!CallJavaMethod(mDoQueryPurchaseChangesMethod, (jboolean )full,
+                        (jlong )(size_t )changesCtx))
+    {
+        delete changesCtx;
+        return false;
+    }
+
+    return true;
+}
+
+bool
+GooglePlayBilling::QueryPurchaseHistory(void *ctx,
+                                        GooglePlayBilling::PurchaseHistoryCB callback)
+{
+    PurchaseHistoryContext *historyCtx = new PurchaseHistoryContext;
+    historyCtx->callerContext = ctx;
+    historyCtx->callback = callback;
+
+    if (!CallJavaMethod(mDoQueryPurchaseHistoryMethod,
+                        (jlong )(size_t )historyCtx))
+    {
+        delete historyCtx;
+        return false;
+    }
+
+    return true;
+}
+
+bool
+GooglePlayBilling::QueryIncompletePurchases(void *ctx,
+                                            GooglePlayBilling::PurchaseQueryCB callback)
+{
+    QueryContext *queryCtx = new QueryContext;
+    queryCtx->callerContext = ctx;
+    queryCtx->callback = callback;
+
+    if (!CallJavaMethod(mDoQueryIncompletePurchasesMethod,
+                        (jlong )(size_t )queryCtx))
+    {
+        delete queryCtx;
+        return false;
+    }
+
+    return true;
+}
+
+bool
+GooglePlayBilling::QueryPurchaseViews(void *ctx,
+                                      GooglePlayBilling::PurchaseViewQueryCB callback)
+{
+    QueryContext *queryCtx = new QueryContext;
+    queryCtx->callerContext = ctx;
+    queryCtx->callback = 0;
+    queryCtx->viewCallback = callback;
+
+    if (!CallJavaMethod(mDoQueryPurchasesMethod, (jlong )(size_t )queryCtx))
+    {
+        delete queryCtx;
+        return false;
+    }
+
+    return true;
+}
+
 bool
 GooglePlayBilling::QueryProduct(void *ctx, const char *sku,
                                 GooglePlayBilling::ProductQueryCB callback)
 {
-    if (0 == mJNIEnv)
+    JNIEnv *env = GetJNIEnv();
+    if (0 == env)
     {
         LOGE("call to QueryProduct before initialization");
         return false;
@@ -384,9 +1284,11 @@ GooglePlayBilling::QueryProduct(void *ctx, const char *sku,
     productQueryCtx->callerContext = ctx;
     productQueryCtx->callback = callback;
 
-    jstring jSKU = mJNIEnv->NewStringUTF(sku);
+    jstring jSKU = env->NewStringUTF(sku);
     const jlong jCtx = (jlong )productQueryCtx;
-    if (!CallJavaMethod(mDoQueryProductMethod, jSKU, jCtx))
+    const bool ret = CallJavaMethod(mDoQueryProductMethod, jSKU, jCtx);
+    env->DeleteLocalRef(jSKU);
+    if (!ret)
     {
         delete productQueryCtx;
         return false;
@@ -395,6 +1297,136 @@ GooglePlayBilling::QueryProduct(void *ctx, const char *sku,
     return true;
 }
 
+jobjectArray
+GooglePlayBilling::NewStringArray(JNIEnv *env,
+                                  const std::vector<std::string> &strings)
+{
+    jobjectArray jArray =
+        env->NewObjectArray((jsize )strings.size(), mStringClass, 0);
+    if (0 == jArray)
+    {
+        return 0;
+    }
+
+    for (size_t i = 0 ; i < strings.size() ; ++i)
+    {
+        jstring jStr = env->NewStringUTF(strings[i].c_str());
+        env->SetObjectArrayElement(jArray, (jsize )i, jStr);
+        env->DeleteLocalRef(jStr);
+    }
+
+    return jArray;
+}
+
+bool
+GooglePlayBilling::QueryProducts(void *ctx,
+                                 const std::vector<std::string> &skus,
+                                 GooglePlayBilling::ProductListQueryCB callback)
+{
+    JNIEnv *env = GetJNIEnv();
+    if (0 == env)
+    {
+        LOGE("call to QueryProducts before initialization");
+        return false;
+    }
+
+    if (skus.empty())
+    {
+        LOGE("QueryProducts called with no skus");
+        return false;
+    }
+
+    jobjectArray jSKUs = NewStringArray(env, skus);
+    if (0 == jSKUs)
+    {
+        LOGE("failed to allocate sku array");
+        return false;
+    }
+
+    ProductListQueryContext *productListQueryCtx = new ProductListQueryContext;
+    productListQueryCtx->callerContext = ctx;
+    productListQueryCtx->callback = callback;
+
+    const jlong jCtx = (jlong )(size_t )productListQueryCtx;
+    const bool ret = CallJavaMethod(mDoQueryProductsMethod, jSKUs, jCtx);
+    env->DeleteLocalRef(jSKUs);
+    if (!ret)
+    {
+        delete productListQueryCtx;
+        return false;
+    }
+
+    return true;
+}
+
+bool
+GooglePlayBilling::PrefetchProducts(const std::vector<std::string> &skus)
+{
+    JNIEnv *env = GetJNIEnv();
+    if (0 == env)
+    {
+        LOGE("call to PrefetchProducts before initialization");
+        return false;
+    }
+
+    if (skus.empty())
+    {
+        return true;
+    }
+
+    jobjectArray jSKUs = NewStringArray(env, skus);
+    if (0 == jSKUs)
+    {
+        LOGE("failed to allocate sku array");
+        return false;
+    }
+
+    const bool ret = CallJavaMethod(mDoPrefetchProductsMethod, jSKUs);
+    env->DeleteLocalRef(jSKUs);
+    return ret;
+}
+
+bool
+GooglePlayBilling::QueryCatalog(void *ctx,
+                                const std::vector<std::string> &skus,
+                                GooglePlayBilling::CatalogCB callback)
+{
+    JNIEnv *env = GetJNIEnv();
+    if (0 == env)
+    {
+        LOGE("call to QueryCatalog before initialization");
+        return false;
+    }
+
+    if (skus.empty())
+    {
+        LOGE("QueryCatalog called with no skus");
+        return false;
+    }
+
+    jobjectArray jSKUs = NewStringArray(env, skus);
+    if (0 == jSKUs)
+    {
+        LOGE("failed to allocate sku array");
+        return false;
+    }
+
+    CatalogContext *catalogCtx = new CatalogContext;
+    catalogCtx->callerContext = ctx;
+    catalogCtx->callback = callback;
+
+    const jlong jCtx = (jlong )(size_t )catalogCtx;
+    const bool ret = CallJavaMethod(mDoQueryCatalogMethod, jSKUs, jCtx);
+    env->DeleteLocalRef(jSKUs);
+    if (!ret)
+    {
+        delete catalogCtx;
+        return false;
+    }
+
+    return true;
+}
+
 bool
 GooglePlayBilling::ConfirmPurchase(void *ctx, const char *sku,
                                    const char *clientToken,
@@ -402,7 +1434,8 @@ GooglePlayBilling::ConfirmPurchase(void *ctx, const char *sku,
                                    GooglePlayBilling::PurchaseSuccessCB success,
                                    GooglePlayBilling::PurchaseFailureCB failure)
 {
-    if (0 == mJNIEnv)
+    JNIEnv *env = GetJNIEnv();
+    if (0 == env)
     {
         LOGE("call to ConfirmPurchase before initialization");
         return false;
@@ -413,13 +1446,17 @@ GooglePlayBilling::ConfirmPurchase(void *ctx, const char *sku,
     purchaseCtx->successCallback = success;
     purchaseCtx->failureCallback = failure;
 
-    jstring jSKU = mJNIEnv->NewStringUTF(sku);
-    jstring jClientToken = mJNIEnv->NewStringUTF(clientToken);
+    jstring jSKU = env->NewStringUTF(sku);
+    jstring jClientToken = env->NewStringUTF(clientToken);
     jboolean jIsConsumable = isConsumable;
     jlong jCtx = (jlong )(size_t )purchaseCtx;
 
     LOGI("Calling Java DoPurchase method ...");
-    if (!CallJavaMethod(mDoPurchaseMethod, jSKU, jClientToken, jIsConsumable, jCtx))
+    const bool ret = CallJavaMethod(mDoPurchaseMethod, jSKU, jClientToken,
+                                    jIsConsumable, jCtx);
+    env->DeleteLocalRef(jSKU);
+    env->DeleteLocalRef(jClientToken);
+    if (!ret)
     {
         LOGI("DoPurchase method returned FALSE");
         delete purchaseCtx;
@@ -430,19 +1467,124 @@ GooglePlayBilling::ConfirmPurchase(void *ctx, const char *sku,
     return true;
 }
 
+bool
+GooglePlayBilling::ConfirmPurchaseOffer(void *ctx, const char *sku,
+                                        const char *offerToken,
+                                        const char *clientToken,
+                                        GooglePlayBilling::PurchaseSuccessCB success,
+                                        GooglePlayBilling::PurchaseFailureCB failure)
+{
+    JNIEnv *env = GetJNIEnv();
+    if (0 == env)
+    {
+        LOGE("call to ConfirmPurchaseOffer before initialization");
+        return false;
+    }
+
+    PurchaseContext *purchaseCtx = new PurchaseContext;
+    purchaseCtx->callerContext = ctx;
+    purchaseCtx->successCallback = success;
+    purchaseCtx->failureCallback = failure;
+
+    jstring jSKU = env->NewStringUTF(sku);
+    jstring jOfferToken = (0 == offerToken)?(0):(env->NewStringUTF(offerToken));
+    jstring jClientToken = env->NewStringUTF(clientToken);
+    jlong jCtx = (jlong )(size_t )purchaseCtx;
+
+    const bool ret = CallJavaMethod(mDoPurchaseOfferMethod, jSKU, jOfferToken,
+                                    jClientToken, jCtx);
+    env->DeleteLocalRef(jSKU);
+    if (0 != jOfferToken)
+    {
+        env->DeleteLocalRef(jOfferToken);
+    }
+    env->DeleteLocalRef(jClientToken);
+    if (!ret)
+    {
+        LOGI("DoPurchaseOffer method returned FALSE");
+        delete purchaseCtx;
+        return false;
+    }
+
+    return true;
+}
+
 bool
 GooglePlayBilling::ConsumePurchase(const char *googleToken)
 {
     // TODO: async?
 
-    if (0 == mJNIEnv)
+    JNIEnv *env = GetJNIEnv();
+    if (0 == env)
     {
         LOGE("call to ConsumePurchase before initialization");
         return false;
     }
 
-    jstring jGoogleToken = mJNIEnv->NewStringUTF(googleToken);
-    return CallJavaMethod(mDoConsumeMethod, jGoogleToken);
+    jstring jGoogleToken = env->NewStringUTF(googleToken);
+    const bool ret = CallJavaMethod(mDoConsumeMethod, jGoogleToken);
+    env->DeleteLocalRef(jGoogleToken);
+    return ret;
+}
+
+bool
+GooglePlayBilling::ConsumePurchases(void *ctx,
+                                    const std::vector<std::string> &tokens,
+                                    GooglePlayBilling::TokenCompleteCB callback)
+{
+    return CallTokenMethod(mDoConsumePurchasesMethod, "ConsumePurchases",
+                           ctx, tokens, callback);
+}
+
+bool
+GooglePlayBilling::AcknowledgePurchases(void *ctx,
+                                        const std::vector<std::string> &tokens,
+                                        GooglePlayBilling::TokenCompleteCB callback)
+{
+    return CallTokenMethod(mDoAcknowledgePurchasesMethod,
+                           "AcknowledgePurchases", ctx, tokens, callback);
+}
+
+bool
+GooglePlayBilling::CallTokenMethod(jmethodID method, const char *name,
+                                   void *ctx,
+                                   const std::vector<std::string> &tokens,
+                                   GooglePlayBilling::TokenCompleteCB callback)
+{
+    JNIEnv *env = GetJNIEnv();
+    if (0 == env)
+    {
+        LOGE("call to %s before initialization", name);
+        return false;
+    }
+
+    if (tokens.empty())
+    {
+        LOGE("%s called with no tokens", name);
+        return false;
+    }
+
+    jobjectArray jTokens = NewStringArray(env, tokens);
+    if (0 == jTokens)
+    {
+        LOGE("failed to allocate token array");
+        return false;
+    }
+
+    TokenContext *tokenCtx = new TokenContext;
+    tokenCtx->callerContext = ctx;
+    tokenCtx->callback = callback;
+
+    const jlong jCtx = (jlong )(size_t )tokenCtx;
+    const bool ret = CallJavaMethod(method, jTokens, jCtx);
+    env->DeleteLocalRef(jTokens);
+    if (!ret)
+    {
+        delete tokenCtx;
+        return false;
+    }
+
+    return true;
 }
 
 bool
@@ -462,4 +1604,103 @@ GooglePlayBilling::SetReadyStatusCallback(void *ctx, ReadyStatusCB callback)
     return CallJavaMethod(mDoCheckReadyMethod, jCtx);
 }
 
+bool
+GooglePlayBilling::IsReady() const
+{
+    return 0 != (GetReadyWord() & 1);
+}
+
+uint32_t
+GooglePlayBilling::GetReadyWord() const
+{
+    return sReadyWord.load(std::memory_order_acquire);
+}
+
+bool
+GooglePlayBilling::WarmUp()
+{
+    return CallJavaMethod(mWarmUpMethod);
+}
+
+bool
+GooglePlayBilling::GetMetrics(std::vector<OperationMetrics> &metrics)
+{
+    metrics.clear();
+
+    JNIEnv *env = GetJNIEnv();
+    if (0 == env)
+    {
+        LOGE("call to GetMetrics before initialization");
+        return false;
+    }
+
+    jlongArray jPacked = (jlongArray )
+        CallJavaObjectMethod(env, mDoGetMetricsMethod);
+    if (0 == jPacked)
+    {
+        LOGE("GetMetrics: no data");
+        return false;
+    }
+
+    // Layout is documented at billingmetrics.pack()
+
+    const jsize length = env->GetArrayLength(jPacked);
+    std::vector<jlong> packed(length);
+    if (0 < length)
+    {
+        env->GetLongArrayRegion(jPacked, 0, length, &packed[0]);
+    }
+    env->DeleteLocalRef(jPacked);
+
+    if (2 > length || 1 != packed[0])
+    {
+        LOGE("GetMetrics: unrecognized data");
+        return false;
+    }
+
+    const jlong opCount = packed[1];
+    jsize n = 2;
+    metrics.reserve((size_t )opCount);
+    for (jlong op = 0 ; op < opCount ; ++op)
+    {
+        if (n + 7 > length)
+        {
+            break;
+        }
+
+        OperationMetrics m;
+        m.op        = (MetricOp )op;
+        m.count     = (uint64_t )packed[n++];
+        m.errors    = (uint64_t )packed[n++];
+        m.sumMicros = (uint64_t )packed[n++];
+        m.p50Micros = (uint64_t )packed[n++];
+        m.p99Micros = (uint64_t )packed[n++];
+        m.maxMicros = (uint64_t )packed[n++];
+
+        const jlong codeCount = packed[n++];
+        if (n + 2 * codeCount > length)
+        {
+            break;
+        }
+        m.responseCodes.reserve((size_t )codeCount);
+        for (jlong c = 0 ; c < codeCount ; ++c)
+        {
+            const int code = (int )packed[n++];
+            m.responseCodes.push_back
+                (std::make_pair(code, (uint64_t )packed[n++]));
+        }
+
+        metrics.push_back(m);
+    }
+
+    if ((jlong )metrics.size() != opCount)
+    {
+        LOGE("GetMetrics: truncated data");
+        metrics.clear();
+        return false;
+    }
+
+    return true;
+}
+
 } // namespace turbulenz
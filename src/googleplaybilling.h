@@ -4,6 +4,7 @@
 #ifndef __TURBULENZ_ANDROID_PAYMENT_H__
 #define __TURBULENZ_ANDROID_PAYMENT_H__
 
+#include <stdint.h>
 #include <string>
 #include <vector>
 #include <jni.h>
@@ -14,12 +15,53 @@ namespace turbulenz
 class GooglePlayBilling
 {
 public:
+    enum ProductType
+    {
+        ProductInApp        = 0,
+        ProductSubscription = 1,
+    };
+
+    /// Values of PricingPhase::recurrenceMode
+    enum RecurrenceMode
+    {
+        InfiniteRecurring   = 1,
+        FiniteRecurring     = 2,
+        NonRecurring        = 3,
+    };
+
+    struct PricingPhase
+    {
+        std::string   price;            ///< Formatted, e.g. "$4.99"
+        int64_t       priceMicros;
+        std::string   currency;
+        std::string   billingPeriod;    ///< ISO 8601, e.g. "P1M"
+        int           billingCycleCount;
+        int           recurrenceMode;
+    };
+
+    /// A base plan (offerId empty) or an offer on a base plan.  Pass
+    /// offerToken to ConfirmPurchaseOffer to buy it.
+    struct SubscriptionOffer
+    {
+        std::string                 basePlanId;
+        std::string                 offerId;
+        std::string                 offerToken;
+        std::vector<PricingPhase>   pricingPhases;
+    };
+
     struct Product
     {
+        Product() : type(ProductInApp) {}
+
         std::string   sku;
         std::string   title;
         std::string   description;
-        std::string   price;
+        std::string   price;        ///< For subscriptions, the base plan's recurring price
+        std::string   currency;     ///< Only set for catalog products
+        ProductType   type;
+
+        /// Only set for subscriptions returned by QueryProducts
+        std::vector<SubscriptionOffer>  offers;
     };
 
     struct Purchase
@@ -31,23 +73,159 @@ public:
         std::string   signature;
     };
 
+    /// A string owned by the billing code.  'data' is 0-terminated
+    /// (modified UTF-8), 'length' excludes the terminator.
+    struct StringView
+    {
+        const char   *data;
+        size_t        length;
+    };
+
+    /// Same fields as Purchase, without copies.  Only valid for the
+    /// duration of the callback it is passed to.
+    struct PurchaseView
+    {
+        StringView    sku;
+        StringView    details;
+        StringView    googleToken;
+        StringView    clientToken;
+        StringView    signature;
+    };
+
+    typedef std::vector<Product> ProductList;
+
     typedef std::vector<Purchase> PurchaseList;
 
+    enum PurchaseChangeType
+    {
+        PurchaseAdded   = 0,
+        PurchaseRemoved = 1,    ///< Only sku and googleToken are set
+        PurchaseChanged = 2,    ///< e.g. pending -> purchased
+    };
+
+    struct PurchaseChange
+    {
+        PurchaseChangeType  type;
+        Purchase            purchase;
+    };
+
+    typedef std::vector<PurchaseChange> PurchaseChangeList;
+
+    struct PurchaseHistoryRecord
+    {
+        std::string   sku;
+        std::string   details;
+        std::string   googleToken;
+        std::string   signature;
+        int64_t       purchaseTime;     ///< ms since the epoch
+    };
+
+    typedef std::vector<PurchaseHistoryRecord> PurchaseHistoryList;
+
+    enum CatalogUpdate
+    {
+        CatalogSnapshot      = 0,   ///< Stored (possibly stale) products
+        CatalogDelta         = 1,   ///< Fresh products that changed
+        CatalogRefreshFailed = 2,   ///< The store could not be queried
+    };
+
+    /// Operations covered by GetMetrics.  Keep in sync with the
+    /// OP_ constants in billingmetrics.java.
+    enum MetricOp
+    {
+        MetricConnect        = 0,
+        MetricQueryProduct   = 1,
+        MetricQueryPurchases = 2,
+        MetricLaunchFlow     = 3,
+        MetricPurchaseResult = 4,
+        MetricAcknowledge    = 5,
+        MetricConsume        = 6,
+        MetricQueryHistory   = 7,
+        MetricOpCount        = 8,
+    };
+
+    /// Counters and latencies (in microseconds) for one operation.
+    /// Percentiles come from a histogram and are accurate to about
+    /// 25%.
+    struct OperationMetrics
+    {
+        MetricOp      op;
+        uint64_t      count;
+        uint64_t      errors;       ///< Response code other than OK
+        uint64_t      sumMicros;
+        uint64_t      p50Micros;
+        uint64_t      p99Micros;
+        uint64_t      maxMicros;
+        /// (BillingResponseCode, count) for each code seen.  Codes
+        /// outside -3 .. 12 are counted together as 13.
+        std::vector<std::pair<int, uint64_t> > responseCodes;
+    };
+
     typedef void (*ReadyStatusCB)(void *ctx, bool ready);
 
     typedef void (*ProductQueryCB)(void *ctx, const Product &product);
 
+    /// 'products' has one entry per requested sku, in the order
+    /// given.  Entries with an empty title are unknown products.
+    typedef void (*ProductListQueryCB)(void *ctx, const ProductList &products);
+
+    /// Called once with CatalogSnapshot, then once with either
+    /// CatalogDelta or CatalogRefreshFailed.  In a delta, an entry
+    /// with an empty title is a product that is no longer available.
+    typedef void (*CatalogCB)(void *ctx, CatalogUpdate update,
+                              const ProductList &products);
+
     /// If 'purchases' is empty, no purchases have been made.  If
     /// 'purchases' contains a single entry with sku == "", an error
     /// occured and the correct list cannot be retrieved.
     typedef void (*PurchaseQueryCB)(void *ctx, const PurchaseList &purchases);
 
+    /// Called with successive pages of purchases, the final one with
+    /// 'last' set (possibly with count == 0).  The views and the
+    /// strings they refer to are only valid during the call.  As for
+    /// PurchaseQueryCB, a single entry with an empty sku means an
+    /// error occured.
+    typedef void (*PurchaseViewQueryCB)(void *ctx,
+                                        const PurchaseView *purchases,
+                                        size_t count, bool last);
+
+    /// 'changes' is relative to the previous successful call (empty
+    /// if nothing changed).  If 'ok' is false the query failed, and
+    /// any changes will be reported by the next call.
+    typedef void (*PurchaseChangesCB)(void *ctx, bool ok,
+                                      const PurchaseChangeList &changes);
+
+    /// Called with successive chunks of at most a few dozen records,
+    /// the final one with 'last' set (possibly empty).  'records' is
+    /// reused from chunk to chunk, so copy anything that must be
+    /// kept.  If 'error' is non-null the query failed part way, and
+    /// this is the final call.
+    typedef void (*PurchaseHistoryCB)(void *ctx,
+                                      const PurchaseHistoryList &records,
+                                      bool last, const char *error);
+
+    enum TokenOp
+    {
+        TokenConsume     = 0,
+        TokenAcknowledge = 1,
+    };
+
+    /// Called once per token, in completion order.  'responseCode'
+    /// is the store's BillingResponseCode (0 == OK).  'remaining' is
+    /// the number of tokens in the batch that have not been reported
+    /// yet; the call with remaining == 0 is the last for the batch.
+    typedef void (*TokenCompleteCB)(void *ctx, TokenOp op, const char *token,
+                                    int responseCode, size_t remaining);
+
     typedef void (*PurchaseSuccessCB)(void *ctx, const Purchase &purchase);
 
     /// message == null means the user cancelled the purchase,
     /// otherwise message contains the error message.
     typedef void (*PurchaseFailureCB)(void *ctx, const char *message);
 
+    /// 'jniEnv' is only used during construction.  After that, the
+    /// methods below can be called from any thread: each thread gets
+    /// its own JNIEnv from the JavaVM, attaching it if necessary.
     GooglePlayBilling(JNIEnv *jniEnv, jclass paymentClass = 0);
 
     ~GooglePlayBilling();
@@ -56,19 +234,103 @@ public:
     // the current status.
     bool SetReadyStatusCallback(void *ctx, ReadyStatusCB callback);
 
+    /// Current ready status, without a call into Java.  Safe to poll
+    /// every frame from any thread.
+    bool IsReady() const;
+
+    /// Bit 0 is the ready status.  The remaining bits change every
+    /// time the status changes, so comparing two reads tells whether
+    /// the service has been lost (and possibly regained) in between.
+    uint32_t GetReadyWord() const;
+
+    /// Start connecting to the store now, if the Java side defers its
+    /// connection (payment.setDeferredStart), e.g. behind a loading
+    /// screen.  The ready callback follows as usual.
+    bool WarmUp();
+
     /// If this call returns true, the callback will be called at some
     /// point in the future.  An error may still occur, in which case
     /// the callback is notified (see PurchaseQueryCB).
     bool QueryPurchases(void *ctx, PurchaseQueryCB callback);
 
+    /// As QueryPurchases, but purchases are delivered as views into
+    /// a buffer owned by the calling thread and reused by every
+    /// query, so there are no per-purchase allocations.  Copy
+    /// anything that must outlive the callback.
+    bool QueryPurchaseViews(void *ctx, PurchaseViewQueryCB callback);
+
+    /// As QueryPurchases, but only report the purchases that were
+    /// added, removed or changed state since the previous call.  The
+    /// first call (or one with 'full' set) reports every owned
+    /// purchase as added.  Suitable for a periodic entitlement
+    /// refresh: the work done is proportional to the changes.
+    bool QueryPurchaseChanges(void *ctx, PurchaseChangesCB callback,
+                              bool full = false);
+
+    /// Stream the purchase history of the account: the most recent
+    /// purchase of each product, including consumed purchases and
+    /// expired subscriptions.  Records are delivered in bounded
+    /// chunks as they arrive from the store, so memory use does not
+    /// grow with the length of the history.
+    bool QueryPurchaseHistory(void *ctx, PurchaseHistoryCB callback);
+
+    /// Purchases that were received from the store in an earlier
+    /// run but never delivered (the process died before the purchase
+    /// or query callback returned), reported as for QueryPurchases.
+    /// Call this at startup.  A purchase may be reported more than
+    /// once, so fulfilment must be idempotent, keyed on googleToken.
+    bool QueryIncompletePurchases(void *ctx, PurchaseQueryCB callback);
+
     bool QueryProduct(void *ctx, const char *sku, ProductQueryCB callback);
 
+    /// Query several products with a single request to the store.
+    /// All results are delivered in one callback.
+    bool QueryProducts(void *ctx, const std::vector<std::string> &skus,
+                       ProductListQueryCB callback);
+
+    /// Fetch product information for 'skus' into the Java side cache
+    /// in the background, with no callback, so that later
+    /// QueryProduct / QueryProducts calls are answered from memory.
+    /// For use behind loading screens.
+    bool PrefetchProducts(const std::vector<std::string> &skus);
+
+    /// Serve the last-known information for 'skus' from the on-disk
+    /// catalog immediately (it may be stale, or empty on first run),
+    /// then refresh it from the store once billing is ready and
+    /// deliver only the products that changed.  Can be called before
+    /// the billing service has connected.
+    bool QueryCatalog(void *ctx, const std::vector<std::string> &skus,
+                      CatalogCB callback);
+
     bool ConfirmPurchase(void *ctx, const char *sku, const char *clientToken,
                          bool isConsumable,
                          PurchaseSuccessCB success, PurchaseFailureCB failure);
 
+    /// Subscribe to 'sku' with one of its offers (offerToken from
+    /// Product::offers), or the base plan if offerToken is null.
+    /// Reported as for ConfirmPurchase.
+    bool ConfirmPurchaseOffer(void *ctx, const char *sku,
+                              const char *offerToken, const char *clientToken,
+                              PurchaseSuccessCB success,
+                              PurchaseFailureCB failure);
+
     bool ConsumePurchase(const char *googleToken);
 
+    /// Consume a batch of purchases (e.g. a restored backlog) with
+    /// several store requests in flight.  Transient failures are
+    /// retried before a token is reported.
+    bool ConsumePurchases(void *ctx, const std::vector<std::string> &googleTokens,
+                          TokenCompleteCB callback);
+
+    /// As ConsumePurchases, for non-consumable purchases.
+    bool AcknowledgePurchases(void *ctx,
+                              const std::vector<std::string> &googleTokens,
+                              TokenCompleteCB callback);
+
+    /// Synchronously take a snapshot of the metrics recorded on the
+    /// Java side, one entry per MetricOp.
+    bool GetMetrics(std::vector<OperationMetrics> &metrics);
+
     void          *mReadyStatusContext {};
     ReadyStatusCB  mReadyStatusCallback {};
 
@@ -76,13 +338,43 @@ protected:
 
     bool CallJavaMethod(jmethodID method, ...);
 
-    JNIEnv        *mJNIEnv;
+    // As CallJavaMethod, for methods that return an object.  Returns
+    // a local reference, or 0 on failure (including a Java
+    // exception, which is cleared).
+    jobject CallJavaObjectMethod(JNIEnv *env, jmethodID method, ...);
+
+    // Log and clear any pending Java exception.  Returns true if
+    // there was one.
+    bool ClearJavaException(JNIEnv *env);
+
+    JNIEnv *GetJNIEnv();
+
+    bool CallTokenMethod(jmethodID method, const char *name, void *ctx,
+                         const std::vector<std::string> &tokens,
+                         TokenCompleteCB callback);
+
+    jobjectArray NewStringArray(JNIEnv *env,
+                                const std::vector<std::string> &strings);
+
+    JavaVM        *mJavaVM;
     jclass         mPaymentClass;
+    jclass         mStringClass;
     jmethodID      mDoCheckReadyMethod;
     jmethodID      mDoPurchaseMethod;
+    jmethodID      mDoPurchaseOfferMethod;
     jmethodID      mDoQueryPurchasesMethod;
+    jmethodID      mDoQueryIncompletePurchasesMethod;
+    jmethodID      mDoQueryPurchaseChangesMethod;
+    jmethodID      mDoQueryPurchaseHistoryMethod;
     jmethodID      mDoQueryProductMethod;
+    jmethodID      mDoQueryProductsMethod;
+    jmethodID      mDoPrefetchProductsMethod;
+    jmethodID      mDoQueryCatalogMethod;
     jmethodID      mDoConsumeMethod;
+    jmethodID      mDoGetMetricsMethod;
+    jmethodID      mDoConsumePurchasesMethod;
+    jmethodID      mDoAcknowledgePurchasesMethod;
+    jmethodID      mWarmUpMethod;
 
 };
 
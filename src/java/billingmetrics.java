@@ -0,0 +1,232 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counters and latency histograms for each billing operation, broken
+// down by BillingResponseCode.  Recording is lock-free.  Read it with
+// payment.getMetrics(), or from native code with
+// GooglePlayBilling::GetMetrics().
+public class billingmetrics
+{
+    // Operations.  Keep in sync with GooglePlayBilling::MetricOp.
+    public static final int OP_CONNECT = 0;
+    public static final int OP_QUERY_PRODUCT = 1;
+    public static final int OP_QUERY_PURCHASES = 2;
+    public static final int OP_LAUNCH_FLOW = 3;
+    public static final int OP_PURCHASE_RESULT = 4;
+    public static final int OP_ACKNOWLEDGE = 5;
+    public static final int OP_CONSUME = 6;
+    public static final int OP_QUERY_HISTORY = 7;
+    public static final int OP_COUNT = 8;
+
+    static final String[] OP_NAMES = {
+        "connect", "query_product", "query_purchases", "launch_flow",
+        "purchase_result", "acknowledge", "consume", "query_history"
+    };
+
+    // Response codes -3 .. 12 are counted individually, anything else
+    // in one extra slot.
+    static final int MIN_CODE = -3;
+    static final int MAX_CODE = 12;
+    static final int CODE_SLOTS = MAX_CODE - MIN_CODE + 2;
+
+    // Latency histogram: values below 4us are exact, above that each
+    // power of two is split into 4 sub-buckets (<= 25% error).
+    static final int BUCKETS = 160;
+
+    // Version of the layout produced by pack().
+    static final long PACK_VERSION = 1;
+
+    static int bucketFor(long micros)
+    {
+        if (micros < 4) {
+            return (int )Math.max(0, micros);
+        }
+        final int log = 63 - Long.numberOfLeadingZeros(micros);
+        final int sub = (int )((micros >>> (log - 2)) & 3);
+        return Math.min(BUCKETS - 1, 4 * (log - 1) + sub);
+    }
+
+    static long bucketUpperBound(int bucket)
+    {
+        if (bucket < 4) {
+            return bucket;
+        }
+        final int log = bucket / 4 + 1;
+        final int sub = bucket % 4;
+        return ((5L + sub) << (log - 2)) - 1;
+    }
+
+    private static final class Operation
+    {
+        final AtomicLong      count = new AtomicLong();
+        final AtomicLong      errors = new AtomicLong();
+        final AtomicLong      sumMicros = new AtomicLong();
+        final AtomicLong      maxMicros = new AtomicLong();
+        final AtomicLongArray codes = new AtomicLongArray(CODE_SLOTS);
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    }
+
+    private final Operation[] mOps = new Operation[OP_COUNT];
+
+    billingmetrics()
+    {
+        for (int i = 0 ; i < OP_COUNT ; ++i) {
+            mOps[i] = new Operation();
+        }
+    }
+
+    /// Record one completed operation.  'startNanos' comes from
+    /// System.nanoTime() when the operation was issued.
+    public void record(int op, int responseCode, long startNanos)
+    {
+        recordMicros(op, responseCode,
+                     (System.nanoTime() - startNanos) / 1000);
+    }
+
+    public void recordMicros(int op, int responseCode, long micros)
+    {
+        if (op < 0 || op >= OP_COUNT) {
+            return;
+        }
+
+        final Operation o = mOps[op];
+        o.count.incrementAndGet();
+        if (0 != responseCode) {
+            o.errors.incrementAndGet();
+        }
+        o.sumMicros.addAndGet(micros);
+        for (;;) {
+            final long max = o.maxMicros.get();
+            if (micros <= max || o.maxMicros.compareAndSet(max, micros)) {
+                break;
+            }
+        }
+
+        final int slot = (responseCode < MIN_CODE || responseCode > MAX_CODE)?
+            (CODE_SLOTS - 1):(responseCode - MIN_CODE);
+        o.codes.incrementAndGet(slot);
+        o.buckets.incrementAndGet(bucketFor(micros));
+    }
+
+    public long getCount(int op)
+    {
+        return mOps[op].count.get();
+    }
+
+    public long getErrorCount(int op)
+    {
+        return mOps[op].errors.get();
+    }
+
+    public long getMaxMicros(int op)
+    {
+        return mOps[op].maxMicros.get();
+    }
+
+    /// Number of operations that completed with responseCode.
+    public long getResponseCodeCount(int op, int responseCode)
+    {
+        if (responseCode < MIN_CODE || responseCode > MAX_CODE) {
+            return mOps[op].codes.get(CODE_SLOTS - 1);
+        }
+        return mOps[op].codes.get(responseCode - MIN_CODE);
+    }
+
+    /// Latency at the given percentile (0 - 100), in microseconds.
+    /// Accurate to the histogram resolution.
+    public long getPercentileMicros(int op, double percentile)
+    {
+        final Operation o = mOps[op];
+        final long total = o.count.get();
+        if (0 == total) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long )Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int b = 0 ; b < BUCKETS ; ++b) {
+            seen += o.buckets.get(b);
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(b), o.maxMicros.get());
+            }
+        }
+        return o.maxMicros.get();
+    }
+
+    /// Not atomic with respect to concurrent recording.
+    public void reset()
+    {
+        for (int i = 0 ; i < OP_COUNT ; ++i) {
+            final Operation o = mOps[i];
+            o.count.set(0);
+            o.errors.set(0);
+            o.sumMicros.set(0);
+            o.maxMicros.set(0);
+            for (int slot = 0 ; slot < CODE_SLOTS ; ++slot) {
+                o.codes.set(slot, 0);
+            }
+            for (int b = 0 ; b < BUCKETS ; ++b) {
+                o.buckets.set(b, 0);
+            }
+        }
+    }
+
+    /// Flat snapshot for native code:
+    ///   [ version, opCount,
+    ///     { count, errors, sumMicros, p50, p99, max, codeCount,
+    ///       { code, count } * codeCount } * opCount ]
+    /// Only response codes with a non-zero count are included.
+    long[] pack()
+    {
+        long[] out = new long[2 + OP_COUNT * (7 + 2 * CODE_SLOTS)];
+        int n = 0;
+        out[n++] = PACK_VERSION;
+        out[n++] = OP_COUNT;
+        for (int op = 0 ; op < OP_COUNT ; ++op) {
+            final Operation o = mOps[op];
+            out[n++] = o.count.get();
+            out[n++] = o.errors.get();
+            out[n++] = o.sumMicros.get();
+            out[n++] = getPercentileMicros(op, 50.0);
+            out[n++] = getPercentileMicros(op, 99.0);
+            out[n++] = o.maxMicros.get();
+
+            final int codeCountIndex = n++;
+            int codeCount = 0;
+            for (int slot = 0 ; slot < CODE_SLOTS ; ++slot) {
+                final long c = o.codes.get(slot);
+                if (0 != c) {
+                    // The 'other' slot is reported as code MAX_CODE + 1
+                    out[n++] = slot + MIN_CODE;
+                    out[n++] = c;
+                    ++codeCount;
+                }
+            }
+            out[codeCountIndex] = codeCount;
+        }
+
+        long[] trimmed = new long[n];
+        System.arraycopy(out, 0, trimmed, 0, n);
+        return trimmed;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int op = 0 ; op < OP_COUNT ; ++op) {
+            sb.append(OP_NAMES[op])
+                .append(": n=").append(getCount(op))
+                .append(" err=").append(getErrorCount(op))
+                .append(" p50=").append(getPercentileMicros(op, 50.0))
+                .append("us p99=").append(getPercentileMicros(op, 99.0))
+                .append("us max=").append(getMaxMicros(op)).append("us\n");
+        }
+        return sb.toString();
+    }
+}
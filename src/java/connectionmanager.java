@@ -0,0 +1,293 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Random;
+
+// Keeps a billing service connection alive.  Reconnects with
+// jittered exponential backoff after a disconnect or a transient
+// setup failure.  Requests made while disconnected are queued (up to
+// a bound) and run in order once the connection is back.  From the
+// first attempt until the connection is made (or fails permanently)
+// the manager counts as connecting, including while a reconnect is
+// scheduled, so connect() never starts a second attempt alongside it.
+// After a permanent setup failure requests are rejected, until
+// connect() is called again at least UNAVAILABLE_RETRY_MS later.
+public class connectionmanager
+{
+    static private void _log(String msg)
+    {
+        if (payment.logging(payment.LOG_VERBOSE)) {
+            Log.i("tzbilling(conn)", msg);
+        }
+    }
+    static private void _error(String msg)
+    {
+        if (payment.logging(payment.LOG_ERROR)) {
+            Log.e("tzbilling(conn)", msg);
+        }
+    }
+
+    public static final long INITIAL_BACKOFF_MS = 1000;
+    public static final long MAX_BACKOFF_MS = 60 * 1000;
+    public static final int  DEFAULT_MAX_QUEUED = 64;
+    public static final long UNAVAILABLE_RETRY_MS = MAX_BACKOFF_MS;
+
+    /// Starts (or restarts) the underlying connection.  The owner
+    /// reports the outcome through onConnected / onConnectFailed.
+    interface Connector
+    {
+        void connect();
+    }
+
+    /// A request that needs the connection.  Exactly one of run()
+    /// or fail() is called.
+    interface Request
+    {
+        void run();
+        void fail();
+    }
+
+    private final Connector          mConnector;
+    private final Handler            mHandler;
+    private final Random             mRandom = new Random();
+    private final ArrayDeque<Request> mQueue = new ArrayDeque<Request>();
+
+    private int     mMaxQueued = DEFAULT_MAX_QUEUED;
+    private int     mAttempt = 0;
+    private boolean mConnected = false;
+    private boolean mConnecting = false;
+    private volatile boolean mUnavailable = false;
+    private long    mUnavailableSince = 0;
+    private boolean mDraining = false;
+    private boolean mShutdown = false;
+    private long    mReconnectCount = 0;
+
+    private final Runnable mReconnect = new Runnable() {
+            @Override public void run() {
+                synchronized (connectionmanager.this) {
+                    if (mShutdown || mConnected) {
+                        return;
+                    }
+                    mConnecting = true;
+                    ++mReconnectCount;
+                }
+                _log("reconnecting ...");
+                mConnector.connect();
+            }
+        };
+
+    connectionmanager(Connector connector)
+    {
+        mConnector = connector;
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    public synchronized void setMaxQueued(int maxQueued)
+    {
+        mMaxQueued = Math.max(0, maxQueued);
+    }
+
+    public synchronized int getQueueDepth()
+    {
+        return mQueue.size();
+    }
+
+    public synchronized long getReconnectCount()
+    {
+        return mReconnectCount;
+    }
+
+    public synchronized boolean isConnected()
+    {
+        return mConnected;
+    }
+
+    /// True after a permanent setup failure, until connect() retries.
+    /// Does not take the lock, so callers can check it on every
+    /// request before deciding whether to call connect().
+    public boolean isUnavailable()
+    {
+        return mUnavailable;
+    }
+
+    /// Start the first connection attempt, or retry one that failed
+    /// permanently at least UNAVAILABLE_RETRY_MS ago.  Does nothing if
+    /// connected or connecting, which includes a reconnect that is
+    /// scheduled or running.
+    void connect()
+    {
+        synchronized (this) {
+            if (mShutdown || mConnected || mConnecting) {
+                return;
+            }
+            if (mUnavailable) {
+                if (SystemClock.elapsedRealtime() - mUnavailableSince <
+                    UNAVAILABLE_RETRY_MS) {
+                    return;
+                }
+                _log("connect: retrying unavailable service");
+                mUnavailable = false;
+            }
+            mConnecting = true;
+        }
+        mConnector.connect();
+    }
+
+    /// Run the request now if connected, otherwise queue it.  Returns
+    /// false (without calling the request) if it cannot be accepted.
+    boolean submit(Request request)
+    {
+        synchronized (this) {
+            if (mShutdown || mUnavailable) {
+                return false;
+            }
+
+            // While the queue is draining, new requests go behind the
+            // ones that were queued before them.
+            if (!mConnected || mDraining) {
+                if (mQueue.size() >= mMaxQueued) {
+                    if (payment.logging(payment.LOG_ERROR)) {
+                        _error("submit: queue full (" + mQueue.size() + ")");
+                    }
+                    return false;
+                }
+                mQueue.addLast(request);
+                return true;
+            }
+        }
+
+        request.run();
+        return true;
+    }
+
+    void onConnected()
+    {
+        synchronized (this) {
+            mConnected = true;
+            mConnecting = false;
+            mUnavailable = false;
+            mAttempt = 0;
+            if (mDraining) {
+                // The thread that is draining will pick up the rest
+                return;
+            }
+            mDraining = true;
+        }
+        drainQueue();
+    }
+
+    // Run queued requests in order, including any that are submitted
+    // meanwhile, until the queue is empty or the connection drops.
+    private void drainQueue()
+    {
+        for (;;) {
+            ArrayList<Request> queued;
+            synchronized (this) {
+                if (!mConnected || mQueue.isEmpty()) {
+                    mDraining = false;
+                    return;
+                }
+                queued = new ArrayList<Request>(mQueue);
+                mQueue.clear();
+            }
+
+            if (payment.logging(payment.LOG_VERBOSE)) {
+                _log("onConnected: running " + queued.size() + " queued requests");
+            }
+            for (Request r : queued) {
+                r.run();
+            }
+        }
+    }
+
+    void onDisconnected()
+    {
+        synchronized (this) {
+            mConnected = false;
+            if (mShutdown) {
+                return;
+            }
+            mConnecting = true;
+        }
+        scheduleReconnect();
+    }
+
+    /// 'retry' is false for failures that will not go away by
+    /// retrying (e.g. billing not supported on this device).  Queued
+    /// requests are failed in that case.
+    void onConnectFailed(boolean retry)
+    {
+        if (retry) {
+            synchronized (this) {
+                mConnected = false;
+                if (mShutdown) {
+                    return;
+                }
+                mConnecting = true;
+            }
+            scheduleReconnect();
+            return;
+        }
+
+        synchronized (this) {
+            mConnected = false;
+            mConnecting = false;
+            mUnavailable = true;
+            mUnavailableSince = SystemClock.elapsedRealtime();
+        }
+        failQueued();
+    }
+
+    void shutdown()
+    {
+        synchronized (this) {
+            mShutdown = true;
+            mConnected = false;
+        }
+        mHandler.removeCallbacks(mReconnect);
+        failQueued();
+    }
+
+    private void failQueued()
+    {
+        ArrayList<Request> queued;
+        synchronized (this) {
+            queued = new ArrayList<Request>(mQueue);
+            mQueue.clear();
+        }
+        for (Request r : queued) {
+            r.fail();
+        }
+    }
+
+    // Delay is picked uniformly from [d/2, d) where d doubles with
+    // each attempt, up to MAX_BACKOFF_MS.
+    private void scheduleReconnect()
+    {
+        long delay;
+        synchronized (this) {
+            // Connecting until the reconnect succeeds or fails
+            // permanently.
+            mConnecting = true;
+            final long base =
+                Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(mAttempt, 16));
+            delay = base / 2 + (long )(mRandom.nextDouble() * (base / 2));
+            ++mAttempt;
+        }
+
+        if (payment.logging(payment.LOG_VERBOSE)) {
+            _log("scheduleReconnect: retrying in " + delay + "ms");
+        }
+        mHandler.removeCallbacks(mReconnect);
+        mHandler.postDelayed(mReconnect, delay);
+    }
+}
@@ -0,0 +1,257 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+// Consumes and acknowledges purchase tokens, keeping up to a
+// configurable number of store requests in flight.  Tokens are
+// accepted in batches, transient failures are retried with backoff,
+// and the final outcome of every token is reported exactly once.
+public class consumepipeline
+{
+    static private void _log(String msg)
+    {
+        if (payment.logging(payment.LOG_VERBOSE)) {
+            Log.i("tzbilling(consume)", msg);
+        }
+    }
+
+    // Operations.  Keep in sync with GooglePlayBilling::TokenOp.
+    public static final int OP_CONSUME = 0;
+    public static final int OP_ACKNOWLEDGE = 1;
+
+    public static final int  DEFAULT_MAX_IN_FLIGHT = 8;
+    public static final int  DEFAULT_MAX_ATTEMPTS = 4;
+    public static final long RETRY_BACKOFF_MS = 250;
+
+    // Reported for tokens that are dropped by shutdown()
+    // (BillingResponseCode.SERVICE_DISCONNECTED).
+    public static final int RESPONSE_ABORTED = -1;
+
+    /// Issues one store request.  'done' must be called exactly
+    /// once, from any thread (possibly before start returns).
+    interface Executor
+    {
+        void start(int op, String token, Completion done);
+    }
+
+    interface Completion
+    {
+        /// 'retry' is true if the failure is transient.
+        void onComplete(int responseCode, boolean retry);
+    }
+
+    /// Final outcome of one token.  'remaining' counts the tokens of
+    /// the same batch that are still outstanding.
+    interface Listener
+    {
+        void onTokenComplete(int op, long context, String token,
+                             int responseCode, int remaining);
+    }
+
+    private static final class Batch
+    {
+        final int  op;
+        final long context;
+        int        remaining;
+
+        Batch(int op, long context, int remaining)
+        {
+            this.op = op;
+            this.context = context;
+            this.remaining = remaining;
+        }
+    }
+
+    private static final class Item
+    {
+        final Batch  batch;
+        final String token;
+        int          attempts = 0;
+
+        Item(Batch batch, String token)
+        {
+            this.batch = batch;
+            this.token = token;
+        }
+    }
+
+    private final Executor          mExecutor;
+    private final Listener          mListener;
+    private final Handler           mHandler;
+    private final ArrayDeque<Item>  mQueue = new ArrayDeque<Item>();
+
+    private int     mMaxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private int     mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private int     mInFlight = 0;
+    private int     mRetrying = 0;
+    private boolean mPumping = false;
+    private boolean mShutdown = false;
+    private long    mCompleted = 0;
+    private long    mRetries = 0;
+
+    consumepipeline(Executor executor, Listener listener)
+    {
+        mExecutor = executor;
+        mListener = listener;
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /// maxInFlight is the number of store requests issued at once,
+    /// maxAttempts the number of tries for a token with transient
+    /// failures.
+    public synchronized void configure(int maxInFlight, int maxAttempts)
+    {
+        mMaxInFlight = Math.max(1, maxInFlight);
+        mMaxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /// Tokens waiting, in flight or waiting to be retried.
+    public synchronized int getPendingCount()
+    {
+        return mQueue.size() + mInFlight + mRetrying;
+    }
+
+    public synchronized long getCompletedCount()
+    {
+        return mCompleted;
+    }
+
+    public synchronized long getRetryCount()
+    {
+        return mRetries;
+    }
+
+    /// Queue a batch.  Returns false (and reports nothing) if the
+    /// pipeline has been shut down.
+    boolean add(int op, String[] tokens, long context)
+    {
+        synchronized (this) {
+            if (mShutdown) {
+                return false;
+            }
+            final Batch batch = new Batch(op, context, tokens.length);
+            for (String token : tokens) {
+                mQueue.addLast(new Item(batch, token));
+            }
+        }
+
+        pump();
+        return true;
+    }
+
+    /// Drop all queued work, reporting RESPONSE_ABORTED for it.
+    /// Requests already in flight complete normally, without retry.
+    void shutdown()
+    {
+        ArrayDeque<Item> dropped;
+        synchronized (this) {
+            mShutdown = true;
+            dropped = new ArrayDeque<Item>(mQueue);
+            mQueue.clear();
+        }
+        for (Item item : dropped) {
+            finish(item, RESPONSE_ABORTED);
+        }
+    }
+
+    // Start queued items while there is room.  Only one thread pumps
+    // at a time, which also keeps executors that complete
+    // synchronously from recursing.
+    private void pump()
+    {
+        synchronized (this) {
+            if (mPumping) {
+                return;
+            }
+            mPumping = true;
+        }
+
+        for (;;) {
+            Item item;
+            synchronized (this) {
+                if (mShutdown || mInFlight >= mMaxInFlight || mQueue.isEmpty()) {
+                    mPumping = false;
+                    return;
+                }
+                item = mQueue.pollFirst();
+                ++mInFlight;
+                ++item.attempts;
+            }
+            start(item);
+        }
+    }
+
+    private void start(final Item item)
+    {
+        mExecutor.start(item.batch.op, item.token, new Completion() {
+                @Override public void onComplete(int responseCode, boolean retry) {
+                    complete(item, responseCode, retry);
+                }
+            });
+    }
+
+    private void complete(final Item item, int responseCode, boolean retry)
+    {
+        long delay = 0;
+        synchronized (this) {
+            --mInFlight;
+            if (retry && !mShutdown && item.attempts < mMaxAttempts) {
+                delay = RETRY_BACKOFF_MS << (item.attempts - 1);
+                ++mRetrying;
+                ++mRetries;
+            }
+        }
+
+        if (0 != delay) {
+            if (payment.logging(payment.LOG_VERBOSE)) {
+                _log("retrying " + item.token + " in " + delay + "ms (response " +
+                     responseCode + ")");
+            }
+            mHandler.postDelayed(new Runnable() {
+                    @Override public void run() {
+                        retry(item);
+                    }
+                }, delay);
+        } else {
+            finish(item, responseCode);
+        }
+
+        pump();
+    }
+
+    private void retry(Item item)
+    {
+        boolean aborted;
+        synchronized (this) {
+            --mRetrying;
+            aborted = mShutdown;
+            if (!aborted) {
+                mQueue.addFirst(item);
+            }
+        }
+
+        if (aborted) {
+            finish(item, RESPONSE_ABORTED);
+            return;
+        }
+        pump();
+    }
+
+    private void finish(Item item, int responseCode)
+    {
+        int remaining;
+        synchronized (this) {
+            remaining = --item.batch.remaining;
+            ++mCompleted;
+        }
+        mListener.onTokenComplete(item.batch.op, item.batch.context,
+                                  item.token, responseCode, remaining);
+    }
+}
@@ -4,37 +4,122 @@ package com.turbulenz.turbulenz;
 
 import android.app.Activity;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.billingclient.api.*;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class googlepayment extends payment.BillingAgent implements PurchasesUpdatedListener
 {
     // Logging
     static private void _log(String msg)
     {
-        Log.i("tzbilling(google)", msg);
+        if (payment.logging(payment.LOG_VERBOSE)) {
+            Log.i("tzbilling(google)", msg);
+        }
     }
     static private void _print(String msg)
     {
-        Log.i("tzbilling(google)", msg);
+        if (payment.logging(payment.LOG_INFO)) {
+            Log.i("tzbilling(google)", msg);
+        }
     }
     static private void _error(String msg)
     {
-        Log.e("tzbilling(google)", msg);
+        if (payment.logging(payment.LOG_ERROR)) {
+            Log.e("tzbilling(google)", msg);
+        }
     }
 
     private Activity mActivity;
-    private BillingClient mBillingClient;
+    // Built by the first connection attempt.  Only used once
+    // connected, or (to end the connection) by shutdown.
+    private volatile BillingClient mBillingClient;
     private int mPurchaseRequestCode;
-    private long mPurchaseContext = 0;
-    private boolean mPendingConsumableFlag;
+    private final productcache mProductCache = new productcache();
+    private connectionmanager mConnection;
+    private consumepipeline mConsumer;
+    private purchasejournal mJournal;
+    private volatile long mConnectStartNanos = 0;
+
+    // Journal entries left over from an earlier run are resubmitted
+    // to the consume pipeline on the first successful connection.
+    private final AtomicBoolean mJournalRecovered = new AtomicBoolean(false);
+
+    // Set once the connection has been started (see warmUp).
+    private final AtomicBoolean mStarted = new AtomicBoolean(false);
+
+    // Skus waiting for doPrefetchProducts, in request order.  Only
+    // one batch of PREFETCH_BATCH is queried at a time, so that
+    // prefetching stays in the background of other queries.
+    // A batch whose query fails goes back on the end of the queue,
+    // up to PREFETCH_ATTEMPTS queries per sku, and prefetching resumes
+    // after connectionmanager.INITIAL_BACKOFF_MS.
+    public static final int PREFETCH_BATCH = 20;
+    public static final int PREFETCH_ATTEMPTS = 3;
+    private final LinkedHashSet<String> mPrefetchQueue = new LinkedHashSet<>();
+    private final HashMap<String, Integer> mPrefetchFailures = new HashMap<>();
+    private boolean mPrefetching = false;    // Guarded by mPrefetchQueue
+
+    // A purchase that has been started by doPurchase and not yet
+    // reported to native.
+    private static final class InFlightPurchase
+    {
+        final String  sku;
+        final long    context;
+        final boolean isConsumable;
+        final long    startTime;
+
+        InFlightPurchase(String sku, long context, boolean isConsumable)
+        {
+            this.sku = sku;
+            this.context = context;
+            this.isConsumable = isConsumable;
+            this.startTime = android.os.SystemClock.elapsedRealtime();
+        }
+    }
+
+    // In-flight purchases by product id.  Once Play reports a
+    // purchase as pending, its record moves to the purchase token
+    // index so that the later update is routed to the same context,
+    // and the product can be bought again meanwhile.
+    private final ConcurrentHashMap<String, InFlightPurchase> mPurchasesBySku =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, InFlightPurchase> mPurchasesByToken =
+            new ConcurrentHashMap<>();
+
+    // The purchase whose billing flow UI was launched most recently.
+    // Only one flow can be on screen, so a cancel or error from
+    // onPurchasesUpdated (which carries no purchase) belongs to it.
+    private volatile InFlightPurchase mLaunchedPurchase = null;
+
+    private static void record(int op, BillingResult result, long startNanos)
+    {
+        payment.sMetrics.record(op, result.getResponseCode(), startNanos);
+    }
 
-    private static String getFirstProductId(Purchase purchase)
+    // Purchase result latency is measured from doPurchase.
+    private static void recordPurchaseResult(InFlightPurchase record, int responseCode)
+    {
+        payment.sMetrics.recordMicros
+            (billingmetrics.OP_PURCHASE_RESULT, responseCode,
+             (android.os.SystemClock.elapsedRealtime() - record.startTime) * 1000);
+    }
+
+    static String getFirstProductId(Purchase purchase)
     {
         List<String> products = purchase.getProducts();
         if (products == null || products.isEmpty()) {
@@ -43,104 +128,437 @@ public class googlepayment extends payment.BillingAgent implements PurchasesUpda
         return products.get(0);
     }
 
+    // Product types queried, in the order results are merged.  The
+    // caller does not say which type a sku is, so both are queried
+    // (in parallel).
+    private static final String[] PRODUCT_TYPES = {
+        BillingClient.ProductType.INAPP, BillingClient.ProductType.SUBS
+    };
+
+    private static QueryProductDetailsParams newProductQuery(List<String> skus,
+                                                             String productType)
+    {
+        List<QueryProductDetailsParams.Product> productList =
+                new ArrayList<>(skus.size());
+        for (String sku : skus) {
+            productList.add(QueryProductDetailsParams.Product.newBuilder()
+                    .setProductId(sku)
+                    .setProductType(productType)
+                    .build());
+        }
+
+        return QueryProductDetailsParams.newBuilder()
+                .setProductList(productList)
+                .build();
+    }
+
     public googlepayment(Activity activity, int purchaseRequestCode)
+    {
+        this(activity, purchaseRequestCode, false, -1);
+    }
+
+    /// If 'deferred' is set, the BillingClient is not built or
+    /// connected here, but on a background thread at the first
+    /// billing call, at warmUp(), or 'startDelayMs' from now (if
+    /// not negative), whichever comes first.
+    public googlepayment(Activity activity, int purchaseRequestCode,
+                         boolean deferred, long startDelayMs)
     {
         mActivity = activity;
         mPurchaseRequestCode = purchaseRequestCode;
 
-        mBillingClient = BillingClient.newBuilder(mActivity)
-                .setListener(this)
-                .enablePendingPurchases()
-                .build();
+        mJournal = new purchasejournal
+            (new File(mActivity.getFilesDir(), payment.JOURNAL_FILE_NAME));
+        mConsumer = new consumepipeline(this::startTokenOp, this::onTokenComplete);
+        mConnection = new connectionmanager(this::startConnection);
 
-        _log("connecting to billing service...");
-        mBillingClient.startConnection(new BillingClientStateListener() {
-            @Override
-            public void onBillingSetupFinished(BillingResult billingResult) {
-                if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-                    _log("Billing service connected");
-                    mIsReady = true;
-                    reportReady(true);
-                } else {
-                    _log("Billing service setup failed with response code: " + billingResult.getResponseCode());
-                    reportReady(false);
-                }
+        if (!deferred) {
+            mStarted.set(true);
+            _log("connecting to billing service...");
+            mConnection.connect();
+            return;
+        }
+
+        _log("deferring connection to billing service");
+        if (startDelayMs >= 0) {
+            new Handler(Looper.getMainLooper()).postDelayed(this::warmUp, startDelayMs);
+        }
+    }
+
+    // connectionmanager.Connector
+    private void startConnection()
+    {
+        synchronized (this) {
+            if (null == mActivity) {
+                return;
+            }
+            if (null == mBillingClient) {
+                mBillingClient = BillingClient.newBuilder(mActivity)
+                        .setListener(this)
+                        .enablePendingPurchases()
+                        .build();
             }
+            // Started under the lock, so that shutdown() always
+            // sees (and ends) a connection that is being made.
+            mConnectStartNanos = System.nanoTime();
+            mBillingClient.startConnection(mStateListener);
+        }
+    }
 
-            @Override
-            public void onBillingServiceDisconnected() {
-                _log("Billing service disconnected");
-                mIsReady = false;
-                reportReady(false);
+    @Override
+    public void warmUp()
+    {
+        if (mStarted.get() || !mStarted.compareAndSet(false, true)) {
+            // Already started.  connectionmanager reconnects by itself
+            // after a disconnect, so only a connection that failed
+            // permanently needs retrying here (if connectionmanager
+            // allows it yet).  isUnavailable() does not lock.
+            if (mConnection.isUnavailable()) {
+                connect();
             }
-        });
+            return;
+        }
+
+        _log("connecting to billing service (deferred)...");
+        Thread t = new Thread(this::connect, "tzbilling-start");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void connect()
+    {
+        try {
+            mConnection.connect();
+        } catch (RuntimeException e) {
+            _error("warmUp: cannot start BillingClient: " + e);
+            onConnectFailed(false);
+        }
+    }
+
+    private void onConnectFailed(boolean retry)
+    {
+        reportReady(false);
+        mConnection.onConnectFailed(retry);
+        if (!retry) {
+            failDeferredCatalogQueries();
+        }
+    }
+
+    @Override
+    protected boolean isUnavailable()
+    {
+        return mConnection.isUnavailable();
+    }
+
+    private final BillingClientStateListener mStateListener = new BillingClientStateListener() {
+        @Override
+        public void onBillingSetupFinished(BillingResult billingResult) {
+            final int code = billingResult.getResponseCode();
+            record(billingmetrics.OP_CONNECT, billingResult, mConnectStartNanos);
+            if (code == BillingClient.BillingResponseCode.OK) {
+                _log("Billing service connected");
+                reportReady(true);
+                mConnection.onConnected();
+                prefetchNext();
+                if (mJournalRecovered.compareAndSet(false, true)) {
+                    recoverJournal();
+                }
+            } else {
+                if (payment.logging(payment.LOG_VERBOSE)) {
+                    _log("Billing service setup failed with response code: " + code);
+                }
+                onConnectFailed(isTransientError(code));
+            }
+        }
+
+        @Override
+        public void onBillingServiceDisconnected() {
+            _log("Billing service disconnected");
+            mProductCache.clear();
+            reportReady(false);
+            mConnection.onDisconnected();
+        }
+    };
+
+    private static boolean isTransientError(int responseCode)
+    {
+        switch (responseCode) {
+        case BillingClient.BillingResponseCode.SERVICE_TIMEOUT:
+        case BillingClient.BillingResponseCode.SERVICE_DISCONNECTED:
+        case BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE:
+        case BillingClient.BillingResponseCode.NETWORK_ERROR:
+        case BillingClient.BillingResponseCode.ERROR:
+            return true;
+        default:
+            return false;
+        }
     }
 
     @Override
     public void shutdown()
     {
         _log("shutting down...");
-        mIsReady = false;
-        if (mBillingClient != null && mBillingClient.isReady()) {
-            mBillingClient.endConnection();
+        markShutdown();
+        mConnection.shutdown();
+        mConsumer.shutdown();
+        synchronized (mPrefetchQueue) {
+            mPrefetchQueue.clear();
+            mPrefetchFailures.clear();
+        }
+        mJournal.close();
+        synchronized (this) {
+            if (mBillingClient != null) {
+                mBillingClient.endConnection();
+            }
+            mActivity = null;
         }
-        mActivity = null;
         _log("done shutting down.");
     }
 
+    /// The ProductDetails cache shared by the query and purchase
+    /// paths.  Use this to configure TTL and size, or to read the
+    /// hit / miss counters.
+    public productcache getProductCache()
+    {
+        return mProductCache;
+    }
+
+    /// Reconnect / request queue state (queue depth, reconnect
+    /// count).
+    public connectionmanager getConnectionManager()
+    {
+        return mConnection;
+    }
+
+    /// Consume / acknowledge pipeline.  Use this to configure the
+    /// number of requests in flight and retries.
+    public consumepipeline getConsumePipeline()
+    {
+        return mConsumer;
+    }
+
+    /// On-disk record of purchases that have not been both
+    /// delivered and consumed / acknowledged.
+    public purchasejournal getPurchaseJournal()
+    {
+        return mJournal;
+    }
+
     @Override
     public void onPurchasesUpdated(BillingResult billingResult, List<Purchase> purchases) {
         if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK && purchases != null) {
             for (Purchase purchase : purchases) {
                 handlePurchase(purchase);
             }
-        } else if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.USER_CANCELED) {
+            return;
+        }
+
+        InFlightPurchase record = mLaunchedPurchase;
+        if (null == record) {
+            if (payment.logging(payment.LOG_ERROR)) {
+                _error("onPurchasesUpdated: response " + billingResult.getResponseCode() +
+                       " with no launched purchase");
+            }
+            return;
+        }
+        finishPurchase(record, null);
+        recordPurchaseResult(record, billingResult.getResponseCode());
+
+        if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.USER_CANCELED) {
             _log("User canceled the purchase");
-            sendPurchaseFailure(mPurchaseContext, null);
+            sendPurchaseFailure(record.context, null);
         } else {
-            _error("Purchase failed with response code: " + billingResult.getResponseCode());
-            sendPurchaseFailure(mPurchaseContext, "Purchase did not complete");
+            if (payment.logging(payment.LOG_ERROR)) {
+                _error("Purchase failed with response code: " + billingResult.getResponseCode());
+            }
+            sendPurchaseFailure(record.context, "Purchase did not complete");
+        }
+    }
+
+    // Find the in-flight record for a purchase reported by Play.
+    private InFlightPurchase findPurchase(String sku, String token)
+    {
+        InFlightPurchase record = mPurchasesByToken.get(token);
+        if (null == record) {
+            record = mPurchasesBySku.get(sku);
+        }
+        return record;
+    }
+
+    private void finishPurchase(InFlightPurchase record, String token)
+    {
+        mPurchasesBySku.remove(record.sku, record);
+        if (null != token) {
+            mPurchasesByToken.remove(token);
+        }
+        if (mLaunchedPurchase == record) {
+            mLaunchedPurchase = null;
         }
-        mPurchaseContext = 0;
     }
 
     private void handlePurchase(Purchase purchase) {
-        _log("handlePurchase: " + purchase.getPurchaseToken());
+        final String token = purchase.getPurchaseToken();
+        final String sku = getFirstProductId(purchase);
+        final InFlightPurchase record = findPurchase(sku, token);
+
+        if (payment.logging(payment.LOG_VERBOSE)) {
+            _log("handlePurchase: " + token);
+        }
+        if (null == record && payment.logging(payment.LOG_VERBOSE)) {
+            _log("handlePurchase: no purchase in flight for " + sku);
+        }
+
         if (!verifyPurchase(purchase.getOriginalJson(), purchase.getSignature())) {
             _log("Invalid signature");
-            sendPurchaseFailure(mPurchaseContext, "invalid signature");
+            if (null != record) {
+                finishPurchase(record, token);
+                recordPurchaseResult(record, BillingClient.BillingResponseCode.ERROR);
+                sendPurchaseFailure(record.context, "invalid signature");
+            }
             return;
         }
 
-        if (purchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED) {
-            if (mPendingConsumableFlag) {
-                // For consumable items, consume immediately
-                doConsume(purchase.getPurchaseToken());
-            } else {
-                // Acknowledge the purchase if it hasn't been acknowledged yet.
-                if (!purchase.isAcknowledged()) {
-                    AcknowledgePurchaseParams acknowledgePurchaseParams =
-                            AcknowledgePurchaseParams.newBuilder()
-                                    .setPurchaseToken(purchase.getPurchaseToken())
-                                    .build();
-                    mBillingClient.acknowledgePurchase(acknowledgePurchaseParams, billingResult -> {
-                        if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-                            _log("Purchase acknowledged");
-                        } else {
-                            _error("Failed to acknowledge purchase: " + billingResult.getResponseCode());
-                        }
-                    });
+        if (purchase.getPurchaseState() == Purchase.PurchaseState.PENDING) {
+            // Keep the record, by token only.  Play will call
+            // onPurchasesUpdated again when the purchase completes,
+            // which may be never if the payment is abandoned.
+            if (payment.logging(payment.LOG_VERBOSE)) {
+                _log("handlePurchase: purchase pending: " + sku);
+            }
+            if (null != record) {
+                mPurchasesByToken.put(token, record);
+                mPurchasesBySku.remove(record.sku, record);
+                if (mLaunchedPurchase == record) {
+                    mLaunchedPurchase = null;
                 }
             }
+            return;
+        }
+
+        if (purchase.getPurchaseState() != Purchase.PurchaseState.PURCHASED) {
+            completePurchase(purchase, record);
+            return;
+        }
+
+        // Make the purchase durable before consuming it or handing it
+        // to native code, so that neither can be lost if the process
+        // dies part way through.
+        final boolean consumable = (null != record && record.isConsumable);
+        mJournal.received(token, sku, purchase.getOriginalJson(),
+                          purchase.getSignature(), consumable);
+        mJournal.mark(token, purchasejournal.VERIFIED);
+        mJournal.sync(() -> {
+                if (consumable) {
+                    // For consumable items, consume immediately
+                    mConsumer.add(consumepipeline.OP_CONSUME, new String[] { token }, 0);
+                } else if (!purchase.isAcknowledged()) {
+                    // Acknowledge the purchase if it hasn't been acknowledged yet.
+                    mConsumer.add(consumepipeline.OP_ACKNOWLEDGE, new String[] { token }, 0);
+                } else {
+                    mJournal.mark(token, purchasejournal.ACKNOWLEDGED);
+                }
+                completePurchase(purchase, record);
+            });
+    }
+
+    private void completePurchase(Purchase purchase, InFlightPurchase record)
+    {
+        if (null == record) {
+            // Nobody is waiting for this one.  It will be reported by
+            // the next doQueryPurchases or doQueryIncompletePurchases.
+            return;
         }
 
-        String sku = getFirstProductId(purchase);
+        final String sku = getFirstProductId(purchase);
+        finishPurchase(record, purchase.getPurchaseToken());
+        recordPurchaseResult(record, BillingClient.BillingResponseCode.OK);
 
-        _log("Purchase succeeded");
-        sendPurchaseResult(mPurchaseContext, sku, purchase.getOriginalJson(),
+        if (payment.logging(payment.LOG_VERBOSE)) {
+            _log("Purchase succeeded (" + sku + ", " +
+                 (android.os.SystemClock.elapsedRealtime() - record.startTime) + "ms)");
+        }
+        sendPurchaseResult(record.context, sku, purchase.getOriginalJson(),
                 purchase.getPurchaseToken(), null, purchase.getSignature());
     }
 
+    @Override
+    protected void onPurchaseDelivered(String token)
+    {
+        mJournal.mark(token, purchasejournal.DELIVERED);
+    }
+
+    @Override
+    protected void onPurchasesDelivered(String[] tokens)
+    {
+        mJournal.markAll(tokens, purchasejournal.DELIVERED);
+    }
+
+    @Override
+    public boolean doQueryIncompletePurchases(final long context)
+    {
+        mJournal.incomplete(entries -> {
+                ArrayList<purchasejournal.Entry> undelivered = new ArrayList<>();
+                for (purchasejournal.Entry e : entries) {
+                    if (!e.has(purchasejournal.DELIVERED)) {
+                        undelivered.add(e);
+                    }
+                }
+
+                if (payment.logging(payment.LOG_VERBOSE)) {
+                    _log("doQueryIncompletePurchases: " + undelivered.size() +
+                         " undelivered");
+                }
+
+                final int count = undelivered.size();
+                final String[] skus = new String[count];
+                final String[] data = new String[count];
+                final String[] tokens = new String[count];
+                final String[] sigs = new String[count];
+                for (int i = 0 ; i < count ; ++i) {
+                    purchasejournal.Entry e = undelivered.get(i);
+                    skus[i] = e.sku;
+                    data[i] = e.data;
+                    tokens[i] = e.token;
+                    sigs[i] = e.signature;
+                }
+                sendDeliveredPurchaseList(context, skus, data, tokens, sigs);
+            });
+        return true;
+    }
+
+    // Resume consuming / acknowledging purchases that an earlier run
+    // recorded but did not finish.
+    private void recoverJournal()
+    {
+        mJournal.incomplete(entries -> {
+                ArrayList<String> consume = new ArrayList<>();
+                ArrayList<String> acknowledge = new ArrayList<>();
+                for (purchasejournal.Entry e : entries) {
+                    if (e.has(purchasejournal.ACKNOWLEDGED | purchasejournal.CONSUMED)) {
+                        continue;
+                    }
+                    if (e.consumable) {
+                        consume.add(e.token);
+                    } else {
+                        acknowledge.add(e.token);
+                    }
+                }
+
+                if (payment.logging(payment.LOG_VERBOSE)) {
+                    _log("recoverJournal: " + consume.size() + " to consume, " +
+                         acknowledge.size() + " to acknowledge");
+                }
+                if (!consume.isEmpty()) {
+                    mConsumer.add(consumepipeline.OP_CONSUME,
+                            consume.toArray(new String[consume.size()]), 0);
+                }
+                if (!acknowledge.isEmpty()) {
+                    mConsumer.add(consumepipeline.OP_ACKNOWLEDGE,
+                            acknowledge.toArray(new String[acknowledge.size()]), 0);
+                }
+            });
+    }
+
     @Override
     public boolean handleActivityResult(int requestCode, int resultCode, Intent data)
     {
@@ -152,193 +570,966 @@ public class googlepayment extends payment.BillingAgent implements PurchasesUpda
     @Override
     public boolean doPurchase(final String sku, final String devPayload, final boolean isConsumable, final long context)
     {
-        _print("doPurchase: " + sku);
-        if (!mIsReady) {
+        if (payment.logging(payment.LOG_INFO)) {
+            _print("doPurchase: " + sku);
+        }
+        return startPurchase(sku, null, devPayload, isConsumable, context);
+    }
+
+    @Override
+    public boolean doPurchaseOffer(final String sku, final String offerToken,
+                                   final String devPayload, final long context)
+    {
+        if (payment.logging(payment.LOG_INFO)) {
+            _print("doPurchaseOffer: " + sku);
+        }
+        return startPurchase(sku, offerToken, devPayload, false, context);
+    }
+
+    private boolean startPurchase(final String sku, final String offerToken,
+                                  final String devPayload,
+                                  final boolean isConsumable, final long context)
+    {
+        warmUp();
+        if (!isReady()) {
             _error("doPurchase: not ready. leaving.");
             return false;
         }
 
-        if (0 != mPurchaseContext) {
-            _error("doPurchase: !! purchase in progress (internal err)");
+        final InFlightPurchase record = new InFlightPurchase(sku, context, isConsumable);
+        if (null != mPurchasesBySku.putIfAbsent(sku, record)) {
+            if (payment.logging(payment.LOG_ERROR)) {
+                _error("doPurchase: !! purchase of " + sku + " already in progress");
+            }
             return false;
         }
 
-        mPurchaseContext = context;
-
-        List<QueryProductDetailsParams.Product> productList = new ArrayList<>();
-        productList.add(QueryProductDetailsParams.Product.newBuilder()
-                .setProductId(sku)
-                .setProductType(BillingClient.ProductType.INAPP)
-                .build());
-
-        QueryProductDetailsParams queryParams = QueryProductDetailsParams.newBuilder()
-                .setProductList(productList)
-                .build();
+        final ProductDetails cached = getCachedProduct(sku);
+        if (null != cached) {
+            _log("doPurchase: using cached product details");
+            final Activity activity = mActivity;
+            if (null == activity) {
+                finishPurchase(record, null);
+                return false;
+            }
+            // launchBillingFlow must run on the UI thread.  The
+            // uncached path below calls it from a Play callback, which
+            // already does.
+            activity.runOnUiThread(() -> {
+                    launchPurchaseFlow(record, cached, offerToken, devPayload);
+                });
+            return true;
+        }
 
-        mBillingClient.queryProductDetailsAsync(queryParams,
-                (billingResult, productDetailsList) -> {
-                    if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
-                        _error("Failed to query product details: " + billingResult.getResponseCode());
-                        sendPurchaseFailure(mPurchaseContext, "failed to create Android buy Intent");
-                        mPurchaseContext = 0;
-                        return;
-                    }
+        resolveProducts(new String[] { sku }, (ok, found) -> {
+            if (!ok || null == found[0]) {
+                if (payment.logging(payment.LOG_ERROR)) {
+                    _error("No product details found for " + sku);
+                }
+                finishPurchase(record, null);
+                sendPurchaseFailure(record.context, "failed to create Android buy Intent");
+                return;
+            }
+            launchPurchaseFlow(record, found[0], offerToken, devPayload);
+        });
+        return true;
+    }
 
-                    if (productDetailsList == null || productDetailsList.isEmpty()) {
-                        _error("No product details found for " + sku);
-                        sendPurchaseFailure(mPurchaseContext, "failed to create Android buy Intent");
-                        mPurchaseContext = 0;
-                        return;
-                    }
+    private void launchPurchaseFlow(InFlightPurchase record,
+                                    ProductDetails productDetails,
+                                    String offerToken,
+                                    String devPayload)
+    {
+        BillingFlowParams.ProductDetailsParams.Builder detailsBuilder =
+                BillingFlowParams.ProductDetailsParams.newBuilder()
+                        .setProductDetails(productDetails);
+        if (isSubscription(productDetails)) {
+            if (null == offerToken) {
+                offerToken = getDefaultOfferToken(productDetails);
+            }
+            if (record.isConsumable || null == offerToken) {
+                if (payment.logging(payment.LOG_ERROR)) {
+                    _error("Cannot purchase subscription " + record.sku +
+                           ((record.isConsumable)?(" as a consumable"):(": no offers")));
+                }
+                finishPurchase(record, null);
+                sendPurchaseFailure(record.context, "failed to create Android buy Intent");
+                return;
+            }
+            detailsBuilder.setOfferToken(offerToken);
+        }
+        BillingFlowParams.ProductDetailsParams detailsParams = detailsBuilder.build();
 
-                    ProductDetails productDetails = productDetailsList.get(0);
-                    BillingFlowParams.ProductDetailsParams detailsParams =
-                            BillingFlowParams.ProductDetailsParams.newBuilder()
-                                    .setProductDetails(productDetails)
-                                    .build();
+        BillingFlowParams.Builder flowParamsBuilder = BillingFlowParams.newBuilder()
+                .setProductDetailsParamsList(java.util.Collections.singletonList(detailsParams));
+        if (!TextUtils.isEmpty(devPayload)) {
+            flowParamsBuilder.setObfuscatedAccountId(devPayload);
+        }
+        BillingFlowParams flowParams = flowParamsBuilder.build();
 
-                    BillingFlowParams.Builder flowParamsBuilder = BillingFlowParams.newBuilder()
-                            .setProductDetailsParamsList(java.util.Collections.singletonList(detailsParams));
-                    if (!TextUtils.isEmpty(devPayload)) {
-                        flowParamsBuilder.setObfuscatedAccountId(devPayload);
-                    }
-                    BillingFlowParams flowParams = flowParamsBuilder.build();
-                    BillingResult result = mBillingClient.launchBillingFlow(mActivity, flowParams);
-                    if (result.getResponseCode() != BillingClient.BillingResponseCode.OK) {
-                        _error("Failed to launch billing flow: " + result.getResponseCode());
-                        sendPurchaseFailure(mPurchaseContext, "failed to launch billing flow");
-                        mPurchaseContext = 0;
-                    }
-                    else {
-                        _log("Purchase started");
-                        // Store the consumable so that we know if we have to acknowledge it later
-                        mPendingConsumableFlag = isConsumable;
-                    }
-                });
-        return true;
+        // Set before launching, in case the result arrives before
+        // launchBillingFlow returns.
+        final Activity activity = mActivity;
+        if (null == activity) {
+            finishPurchase(record, null);
+            sendPurchaseFailure(record.context, "failed to launch billing flow");
+            return;
+        }
+        mLaunchedPurchase = record;
+        final long start = System.nanoTime();
+        BillingResult result = mBillingClient.launchBillingFlow(activity, flowParams);
+        record(billingmetrics.OP_LAUNCH_FLOW, result, start);
+        if (result.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+            if (payment.logging(payment.LOG_ERROR)) {
+                _error("Failed to launch billing flow: " + result.getResponseCode());
+            }
+            finishPurchase(record, null);
+            recordPurchaseResult(record, result.getResponseCode());
+            sendPurchaseFailure(record.context, "failed to launch billing flow");
+        }
+        else {
+            _log("Purchase started");
+        }
     }
 
     @Override
     public boolean doQueryPurchases(final long context)
     {
-        if (!mIsReady) {
-            _error("doQueryPurchases: not ready. leaving.");
-            return false;
+        return submit("doQueryPurchases", new connectionmanager.Request() {
+            @Override public void run() {
+                queryPurchases(context);
+            }
+            @Override public void fail() {
+                sendPurchaseInfoError(context, "billing service unavailable");
+            }
+        });
+    }
+
+    private interface OwnedPurchases
+    {
+        /// 'purchases' is null if the query failed.
+        void onPurchases(List<Purchase> purchases);
+    }
+
+    // Query owned in-app products and subscriptions in parallel, and
+    // call back once with both lists merged (in-app first).
+    private void queryOwnedPurchases(final OwnedPurchases callback)
+    {
+        final int types = PRODUCT_TYPES.length;
+        final List<List<Purchase>> results = new ArrayList<>(types);
+        for (int t = 0 ; t < types ; ++t) {
+            results.add(null);
+        }
+        final AtomicInteger pending = new AtomicInteger(types);
+        // The first failing response code, if any
+        final AtomicInteger failure = new AtomicInteger(BillingClient.BillingResponseCode.OK);
+
+        final long start = System.nanoTime();
+        for (int t = 0 ; t < types ; ++t) {
+            final int type = t;
+            QueryPurchasesParams queryParams = QueryPurchasesParams.newBuilder()
+                    .setProductType(PRODUCT_TYPES[t])
+                    .build();
+            mBillingClient.queryPurchasesAsync(queryParams,
+                    (billingResult, purchases) -> {
+                        final int code = billingResult.getResponseCode();
+                        if (code == BillingClient.BillingResponseCode.OK) {
+                            synchronized (results) {
+                                results.set(type, purchases);
+                            }
+                        } else if (code != BillingClient.BillingResponseCode.FEATURE_NOT_SUPPORTED) {
+                            // No subscription support is not an error
+                            failure.compareAndSet(BillingClient.BillingResponseCode.OK, code);
+                        }
+                        if (0 != pending.decrementAndGet()) {
+                            return;
+                        }
+
+                        // One sample for the whole query
+                        final int result = failure.get();
+                        payment.sMetrics.record(billingmetrics.OP_QUERY_PURCHASES, result, start);
+                        if (BillingClient.BillingResponseCode.OK != result) {
+                            callback.onPurchases(null);
+                            return;
+                        }
+                        List<Purchase> merged = new ArrayList<>();
+                        synchronized (results) {
+                            for (List<Purchase> r : results) {
+                                if (null != r) {
+                                    merged.addAll(r);
+                                }
+                            }
+                        }
+                        callback.onPurchases(merged);
+                    });
         }
+    }
 
+    private void queryPurchases(final long context)
+    {
         _log("doQueryPurchases: ");
-        QueryPurchasesParams queryParams = QueryPurchasesParams.newBuilder()
-                .setProductType(BillingClient.ProductType.INAPP)
-                .build();
+        queryOwnedPurchases(purchases -> {
+            if (null == purchases) {
+                _error("doQueryPurchases: error retrieving purchased SKUs");
+                sendPurchaseInfoError(context, "error getting purchase data");
+                return;
+            }
 
-        mBillingClient.queryPurchasesAsync(queryParams,
-                (billingResult, purchases) -> {
-                    if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
-                        _error("doQueryPurchases: error retrieving purchased SKUs");
-                        sendPurchaseInfoError(context, "error getting purchase data");
-                        return;
-                    }
+            final int count = purchases.size();
+            final String[] skus = new String[count];
+            final String[] data = new String[count];
+            final String[] tokens = new String[count];
+            final String[] sigs = new String[count];
+            for (int i = 0 ; i < count ; ++i) {
+                Purchase purchase = purchases.get(i);
+                String sku = getFirstProductId(purchase);
+                if (TextUtils.isEmpty(sku)) {
+                    _error("doQueryPurchases: empty product list");
+                    sendPurchaseInfoError(context, "error in purchase data");
+                    return;
+                }
+
+                if (payment.logging(payment.LOG_INFO)) {
+                    _print(" - " + sku);
+                }
+                if (payment.logging(payment.LOG_VERBOSE)) {
+                    _log("   - (data:" + purchase.getOriginalJson() + ", sig: " + purchase.getSignature() + ")");
+                }
+
+                skus[i] = sku;
+                data[i] = purchase.getOriginalJson();
+                tokens[i] = purchase.getPurchaseToken();
+                sigs[i] = purchase.getSignature();
+            }
+            // Off the main thread: a large inventory takes a while.
+            // Native fulfils what it is given here, so the journal
+            // stops offering these purchases as incomplete.
+            purchaseverifier.validIndicesAsync(data, sigs, keep -> {
+                if (null != keep) {
+                    sendDeliveredPurchaseList(context, purchaseverifier.select(skus, keep),
+                            purchaseverifier.select(data, keep),
+                            purchaseverifier.select(tokens, keep),
+                            purchaseverifier.select(sigs, keep));
+                    return;
+                }
+                sendDeliveredPurchaseList(context, skus, data, tokens, sigs);
+            });
+        });
+    }
+
+    @Override
+    public boolean doQueryPurchaseHistory(final long context)
+    {
+        return submit("doQueryPurchaseHistory", new connectionmanager.Request() {
+            @Override public void run() {
+                queryPurchaseHistory(context);
+            }
+            @Override public void fail() {
+                new purchasehistory(googlepayment.this, context, 0)
+                        .fail("billing service unavailable");
+            }
+        });
+    }
+
+    // In-app and subscription history are queried in parallel, and
+    // each is streamed as soon as it arrives.
+    private void queryPurchaseHistory(final long context)
+    {
+        _log("doQueryPurchaseHistory: ");
+        final purchasehistory stream =
+                new purchasehistory(this, context, PRODUCT_TYPES.length);
+        final AtomicInteger pending = new AtomicInteger(PRODUCT_TYPES.length);
+        // The first failing response code, if any
+        final AtomicInteger failure = new AtomicInteger(BillingClient.BillingResponseCode.OK);
+
+        final long start = System.nanoTime();
+        for (String productType : PRODUCT_TYPES) {
+            QueryPurchaseHistoryParams params = QueryPurchaseHistoryParams.newBuilder()
+                    .setProductType(productType)
+                    .build();
+            mBillingClient.queryPurchaseHistoryAsync(params,
+                    (billingResult, records) -> {
+                        final int code = billingResult.getResponseCode();
+                        if (code != BillingClient.BillingResponseCode.OK &&
+                            code != BillingClient.BillingResponseCode.FEATURE_NOT_SUPPORTED) {
+                            failure.compareAndSet(BillingClient.BillingResponseCode.OK, code);
+                        }
+                        if (0 == pending.decrementAndGet()) {
+                            // One sample for the whole query
+                            payment.sMetrics.record(billingmetrics.OP_QUERY_HISTORY,
+                                                    failure.get(), start);
+                        }
 
-                    for (Purchase purchase : purchases) {
-                        String sku = getFirstProductId(purchase);
-                        if (TextUtils.isEmpty(sku)) {
-                            _error("doQueryPurchases: empty product list");
-                            sendPurchaseInfoError(context, "error in purchase data");
+                        if (code == BillingClient.BillingResponseCode.FEATURE_NOT_SUPPORTED ||
+                            (code == BillingClient.BillingResponseCode.OK && records == null)) {
+                            stream.add(new HistorySource(new ArrayList<PurchaseHistoryRecord>()));
+                            return;
+                        }
+                        if (code != BillingClient.BillingResponseCode.OK) {
+                            if (payment.logging(payment.LOG_ERROR)) {
+                                _error("doQueryPurchaseHistory: failed: " + code);
+                            }
+                            stream.fail("error getting purchase history");
                             return;
                         }
+                        if (payment.logging(payment.LOG_VERBOSE)) {
+                            _log("doQueryPurchaseHistory: " + records.size() + " records");
+                        }
+                        stream.add(new HistorySource(records));
+                    });
+        }
+    }
+
+    private static final class HistorySource implements purchasehistory.Source
+    {
+        private final List<PurchaseHistoryRecord> mRecords;
 
-                        _print(" - " + sku);
-                        _log("   - (data:" + purchase.getOriginalJson() + ", sig: " + purchase.getSignature() + ")");
+        HistorySource(List<PurchaseHistoryRecord> records)
+        {
+            mRecords = records;
+        }
 
-                        sendPurchaseInfo(context, sku, purchase.getOriginalJson(), purchase.getPurchaseToken(),
-                                null, purchase.getSignature());
-                    }
-                    sendPurchaseInfoTerminator(context);
-                });
-        return true;
+        @Override public int size()
+        {
+            return mRecords.size();
+        }
+
+        @Override public void get(int index, int at, String[] skus, String[] data,
+                                  String[] tokens, String[] sigs, long[] times)
+        {
+            PurchaseHistoryRecord r = mRecords.get(index);
+            List<String> products = r.getProducts();
+            skus[at] = (products == null || products.isEmpty())?(""):(products.get(0));
+            data[at] = r.getOriginalJson();
+            tokens[at] = r.getPurchaseToken();
+            sigs[at] = r.getSignature();
+            times[at] = r.getPurchaseTime();
+        }
+    }
+
+    @Override
+    public boolean doQueryPurchaseChanges(final long context)
+    {
+        return submit("doQueryPurchaseChanges", new connectionmanager.Request() {
+            @Override public void run() {
+                queryPurchaseChanges(context);
+            }
+            @Override public void fail() {
+                sendPurchaseChangesError(context);
+            }
+        });
+    }
+
+    private void queryPurchaseChanges(final long context)
+    {
+        queryOwnedPurchases(purchases -> {
+            if (null == purchases) {
+                _error("doQueryPurchaseChanges: error retrieving purchased SKUs");
+                sendPurchaseChangesError(context);
+                return;
+            }
+
+            final int count = purchases.size();
+            final String[] skus = new String[count];
+            final String[] data = new String[count];
+            final String[] tokens = new String[count];
+            final String[] sigs = new String[count];
+            final int[] states = new int[count];
+            for (int i = 0 ; i < count ; ++i) {
+                Purchase purchase = purchases.get(i);
+                skus[i] = getFirstProductId(purchase);
+                data[i] = purchase.getOriginalJson();
+                tokens[i] = purchase.getPurchaseToken();
+                sigs[i] = purchase.getSignature();
+                // Acknowledging a purchase changes its JSON,
+                // so it counts as a change.
+                states[i] = purchase.getPurchaseState() |
+                    ((purchase.isAcknowledged())?(0x100):(0));
+            }
+            purchaseverifier.validIndicesAsync(data, sigs, keep -> {
+                if (null != keep) {
+                    sendPurchaseChanges(context, purchaseverifier.select(skus, keep),
+                            purchaseverifier.select(data, keep),
+                            purchaseverifier.select(tokens, keep),
+                            purchaseverifier.select(sigs, keep),
+                            purchaseverifier.select(states, keep));
+                    return;
+                }
+                sendPurchaseChanges(context, skus, data, tokens, sigs, states);
+            });
+        });
     }
 
     @Override
     public boolean doQueryProduct(final String sku, final long context)
     {
-        if (!mIsReady) {
-            _error("doQueryProduct: not ready. leaving.");
-            return false;
+        return submit("doQueryProduct", new connectionmanager.Request() {
+            @Override public void run() {
+                queryProduct(sku, context);
+            }
+            @Override public void fail() {
+                sendProductInfoError(context, sku);
+            }
+        });
+    }
+
+    private void queryProduct(final String sku, final long context)
+    {
+        if (payment.logging(payment.LOG_VERBOSE)) {
+            _log("doQueryProduct: " + sku);
         }
 
-        _log("doQueryProduct: " + sku);
+        resolveProducts(new String[] { sku }, (ok, found) -> {
+            if (!ok || null == found[0]) {
+                if (payment.logging(payment.LOG_VERBOSE)) {
+                    _log("threadQueryProduct: no details for " + sku);
+                }
+                sendProductInfoError(context, sku);
+                return;
+            }
+            sendProductDetails(context, sku, found[0]);
+        });
+    }
 
-        List<QueryProductDetailsParams.Product> productList = new ArrayList<>();
-        productList.add(QueryProductDetailsParams.Product.newBuilder()
-                .setProductId(sku)
-                .setProductType(BillingClient.ProductType.INAPP)
-                .build());
+    private void sendProductDetails(long context, String sku,
+                                    ProductDetails productDetails)
+    {
+        final String price = getDisplayPrice(productDetails);
+        if (price == null) {
+            _log("threadQueryProduct: missing offer details");
+            sendProductInfoError(context, sku);
+            return;
+        }
+        sendProductInfo(context, sku, productDetails.getTitle(),
+                productDetails.getDescription(), price);
+    }
 
-        QueryProductDetailsParams queryParams = QueryProductDetailsParams.newBuilder()
-                .setProductList(productList)
-                .build();
+    private static boolean isSubscription(ProductDetails productDetails)
+    {
+        return BillingClient.ProductType.SUBS.equals(productDetails.getProductType());
+    }
 
-        mBillingClient.queryProductDetailsAsync(queryParams,
-                (billingResult, productDetailsList) -> {
-                    if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
-                        _log("threadQueryProduct: bad response from getProductDetails: " + billingResult.getResponseCode());
-                        sendProductInfoError(context, sku);
-                        return;
-                    }
+    // The base plan, i.e. the first offer with no offer id, or the
+    // first offer if they all have one.  Null if there are none.
+    private static ProductDetails.SubscriptionOfferDetails getBasePlan(ProductDetails productDetails)
+    {
+        List<ProductDetails.SubscriptionOfferDetails> offers =
+                productDetails.getSubscriptionOfferDetails();
+        if (offers == null || offers.isEmpty()) {
+            return null;
+        }
+        for (ProductDetails.SubscriptionOfferDetails offer : offers) {
+            if (offer.getOfferId() == null) {
+                return offer;
+            }
+        }
+        return offers.get(0);
+    }
 
-                    if (productDetailsList == null || productDetailsList.isEmpty()) {
-                        _log("threadQueryProduct: bundle doesn't contain list");
-                        sendProductInfoError(context, sku);
-                        return;
-                    }
+    private static String getDefaultOfferToken(ProductDetails productDetails)
+    {
+        ProductDetails.SubscriptionOfferDetails basePlan = getBasePlan(productDetails);
+        return (null == basePlan)?(null):(basePlan.getOfferToken());
+    }
 
-                    ProductDetails productDetails = productDetailsList.get(0);
-                    ProductDetails.OneTimePurchaseOfferDetails offerDetails =
-                            productDetails.getOneTimePurchaseOfferDetails();
-                    if (offerDetails == null) {
-                        _log("threadQueryProduct: missing one-time purchase offer details");
-                        sendProductInfoError(context, sku);
-                        return;
-                    }
-                    sendProductInfo(context, sku, productDetails.getTitle(),
-                            productDetails.getDescription(), offerDetails.getFormattedPrice());
-                });
+    // The phase of the base plan that repeats (its last phase).
+    private static ProductDetails.PricingPhase getRecurringPhase(ProductDetails productDetails)
+    {
+        ProductDetails.SubscriptionOfferDetails basePlan = getBasePlan(productDetails);
+        if (null == basePlan || null == basePlan.getPricingPhases()) {
+            return null;
+        }
+        List<ProductDetails.PricingPhase> phases =
+                basePlan.getPricingPhases().getPricingPhaseList();
+        if (phases == null || phases.isEmpty()) {
+            return null;
+        }
+        return phases.get(phases.size() - 1);
+    }
+
+    // The single price shown for a product: the one-time price, or a
+    // subscription's recurring price.  Null if there is none.
+    private static String getDisplayPrice(ProductDetails productDetails)
+    {
+        if (isSubscription(productDetails)) {
+            ProductDetails.PricingPhase phase = getRecurringPhase(productDetails);
+            return (null == phase)?(null):(phase.getFormattedPrice());
+        }
+        ProductDetails.OneTimePurchaseOfferDetails offerDetails =
+                productDetails.getOneTimePurchaseOfferDetails();
+        return (null == offerDetails)?(null):(offerDetails.getFormattedPrice());
+    }
+
+    private static String getPriceCurrency(ProductDetails productDetails)
+    {
+        if (isSubscription(productDetails)) {
+            ProductDetails.PricingPhase phase = getRecurringPhase(productDetails);
+            return (null == phase)?(null):(phase.getPriceCurrencyCode());
+        }
+        ProductDetails.OneTimePurchaseOfferDetails offerDetails =
+                productDetails.getOneTimePurchaseOfferDetails();
+        return (null == offerDetails)?(null):(offerDetails.getPriceCurrencyCode());
+    }
+
+    private ProductDetails getCachedProduct(String sku)
+    {
+        return mProductCache.get(sku);
+    }
+
+    @Override
+    public boolean doQueryProducts(final String[] skus, final long context)
+    {
+        return submit("doQueryProducts", new connectionmanager.Request() {
+            @Override public void run() {
+                queryProducts(skus, context);
+            }
+            @Override public void fail() {
+                sendProductInfoList(context, skus, new String[skus.length],
+                        new String[skus.length], new String[skus.length]);
+            }
+        });
+    }
+
+    private void queryProducts(final String[] skus, final long context)
+    {
+        if (payment.logging(payment.LOG_VERBOSE)) {
+            _log("doQueryProducts: " + skus.length + " skus");
+        }
+
+        resolveProducts(skus, (ok, found) -> {
+            if (!ok) {
+                sendProductInfoList(context, skus, new String[skus.length],
+                        new String[skus.length], new String[skus.length]);
+                return;
+            }
+            sendProductDetailsList(context, skus, found);
+        });
+    }
+
+    // The refresh waits for the connection, so start it.
+    @Override
+    public boolean doQueryCatalog(final String[] skus, final long context)
+    {
+        warmUp();
+        return super.doQueryCatalog(skus, context);
+    }
+
+    @Override
+    protected boolean refreshCatalog(final String[] skus, final long context)
+    {
+        if (payment.logging(payment.LOG_VERBOSE)) {
+            _log("refreshCatalog: " + skus.length + " skus");
+        }
+
+        resolveProducts(skus, (ok, found) -> {
+            if (!ok) {
+                onCatalogRefreshFailed(context);
+                return;
+            }
+
+            final int count = skus.length;
+            final String[] titles = new String[count];
+            final String[] descriptions = new String[count];
+            final String[] prices = new String[count];
+            final String[] currencies = new String[count];
+            for (int i = 0 ; i < count ; ++i) {
+                final String price = (null == found[i])?(null):(getDisplayPrice(found[i]));
+                if (price == null) {
+                    continue;
+                }
+                titles[i] = found[i].getTitle();
+                descriptions[i] = found[i].getDescription();
+                prices[i] = price;
+                currencies[i] = getPriceCurrency(found[i]);
+            }
+            onCatalogRefreshed(context, skus, titles, descriptions, prices, currencies);
+        });
         return true;
     }
 
+    private interface ProductsResolved
+    {
+        /// 'found' is parallel to the requested skus.  Unknown
+        /// products are null.
+        void onResolved(boolean ok, ProductDetails[] found);
+    }
+
+    // Look up ProductDetails for all skus, going to the store only
+    // for those that are not cached.
+    private void resolveProducts(final String[] skus, final ProductsResolved callback)
+    {
+        final ProductDetails[] found = new ProductDetails[skus.length];
+        List<String> missing = new ArrayList<>();
+        for (int i = 0 ; i < skus.length ; ++i) {
+            found[i] = getCachedProduct(skus[i]);
+            if (null == found[i]) {
+                missing.add(skus[i]);
+            }
+        }
+
+        if (missing.isEmpty()) {
+            callback.onResolved(true, found);
+            return;
+        }
+
+        queryProductDetails(missing, (ok, byId) -> {
+            if (!ok) {
+                callback.onResolved(false, found);
+                return;
+            }
+            for (int i = 0 ; i < skus.length ; ++i) {
+                if (null == found[i]) {
+                    found[i] = byId.get(skus[i]);
+                }
+            }
+            callback.onResolved(true, found);
+        });
+    }
+
+    private interface ProductsQueried
+    {
+        /// 'byId' holds the products the store returned, keyed by
+        /// product id.
+        void onQueried(boolean ok, Map<String, ProductDetails> byId);
+    }
+
+    // Query the store for skus and cache the results.  In-app
+    // products and subscriptions are queried in parallel, and the
+    // results merged.
+    private void queryProductDetails(List<String> skus, final ProductsQueried callback)
+    {
+        final Map<String, ProductDetails> byId = new HashMap<>();
+        final AtomicInteger pending = new AtomicInteger(PRODUCT_TYPES.length);
+        // The first failing response code, if any
+        final AtomicInteger failure = new AtomicInteger(BillingClient.BillingResponseCode.OK);
+        final long start = System.nanoTime();
+        for (String productType : PRODUCT_TYPES) {
+            mBillingClient.queryProductDetailsAsync(newProductQuery(skus, productType),
+                    (billingResult, productDetailsList) -> {
+                        final int code = billingResult.getResponseCode();
+                        if (code == BillingClient.BillingResponseCode.OK) {
+                            if (productDetailsList != null) {
+                                synchronized (byId) {
+                                    for (ProductDetails details : productDetailsList) {
+                                        mProductCache.put(details);
+                                        byId.put(details.getProductId(), details);
+                                    }
+                                }
+                            }
+                        } else if (code != BillingClient.BillingResponseCode.FEATURE_NOT_SUPPORTED) {
+                            if (payment.logging(payment.LOG_VERBOSE)) {
+                                _log("queryProductDetails: bad response from getProductDetails: " + code);
+                            }
+                            failure.compareAndSet(BillingClient.BillingResponseCode.OK, code);
+                        }
+                        if (0 != pending.decrementAndGet()) {
+                            return;
+                        }
+
+                        // One sample for the whole query
+                        final int result = failure.get();
+                        payment.sMetrics.record(billingmetrics.OP_QUERY_PRODUCT, result, start);
+
+                        // The other callbacks' puts happen before their
+                        // decrements, so byId is complete here.
+                        callback.onQueried(BillingClient.BillingResponseCode.OK == result, byId);
+                    });
+        }
+    }
+
     @Override
-    public boolean doConsume(final String token)
+    public boolean doPrefetchProducts(final String[] skus)
     {
-        if (!mIsReady) {
-            _error("doConsume: !! not ready. leaving.");
-            return false;
+        int queued = 0;
+        synchronized (mPrefetchQueue) {
+            for (String sku : skus) {
+                if (null != sku && !isCached(sku) && mPrefetchQueue.add(sku)) {
+                    ++queued;
+                }
+            }
+        }
+        if (payment.logging(payment.LOG_VERBOSE)) {
+            _log("doPrefetchProducts: " + queued + " of " + skus.length + " skus queued");
+        }
+
+        warmUp();
+        if (isReady()) {
+            prefetchNext();
+        }
+        return true;
+    }
+
+    private boolean isCached(String sku)
+    {
+        return mProductCache.contains(sku);
+    }
+
+    // Query the next PREFETCH_BATCH skus, unless a prefetch query is
+    // already in flight.  Each batch starts the next when it
+    // completes, while the service stays connected.
+    private void prefetchNext()
+    {
+        final List<String> batch = new ArrayList<>(PREFETCH_BATCH);
+        synchronized (mPrefetchQueue) {
+            if (mPrefetching) {
+                return;
+            }
+            Iterator<String> it = mPrefetchQueue.iterator();
+            while (it.hasNext() && batch.size() < PREFETCH_BATCH) {
+                String sku = it.next();
+                it.remove();
+                if (!isCached(sku)) {
+                    batch.add(sku);
+                }
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            mPrefetching = true;
         }
 
+        queryProductDetails(batch, (ok, byId) -> {
+            if (payment.logging(payment.LOG_VERBOSE)) {
+                _log("prefetch: " + byId.size() + " of " + batch.size() + " products" +
+                     ((ok)?(""):(" (query failed)")));
+            }
+            synchronized (mPrefetchQueue) {
+                mPrefetching = false;
+                for (String sku : batch) {
+                    if (ok) {
+                        mPrefetchFailures.remove(sku);
+                        continue;
+                    }
+                    final Integer failures = mPrefetchFailures.get(sku);
+                    final int attempts = 1 + ((null == failures)?(0):(failures));
+                    if (attempts < PREFETCH_ATTEMPTS) {
+                        mPrefetchFailures.put(sku, attempts);
+                        mPrefetchQueue.add(sku);
+                    } else {
+                        mPrefetchFailures.remove(sku);
+                    }
+                }
+            }
+            if (!ok) {
+                new Handler(Looper.getMainLooper()).postDelayed
+                    (this::prefetchResume, connectionmanager.INITIAL_BACKOFF_MS);
+            } else {
+                prefetchResume();
+            }
+        });
+    }
+
+    private void prefetchResume()
+    {
+        if (isReady()) {
+            prefetchNext();
+        }
+    }
+
+    private void sendProductDetailsList(long context, String[] skus,
+                                        ProductDetails[] found)
+    {
+        final int count = skus.length;
+        final int[] types = new int[count];
+        final String[] titles = new String[count];
+        final String[] descriptions = new String[count];
+        final String[] prices = new String[count];
+        final productoffers offers = new productoffers();
+
+        for (int i = 0 ; i < count ; ++i) {
+            offers.beginProduct();
+            ProductDetails productDetails = found[i];
+            if (productDetails == null) {
+                if (payment.logging(payment.LOG_VERBOSE)) {
+                    _log("doQueryProducts: no details for " + skus[i]);
+                }
+                continue;
+            }
+
+            final String price = getDisplayPrice(productDetails);
+            if (price == null) {
+                if (payment.logging(payment.LOG_VERBOSE)) {
+                    _log("doQueryProducts: missing offer details for " + skus[i]);
+                }
+                continue;
+            }
+
+            titles[i] = productDetails.getTitle();
+            descriptions[i] = productDetails.getDescription();
+            prices[i] = price;
+            if (isSubscription(productDetails)) {
+                types[i] = payment.PRODUCT_SUBS;
+                addOffers(offers, productDetails);
+            }
+        }
+
+        sendProductInfoList(context, skus, types, titles, descriptions, prices,
+                offers.finish());
+    }
+
+    private static void addOffers(productoffers offers, ProductDetails productDetails)
+    {
+        List<ProductDetails.SubscriptionOfferDetails> offerList =
+                productDetails.getSubscriptionOfferDetails();
+        if (offerList == null) {
+            return;
+        }
+        for (ProductDetails.SubscriptionOfferDetails offer : offerList) {
+            offers.addOffer(offer.getBasePlanId(), offer.getOfferId(),
+                    offer.getOfferToken());
+            if (offer.getPricingPhases() == null ||
+                offer.getPricingPhases().getPricingPhaseList() == null) {
+                continue;
+            }
+            for (ProductDetails.PricingPhase phase :
+                     offer.getPricingPhases().getPricingPhaseList()) {
+                offers.addPhase(phase.getFormattedPrice(),
+                        phase.getPriceCurrencyCode(), phase.getBillingPeriod(),
+                        phase.getPriceAmountMicros(), phase.getBillingCycleCount(),
+                        phase.getRecurrenceMode());
+            }
+        }
+    }
+
+    @Override
+    public boolean doConsume(final String token)
+    {
         if (TextUtils.isEmpty(token)) {
             _error("doConsume: !! null or empty token");
             return false;
         }
 
-        _print("doConsume: token: " + token);
-        ConsumeParams consumeParams = ConsumeParams.newBuilder()
-                .setPurchaseToken(token)
-                .build();
+        return submit("doConsume", new connectionmanager.Request() {
+            @Override public void run() {
+                mConsumer.add(consumepipeline.OP_CONSUME, new String[] { token }, 0);
+            }
+            @Override public void fail() {
+                _error("doConsume: !! dropped, billing service unavailable");
+            }
+        });
+    }
 
-        mBillingClient.consumeAsync(consumeParams,
-                (billingResult, purchaseToken) -> {
-                    if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-                        _log("doConsume: successfully consumed");
-                    } else {
-                        _error("doConsume: failed to consume. response: " + billingResult.getResponseCode());
-                    }
-                });
+    @Override
+    public boolean doConsumePurchases(final String[] tokens, final long context)
+    {
+        return submitTokens("doConsumePurchases", consumepipeline.OP_CONSUME,
+                tokens, context);
+    }
+
+    @Override
+    public boolean doAcknowledgePurchases(final String[] tokens, final long context)
+    {
+        return submitTokens("doAcknowledgePurchases", consumepipeline.OP_ACKNOWLEDGE,
+                tokens, context);
+    }
+
+    private boolean submitTokens(String name, final int op, final String[] tokens,
+                                 final long context)
+    {
+        if (payment.logging(payment.LOG_VERBOSE)) {
+            _log(name + ": " + tokens.length + " tokens");
+        }
+
+        return submit(name, new connectionmanager.Request() {
+            @Override public void run() {
+                if (!mConsumer.add(op, tokens, context)) {
+                    fail();
+                }
+            }
+            @Override public void fail() {
+                for (int i = 0 ; i < tokens.length ; ++i) {
+                    sendTokenResult(context, op, tokens[i],
+                            BillingClient.BillingResponseCode.SERVICE_DISCONNECTED,
+                            tokens.length - 1 - i);
+                }
+            }
+        });
+    }
+
+    // consumepipeline.Executor
+    private void startTokenOp(int op, final String token,
+                              final consumepipeline.Completion done)
+    {
+        final long start = System.nanoTime();
+        if (consumepipeline.OP_CONSUME == op) {
+            if (payment.logging(payment.LOG_INFO)) {
+                _print("consume: token: " + token);
+            }
+            ConsumeParams consumeParams = ConsumeParams.newBuilder()
+                    .setPurchaseToken(token)
+                    .build();
+            mBillingClient.consumeAsync(consumeParams,
+                    (billingResult, purchaseToken) -> {
+                        record(billingmetrics.OP_CONSUME, billingResult, start);
+                        final int code = billingResult.getResponseCode();
+                        done.onComplete(code, isTransientError(code));
+                    });
+        } else {
+            AcknowledgePurchaseParams acknowledgePurchaseParams =
+                    AcknowledgePurchaseParams.newBuilder()
+                            .setPurchaseToken(token)
+                            .build();
+            mBillingClient.acknowledgePurchase(acknowledgePurchaseParams,
+                    billingResult -> {
+                        record(billingmetrics.OP_ACKNOWLEDGE, billingResult, start);
+                        final int code = billingResult.getResponseCode();
+                        done.onComplete(code, isTransientError(code));
+                    });
+        }
+    }
+
+    // consumepipeline.Listener
+    private void onTokenComplete(int op, long context, String token,
+                                 int responseCode, int remaining)
+    {
+        final String name = (consumepipeline.OP_CONSUME == op)?("consume"):("acknowledge");
+        if (responseCode == BillingClient.BillingResponseCode.OK) {
+            if (payment.logging(payment.LOG_VERBOSE)) {
+                _log(name + ": done: " + token);
+            }
+        } else if (payment.logging(payment.LOG_ERROR)) {
+            _error(name + ": failed. response: " + responseCode);
+        }
+
+        if (consumepipeline.OP_CONSUME == op) {
+            // ITEM_NOT_OWNED: already consumed, by an earlier run
+            if (responseCode == BillingClient.BillingResponseCode.OK ||
+                responseCode == BillingClient.BillingResponseCode.ITEM_NOT_OWNED) {
+                mJournal.mark(token, purchasejournal.CONSUMED);
+            }
+        } else if (responseCode == BillingClient.BillingResponseCode.OK) {
+            mJournal.mark(token, purchasejournal.ACKNOWLEDGED);
+        }
+
+        if (0 != context) {
+            sendTokenResult(context, op, token, responseCode, remaining);
+        }
+    }
+
+    // Run the request now if connected, otherwise queue it until the
+    // connection is re-established.
+    private boolean submit(String name, connectionmanager.Request request)
+    {
+        warmUp();
+        if (!mConnection.submit(request)) {
+            if (payment.logging(payment.LOG_ERROR)) {
+                _error(name + ": not ready and cannot queue. leaving.");
+            }
+            return false;
+        }
+        if (!isReady() && payment.logging(payment.LOG_VERBOSE)) {
+            _log(name + ": not ready, queued (" + mConnection.getQueueDepth() + ")");
+        }
         return true;
     }
 
     private boolean verifyPurchase(String data, String sig)
     {
-        // A VERY BIG TODO:
-        // _error("verifyPurchase: !! NO CLIENT SIDE PURCHASE VERIFICATION !!");
-        return true;
+        final purchaseverifier verifier = payment.getVerifier();
+        if (null == verifier) {
+            // No key configured.  Verification is left to the server.
+            return true;
+        }
+        return verifier.verify(data, sig);
     }
 }
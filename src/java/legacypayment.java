@@ -0,0 +1,987 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentSender;
+import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.vending.billing.IInAppBillingService;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+// A BillingAgent that talks to the Play Store billing service
+// (version 3 of IInAppBillingService) directly, without the Play
+// Billing Library.  Service calls block, so they all run, in order,
+// on one worker thread.  Owned purchases are read a page at a time
+// (following continuation tokens) and each page is sent to native as
+// soon as it has been read.
+public class legacypayment extends payment.BillingAgent
+{
+    // Logging
+    static private void _log(String msg)
+    {
+        if (payment.logging(payment.LOG_VERBOSE)) {
+            Log.i("tzbilling(legacy)", msg);
+        }
+    }
+    static private void _print(String msg)
+    {
+        if (payment.logging(payment.LOG_INFO)) {
+            Log.i("tzbilling(legacy)", msg);
+        }
+    }
+    static private void _error(String msg)
+    {
+        if (payment.logging(payment.LOG_ERROR)) {
+            Log.e("tzbilling(legacy)", msg);
+        }
+    }
+
+    static final int API_VERSION = 3;
+
+    static final String SERVICE_ACTION =
+        "com.android.vending.billing.InAppBillingService.BIND";
+    static final String VENDING_PACKAGE = "com.android.vending";
+
+    static final String ITEM_TYPE_INAPP = "inapp";
+    static final String ITEM_TYPE_SUBS = "subs";
+
+    // Response codes (see IInAppBillingService.aidl).  They have the
+    // same values as the BillingClient.BillingResponseCode of the same
+    // name, so they go into the metrics and token results unchanged.
+    static final int RESULT_OK = 0;
+    static final int RESULT_USER_CANCELED = 1;
+    static final int RESULT_ERROR = 6;
+    // A call that threw RemoteException (SERVICE_DISCONNECTED)
+    static final int RESULT_SERVICE_DISCONNECTED = -1;
+
+    // Bundle keys
+    static final String RESPONSE_CODE = "RESPONSE_CODE";
+    static final String ITEM_ID_LIST = "ITEM_ID_LIST";
+    static final String DETAILS_LIST = "DETAILS_LIST";
+    static final String BUY_INTENT = "BUY_INTENT";
+    static final String INAPP_PURCHASE_DATA = "INAPP_PURCHASE_DATA";
+    static final String INAPP_DATA_SIGNATURE = "INAPP_DATA_SIGNATURE";
+    static final String INAPP_PURCHASE_ITEM_LIST = "INAPP_PURCHASE_ITEM_LIST";
+    static final String INAPP_PURCHASE_DATA_LIST = "INAPP_PURCHASE_DATA_LIST";
+    static final String INAPP_DATA_SIGNATURE_LIST = "INAPP_DATA_SIGNATURE_LIST";
+    static final String INAPP_CONTINUATION_TOKEN = "INAPP_CONTINUATION_TOKEN";
+
+    /// getSkuDetails accepts at most this many skus per call.
+    public static final int SKU_DETAILS_BATCH = 20;
+
+    private static final String[] TYPES_INAPP = { ITEM_TYPE_INAPP };
+    private static final String[] TYPES_ALL = { ITEM_TYPE_INAPP, ITEM_TYPE_SUBS };
+
+    static Intent serviceIntent()
+    {
+        Intent intent = new Intent(SERVICE_ACTION);
+        intent.setPackage(VENDING_PACKAGE);
+        return intent;
+    }
+
+    /// True if the billing service can be bound on this device.  Only
+    /// asks the PackageManager; nothing is bound.
+    public static boolean isAvailable(Context context)
+    {
+        PackageManager pm = context.getPackageManager();
+        if (null == pm) {
+            return false;
+        }
+        List<ResolveInfo> services = pm.queryIntentServices(serviceIntent(), 0);
+        return (null != services && !services.isEmpty());
+    }
+
+    // The purchase whose buy intent was launched.  The service has no
+    // purchase listener, and only one flow can be on screen, so the
+    // next handleActivityResult belongs to it.
+    private static final class PendingPurchase
+    {
+        final String  sku;
+        final String  type;
+        final long    context;
+        final boolean isConsumable;
+        final long    startTime;
+
+        PendingPurchase(String sku, String type, long context, boolean isConsumable)
+        {
+            this.sku = sku;
+            this.type = type;
+            this.context = context;
+            this.isConsumable = isConsumable;
+            this.startTime = android.os.SystemClock.elapsedRealtime();
+        }
+    }
+
+    private Activity mActivity;
+    private final int mPurchaseRequestCode;
+    private final String mPackageName;
+    private final connectionmanager mConnection;
+    private final ExecutorService mWorker;
+
+    // Set on the worker thread once the service has been checked,
+    // cleared when it disconnects.
+    private volatile IInAppBillingService mService = null;
+    private volatile boolean mSubscriptionsSupported = false;
+    private volatile long mConnectStartNanos = 0;
+
+    // Guarded by 'this'
+    private boolean mBound = false;
+
+    private final AtomicReference<PendingPurchase> mPurchase =
+            new AtomicReference<>(null);
+
+    public legacypayment(Activity activity, int purchaseRequestCode)
+    {
+        mActivity = activity;
+        mPurchaseRequestCode = purchaseRequestCode;
+        mPackageName = activity.getPackageName();
+        mWorker = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "tzbilling-legacy");
+                t.setDaemon(true);
+                return t;
+            });
+        mConnection = new connectionmanager(this::bind);
+
+        _log("binding billing service...");
+        mConnection.connect();
+    }
+
+    // connectionmanager.Connector
+    private void bind()
+    {
+        boolean bound;
+        synchronized (this) {
+            if (null == mActivity) {
+                return;
+            }
+            if (mBound) {
+                mActivity.unbindService(mServiceConnection);
+                mBound = false;
+            }
+
+            mConnectStartNanos = System.nanoTime();
+            try {
+                mBound = mActivity.bindService(serviceIntent(), mServiceConnection,
+                                               Context.BIND_AUTO_CREATE);
+            } catch (SecurityException e) {
+                _error("bind: " + e);
+            }
+            bound = mBound;
+        }
+
+        if (!bound) {
+            _error("bind: billing service not available");
+            onConnectFailed(false);
+        }
+    }
+
+    private void onConnectFailed(boolean retry)
+    {
+        reportReady(false);
+        mConnection.onConnectFailed(retry);
+        if (!retry) {
+            failDeferredCatalogQueries();
+        }
+    }
+
+    @Override
+    protected boolean isUnavailable()
+    {
+        return mConnection.isUnavailable();
+    }
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            final IInAppBillingService service =
+                    IInAppBillingService.Stub.asInterface(binder);
+            try {
+                mWorker.execute(() -> checkBillingSupported(service));
+            } catch (RejectedExecutionException e) {
+                // Shut down
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            _log("Billing service disconnected");
+            mService = null;
+            reportReady(false);
+            mConnection.onDisconnected();
+        }
+    };
+
+    // Worker thread
+    private void checkBillingSupported(IInAppBillingService service)
+    {
+        int code;
+        try {
+            code = service.isBillingSupported(API_VERSION, mPackageName, ITEM_TYPE_INAPP);
+            mSubscriptionsSupported = (RESULT_OK == code &&
+                    RESULT_OK == service.isBillingSupported(API_VERSION, mPackageName,
+                                                            ITEM_TYPE_SUBS));
+        } catch (RemoteException e) {
+            code = RESULT_SERVICE_DISCONNECTED;
+        }
+        payment.sMetrics.record(billingmetrics.OP_CONNECT, code, mConnectStartNanos);
+
+        if (RESULT_OK == code) {
+            if (payment.logging(payment.LOG_VERBOSE)) {
+                _log("Billing service connected (subscriptions: " +
+                     mSubscriptionsSupported + ")");
+            }
+            mService = service;
+            reportReady(true);
+            mConnection.onConnected();
+            return;
+        }
+
+        if (payment.logging(payment.LOG_ERROR)) {
+            _error("Billing not supported, response code: " + code);
+        }
+        onConnectFailed(RESULT_SERVICE_DISCONNECTED == code);
+    }
+
+    @Override
+    public void shutdown()
+    {
+        _log("shutting down...");
+        markShutdown();
+        mConnection.shutdown();
+        mWorker.shutdown();
+        synchronized (this) {
+            if (mBound) {
+                mActivity.unbindService(mServiceConnection);
+                mBound = false;
+            }
+            mActivity = null;
+        }
+        mService = null;
+        _log("done shutting down.");
+    }
+
+    /// Reconnect / request queue state (queue depth, reconnect
+    /// count).
+    public connectionmanager getConnectionManager()
+    {
+        return mConnection;
+    }
+
+    // A request that runs on the worker thread with the connected
+    // service.  If the service has gone, or call() throws, fail() is
+    // called instead.
+    private abstract class ServiceRequest implements connectionmanager.Request
+    {
+        abstract void call(IInAppBillingService service) throws RemoteException;
+
+        @Override public void run() {
+            try {
+                mWorker.execute(() -> {
+                        final IInAppBillingService service = mService;
+                        if (null == service) {
+                            fail();
+                            return;
+                        }
+                        try {
+                            call(service);
+                        } catch (RemoteException e) {
+                            _error("service call failed: " + e);
+                            fail();
+                        }
+                    });
+            } catch (RejectedExecutionException e) {
+                fail();
+            }
+        }
+    }
+
+    // Run the request once the service is connected (see
+    // connectionmanager).
+    private boolean submit(String name, ServiceRequest request)
+    {
+        // Retries the bind if it failed permanently a while ago
+        if (mConnection.isUnavailable()) {
+            mConnection.connect();
+        }
+        if (!mConnection.submit(request)) {
+            if (payment.logging(payment.LOG_ERROR)) {
+                _error(name + ": not ready and cannot queue. leaving.");
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private String[] getItemTypes()
+    {
+        return (mSubscriptionsSupported)?(TYPES_ALL):(TYPES_INAPP);
+    }
+
+    // Some versions of the service store the code as a Long, which
+    // getInt() would read as 0 (OK).  A missing or non-numeric code is
+    // an error.
+    private static int getResponseCode(Bundle bundle)
+    {
+        final Object code = (null == bundle)?(null):(bundle.get(RESPONSE_CODE));
+        if (code instanceof Integer) {
+            return (Integer )code;
+        }
+        if (code instanceof Long) {
+            return (int )((Long )code).longValue();
+        }
+        if (payment.logging(payment.LOG_ERROR)) {
+            _error("getResponseCode: missing or bad response code: " + code);
+        }
+        return RESULT_ERROR;
+    }
+
+    private static JSONObject parse(String json)
+    {
+        if (null == json) {
+            return null;
+        }
+        try {
+            return new JSONObject(json);
+        } catch (JSONException e) {
+            _error("parse: bad JSON: " + e);
+            return null;
+        }
+    }
+
+    //
+    // Purchases
+    //
+
+    @Override
+    public boolean doPurchase(final String sku, final String devPayload,
+                              final boolean isConsumable, final long context)
+    {
+        if (payment.logging(payment.LOG_INFO)) {
+            _print("doPurchase: " + sku);
+        }
+        return startPurchase(new PendingPurchase(sku, ITEM_TYPE_INAPP, context, isConsumable),
+                             devPayload);
+    }
+
+    // Version 3 of the service has no base plans or offers, so
+    // 'offerToken' is ignored and the subscription is bought as
+    // published.
+    @Override
+    public boolean doPurchaseOffer(final String sku, final String offerToken,
+                                   final String devPayload, final long context)
+    {
+        if (payment.logging(payment.LOG_INFO)) {
+            _print("doPurchaseOffer: " + sku);
+        }
+        if (!mSubscriptionsSupported) {
+            _error("doPurchaseOffer: subscriptions not supported");
+            return false;
+        }
+        return startPurchase(new PendingPurchase(sku, ITEM_TYPE_SUBS, context, false),
+                             devPayload);
+    }
+
+    private boolean startPurchase(final PendingPurchase record, final String devPayload)
+    {
+        if (!isReady()) {
+            _error("doPurchase: not ready. leaving.");
+            return false;
+        }
+        if (!mPurchase.compareAndSet(null, record)) {
+            _error("doPurchase: !! another purchase is in progress");
+            return false;
+        }
+
+        final boolean submitted = submit("doPurchase", new ServiceRequest() {
+            @Override void call(IInAppBillingService service) throws RemoteException {
+                launchPurchaseFlow(service, record, devPayload);
+            }
+            @Override public void fail() {
+                failPurchase(record, RESULT_SERVICE_DISCONNECTED,
+                             "failed to create Android buy Intent");
+            }
+        });
+        if (!submitted) {
+            mPurchase.compareAndSet(record, null);
+        }
+        return submitted;
+    }
+
+    // Worker thread
+    private void launchPurchaseFlow(IInAppBillingService service,
+                                    final PendingPurchase record,
+                                    String devPayload) throws RemoteException
+    {
+        final long start = System.nanoTime();
+        final Bundle buyIntentBundle = service.getBuyIntent
+            (API_VERSION, mPackageName, record.sku, record.type, devPayload);
+        final int code = getResponseCode(buyIntentBundle);
+        payment.sMetrics.record(billingmetrics.OP_LAUNCH_FLOW, code, start);
+
+        final PendingIntent pendingIntent = (RESULT_OK == code)?
+            ((PendingIntent )buyIntentBundle.getParcelable(BUY_INTENT)):(null);
+        final Activity activity = mActivity;
+        if (null == pendingIntent || null == activity) {
+            if (payment.logging(payment.LOG_ERROR)) {
+                _error("doPurchase: no buy intent for " + record.sku + ", response: " + code);
+            }
+            failPurchase(record, code, "failed to create Android buy Intent");
+            return;
+        }
+
+        activity.runOnUiThread(() -> {
+                try {
+                    activity.startIntentSenderForResult
+                        (pendingIntent.getIntentSender(), mPurchaseRequestCode,
+                         new Intent(), 0, 0, 0);
+                    _log("Purchase started");
+                } catch (IntentSender.SendIntentException e) {
+                    _error("doPurchase: failed to launch buy intent: " + e);
+                    failPurchase(record, RESULT_ERROR, "failed to launch billing flow");
+                }
+            });
+    }
+
+    private void failPurchase(PendingPurchase record, int responseCode, String msg)
+    {
+        if (mPurchase.compareAndSet(record, null)) {
+            recordPurchaseResult(record, responseCode);
+            sendPurchaseFailure(record.context, msg);
+        }
+    }
+
+    // Purchase result latency is measured from doPurchase.
+    private static void recordPurchaseResult(PendingPurchase record, int responseCode)
+    {
+        payment.sMetrics.recordMicros
+            (billingmetrics.OP_PURCHASE_RESULT, responseCode,
+             (android.os.SystemClock.elapsedRealtime() - record.startTime) * 1000);
+    }
+
+    @Override
+    public boolean handleActivityResult(int requestCode, int resultCode, Intent data)
+    {
+        final PendingPurchase record = mPurchase.getAndSet(null);
+        if (null == record) {
+            _error("handleActivityResult: no purchase in progress");
+            return false;
+        }
+
+        final int code = (null == data)?(RESULT_ERROR):
+            (data.getIntExtra(RESPONSE_CODE, RESULT_OK));
+        final String purchaseData = (null == data)?(null):
+            (data.getStringExtra(INAPP_PURCHASE_DATA));
+        final String signature = (null == data)?(null):
+            (data.getStringExtra(INAPP_DATA_SIGNATURE));
+
+        if (Activity.RESULT_CANCELED == resultCode || RESULT_USER_CANCELED == code) {
+            _log("User canceled the purchase");
+            recordPurchaseResult(record, RESULT_USER_CANCELED);
+            sendPurchaseFailure(record.context, null);
+            return true;
+        }
+        if (Activity.RESULT_OK != resultCode || RESULT_OK != code) {
+            if (payment.logging(payment.LOG_ERROR)) {
+                _error("Purchase failed, result: " + resultCode + ", response: " + code);
+            }
+            recordPurchaseResult(record, (RESULT_OK == code)?(RESULT_ERROR):(code));
+            sendPurchaseFailure(record.context, "Purchase did not complete");
+            return true;
+        }
+
+        final purchaseverifier verifier = payment.getVerifier();
+        if (null != verifier && !verifier.verify(purchaseData, signature)) {
+            _log("Invalid signature");
+            recordPurchaseResult(record, RESULT_ERROR);
+            sendPurchaseFailure(record.context, "invalid signature");
+            return true;
+        }
+
+        final JSONObject json = parse(purchaseData);
+        final String token = (null == json)?(null):(json.optString("purchaseToken"));
+        if (TextUtils.isEmpty(token)) {
+            _error("handleActivityResult: no purchase token");
+            recordPurchaseResult(record, RESULT_ERROR);
+            sendPurchaseFailure(record.context, "error in purchase data");
+            return true;
+        }
+
+        if (record.isConsumable) {
+            doConsume(token);
+        }
+        recordPurchaseResult(record, RESULT_OK);
+        if (payment.logging(payment.LOG_VERBOSE)) {
+            _log("Purchase succeeded (" + record.sku + ", " +
+                 (android.os.SystemClock.elapsedRealtime() - record.startTime) + "ms)");
+        }
+        sendPurchaseResult(record.context, record.sku, purchaseData, token, null,
+                           signature);
+        return true;
+    }
+
+    // One page of getPurchases, as parallel arrays.
+    private static final class Page
+    {
+        String[] skus;
+        String[] data;
+        String[] tokens;
+        String[] sigs;
+        int[]    states;
+        String   continuation;
+
+        Page(int count)
+        {
+            skus = new String[count];
+            data = new String[count];
+            tokens = new String[count];
+            sigs = new String[count];
+            states = new int[count];
+        }
+
+        int size()
+        {
+            return skus.length;
+        }
+
+        void select(int[] keep)
+        {
+            skus = purchaseverifier.select(skus, keep);
+            data = purchaseverifier.select(data, keep);
+            tokens = purchaseverifier.select(tokens, keep);
+            sigs = purchaseverifier.select(sigs, keep);
+            states = purchaseverifier.select(states, keep);
+        }
+    }
+
+    // Worker thread.  Read and verify one page of owned purchases.
+    // Returns null if the service reports an error or the page is
+    // malformed.
+    private Page getPurchasesPage(IInAppBillingService service, String type,
+                                  String continuation) throws RemoteException
+    {
+        final long start = System.nanoTime();
+        final Bundle owned = service.getPurchases(API_VERSION, mPackageName, type,
+                                                  continuation);
+        final int code = getResponseCode(owned);
+        payment.sMetrics.record(billingmetrics.OP_QUERY_PURCHASES, code, start);
+        if (RESULT_OK != code) {
+            if (payment.logging(payment.LOG_ERROR)) {
+                _error("getPurchases (" + type + "): response: " + code);
+            }
+            return null;
+        }
+
+        final ArrayList<String> skuList = owned.getStringArrayList(INAPP_PURCHASE_ITEM_LIST);
+        final ArrayList<String> dataList = owned.getStringArrayList(INAPP_PURCHASE_DATA_LIST);
+        final ArrayList<String> sigList = owned.getStringArrayList(INAPP_DATA_SIGNATURE_LIST);
+        if (null == skuList || null == dataList || null == sigList ||
+            skuList.size() != dataList.size() || skuList.size() != sigList.size()) {
+            _error("getPurchases: malformed response");
+            return null;
+        }
+
+        final int count = skuList.size();
+        final Page page = new Page(count);
+        for (int i = 0 ; i < count ; ++i) {
+            final JSONObject json = parse(dataList.get(i));
+            final String token = (null == json)?(null):(json.optString("purchaseToken"));
+            if (TextUtils.isEmpty(skuList.get(i)) || TextUtils.isEmpty(token)) {
+                _error("getPurchases: error in purchase data");
+                return null;
+            }
+            page.skus[i] = skuList.get(i);
+            page.data[i] = dataList.get(i);
+            page.tokens[i] = token;
+            page.sigs[i] = sigList.get(i);
+            page.states[i] = json.optInt("purchaseState");
+        }
+        page.continuation = owned.getString(INAPP_CONTINUATION_TOKEN);
+
+        final int[] keep = purchaseverifier.validIndices(page.data, page.sigs);
+        if (null != keep) {
+            page.select(keep);
+        }
+        if (payment.logging(payment.LOG_VERBOSE)) {
+            _log("getPurchases (" + type + "): page of " + page.size() +
+                 ((TextUtils.isEmpty(page.continuation))?(""):(", more to come")));
+        }
+        return page;
+    }
+
+    @Override
+    public boolean doQueryPurchases(final long context)
+    {
+        return submit("doQueryPurchases", new ServiceRequest() {
+            @Override void call(IInAppBillingService service) throws RemoteException {
+                queryPurchases(service, context);
+            }
+            @Override public void fail() {
+                sendPurchaseInfoError(context, "billing service unavailable");
+            }
+        });
+    }
+
+    // Worker thread.  Only one page is held at a time, however many
+    // purchases the user owns.
+    private void queryPurchases(IInAppBillingService service, long context)
+        throws RemoteException
+    {
+        _log("doQueryPurchases: ");
+        final String[] types = getItemTypes();
+        for (int t = 0 ; t < types.length ; ++t) {
+            String continuation = null;
+            do {
+                final Page page = getPurchasesPage(service, types[t], continuation);
+                if (null == page) {
+                    sendPurchaseInfoError(context, "error getting purchase data");
+                    return;
+                }
+                continuation = page.continuation;
+                final boolean last =
+                    (t == types.length - 1 && TextUtils.isEmpty(continuation));
+                if (0 != page.size() || last) {
+                    sendPurchaseInfoList(context, page.skus, page.data, page.tokens,
+                                         new String[page.size()], page.sigs, last);
+                }
+            } while (!TextUtils.isEmpty(continuation));
+        }
+    }
+
+    @Override
+    public boolean doQueryPurchaseChanges(final long context)
+    {
+        return submit("doQueryPurchaseChanges", new ServiceRequest() {
+            @Override void call(IInAppBillingService service) throws RemoteException {
+                queryPurchaseChanges(service, context);
+            }
+            @Override public void fail() {
+                sendPurchaseChangesError(context);
+            }
+        });
+    }
+
+    // Worker thread.  The diff needs the whole list, so the pages are
+    // gathered first.
+    private void queryPurchaseChanges(IInAppBillingService service, long context)
+        throws RemoteException
+    {
+        final ArrayList<Page> pages = new ArrayList<>();
+        int count = 0;
+        for (String type : getItemTypes()) {
+            String continuation = null;
+            do {
+                final Page page = getPurchasesPage(service, type, continuation);
+                if (null == page) {
+                    sendPurchaseChangesError(context);
+                    return;
+                }
+                pages.add(page);
+                count += page.size();
+                continuation = page.continuation;
+            } while (!TextUtils.isEmpty(continuation));
+        }
+
+        final Page all = new Page(count);
+        int at = 0;
+        for (Page page : pages) {
+            final int n = page.size();
+            System.arraycopy(page.skus, 0, all.skus, at, n);
+            System.arraycopy(page.data, 0, all.data, at, n);
+            System.arraycopy(page.tokens, 0, all.tokens, at, n);
+            System.arraycopy(page.sigs, 0, all.sigs, at, n);
+            System.arraycopy(page.states, 0, all.states, at, n);
+            at += n;
+        }
+        sendPurchaseChanges(context, all.skus, all.data, all.tokens, all.sigs,
+                            all.states);
+    }
+
+    //
+    // Products
+    //
+
+    private static final class SkuDetails
+    {
+        final int    type;
+        final String title;
+        final String description;
+        final String price;
+        final String currency;
+
+        SkuDetails(JSONObject json)
+        {
+            type = (ITEM_TYPE_SUBS.equals(json.optString("type")))?
+                (payment.PRODUCT_SUBS):(payment.PRODUCT_INAPP);
+            title = json.optString("title");
+            description = json.optString("description");
+            price = json.optString("price");
+            currency = json.optString("price_currency_code");
+        }
+    }
+
+    // Worker thread.  Look up details for skus, SKU_DETAILS_BATCH per
+    // service call.  Subscriptions are only looked up for the skus
+    // that are not in-app products.  Returns an array parallel to
+    // skus (null for unknown products), or null on error.
+    private SkuDetails[] getSkuDetails(IInAppBillingService service, String[] skus)
+        throws RemoteException
+    {
+        final SkuDetails[] found = new SkuDetails[skus.length];
+        final HashMap<String, SkuDetails> byId = new HashMap<>();
+        for (String type : getItemTypes()) {
+            final ArrayList<String> missing = new ArrayList<>();
+            for (int i = 0 ; i < skus.length ; ++i) {
+                if (null == found[i]) {
+                    missing.add(skus[i]);
+                }
+            }
+
+            for (int from = 0 ; from < missing.size() ; from += SKU_DETAILS_BATCH) {
+                final int to = Math.min(missing.size(), from + SKU_DETAILS_BATCH);
+                final Bundle query = new Bundle();
+                query.putStringArrayList(ITEM_ID_LIST,
+                                         new ArrayList<>(missing.subList(from, to)));
+
+                final long start = System.nanoTime();
+                final Bundle details = service.getSkuDetails(API_VERSION, mPackageName,
+                                                             type, query);
+                final int code = getResponseCode(details);
+                payment.sMetrics.record(billingmetrics.OP_QUERY_PRODUCT, code, start);
+                if (RESULT_OK != code) {
+                    if (payment.logging(payment.LOG_ERROR)) {
+                        _error("getSkuDetails (" + type + "): response: " + code);
+                    }
+                    return null;
+                }
+
+                final ArrayList<String> list = details.getStringArrayList(DETAILS_LIST);
+                if (null == list) {
+                    continue;
+                }
+                for (String entry : list) {
+                    final JSONObject json = parse(entry);
+                    if (null != json) {
+                        byId.put(json.optString("productId"), new SkuDetails(json));
+                    }
+                }
+            }
+
+            for (int i = 0 ; i < skus.length ; ++i) {
+                if (null == found[i]) {
+                    found[i] = byId.get(skus[i]);
+                }
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public boolean doQueryProduct(final String sku, final long context)
+    {
+        return submit("doQueryProduct", new ServiceRequest() {
+            @Override void call(IInAppBillingService service) throws RemoteException {
+                if (payment.logging(payment.LOG_VERBOSE)) {
+                    _log("doQueryProduct: " + sku);
+                }
+                final SkuDetails[] found = getSkuDetails(service, new String[] { sku });
+                if (null == found || null == found[0]) {
+                    sendProductInfoError(context, sku);
+                    return;
+                }
+                sendProductInfo(context, sku, found[0].title, found[0].description,
+                                found[0].price);
+            }
+            @Override public void fail() {
+                sendProductInfoError(context, sku);
+            }
+        });
+    }
+
+    @Override
+    public boolean doQueryProducts(final String[] skus, final long context)
+    {
+        return submit("doQueryProducts", new ServiceRequest() {
+            @Override void call(IInAppBillingService service) throws RemoteException {
+                if (payment.logging(payment.LOG_VERBOSE)) {
+                    _log("doQueryProducts: " + skus.length + " skus");
+                }
+                final SkuDetails[] found = getSkuDetails(service, skus);
+                if (null == found) {
+                    fail();
+                    return;
+                }
+
+                final int count = skus.length;
+                final int[] types = new int[count];
+                final String[] titles = new String[count];
+                final String[] descriptions = new String[count];
+                final String[] prices = new String[count];
+                for (int i = 0 ; i < count ; ++i) {
+                    if (null != found[i]) {
+                        types[i] = found[i].type;
+                        titles[i] = found[i].title;
+                        descriptions[i] = found[i].description;
+                        prices[i] = found[i].price;
+                    }
+                }
+                sendProductInfoList(context, skus, types, titles, descriptions,
+                                    prices, null);
+            }
+            @Override public void fail() {
+                sendProductInfoList(context, skus, new String[skus.length],
+                                    new String[skus.length], new String[skus.length]);
+            }
+        });
+    }
+
+    // The refresh waits for the connection, so retry a failed bind.
+    @Override
+    public boolean doQueryCatalog(final String[] skus, final long context)
+    {
+        if (mConnection.isUnavailable()) {
+            mConnection.connect();
+        }
+        return super.doQueryCatalog(skus, context);
+    }
+
+    @Override
+    protected boolean refreshCatalog(final String[] skus, final long context)
+    {
+        return submit("refreshCatalog", new ServiceRequest() {
+            @Override void call(IInAppBillingService service) throws RemoteException {
+                final SkuDetails[] found = getSkuDetails(service, skus);
+                if (null == found) {
+                    fail();
+                    return;
+                }
+
+                final int count = skus.length;
+                final String[] titles = new String[count];
+                final String[] descriptions = new String[count];
+                final String[] prices = new String[count];
+                final String[] currencies = new String[count];
+                for (int i = 0 ; i < count ; ++i) {
+                    if (null != found[i]) {
+                        titles[i] = found[i].title;
+                        descriptions[i] = found[i].description;
+                        prices[i] = found[i].price;
+                        currencies[i] = found[i].currency;
+                    }
+                }
+                onCatalogRefreshed(context, skus, titles, descriptions, prices,
+                                   currencies);
+            }
+            @Override public void fail() {
+                onCatalogRefreshFailed(context);
+            }
+        });
+    }
+
+    //
+    // Consume
+    //
+
+    // Worker thread
+    private int consume(IInAppBillingService service, String token)
+    {
+        final long start = System.nanoTime();
+        int code;
+        try {
+            code = service.consumePurchase(API_VERSION, mPackageName, token);
+        } catch (RemoteException e) {
+            code = RESULT_SERVICE_DISCONNECTED;
+        }
+        payment.sMetrics.record(billingmetrics.OP_CONSUME, code, start);
+
+        if (RESULT_OK == code) {
+            if (payment.logging(payment.LOG_VERBOSE)) {
+                _log("consume: done: " + token);
+            }
+        } else if (payment.logging(payment.LOG_ERROR)) {
+            _error("consume: failed. response: " + code);
+        }
+        return code;
+    }
+
+    @Override
+    public boolean doConsume(final String token)
+    {
+        if (TextUtils.isEmpty(token)) {
+            _error("doConsume: !! null or empty token");
+            return false;
+        }
+        if (payment.logging(payment.LOG_INFO)) {
+            _print("consume: token: " + token);
+        }
+
+        return submit("doConsume", new ServiceRequest() {
+            @Override void call(IInAppBillingService service) {
+                consume(service, token);
+            }
+            @Override public void fail() {
+                _error("doConsume: !! dropped, billing service unavailable");
+            }
+        });
+    }
+
+    // Service calls block, so the tokens are consumed one after
+    // another on the worker thread.
+    @Override
+    public boolean doConsumePurchases(final String[] tokens, final long context)
+    {
+        if (payment.logging(payment.LOG_VERBOSE)) {
+            _log("doConsumePurchases: " + tokens.length + " tokens");
+        }
+
+        return submit("doConsumePurchases", new ServiceRequest() {
+            @Override void call(IInAppBillingService service) {
+                for (int i = 0 ; i < tokens.length ; ++i) {
+                    sendTokenResult(context, consumepipeline.OP_CONSUME, tokens[i],
+                                    consume(service, tokens[i]),
+                                    tokens.length - 1 - i);
+                }
+            }
+            @Override public void fail() {
+                for (int i = 0 ; i < tokens.length ; ++i) {
+                    sendTokenResult(context, consumepipeline.OP_CONSUME, tokens[i],
+                                    RESULT_SERVICE_DISCONNECTED, tokens.length - 1 - i);
+                }
+            }
+        });
+    }
+
+    // Purchases made through version 3 of the service do not need to
+    // be acknowledged, so every token succeeds without a service call.
+    @Override
+    public boolean doAcknowledgePurchases(final String[] tokens, final long context)
+    {
+        for (int i = 0 ; i < tokens.length ; ++i) {
+            sendTokenResult(context, consumepipeline.OP_ACKNOWLEDGE, tokens[i],
+                            RESULT_OK, tokens.length - 1 - i);
+        }
+        return true;
+    }
+}
@@ -8,20 +8,53 @@ import android.app.Activity;
 import android.os.Handler;
 import android.content.Intent;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
 public class payment
 {
+    // Log levels.  Messages above the current level are dropped, and
+    // call sites that build a message check the level first so that
+    // nothing is formatted or allocated for them.
+    public static final int LOG_NONE = 0;
+    public static final int LOG_ERROR = 1;
+    public static final int LOG_INFO = 2;
+    public static final int LOG_VERBOSE = 3;
+
+    static volatile int sLogLevel = LOG_VERBOSE;
+
+    static boolean logging(int level)
+    {
+        return level <= sLogLevel;
+    }
+
+    public static void setLogLevel(int level)
+    {
+        sLogLevel = level;
+    }
+
     // Logging
     static private void _log(String msg)
     {
-        Log.i("tzbilling: ", msg);
+        if (logging(LOG_VERBOSE)) {
+            Log.i("tzbilling: ", msg);
+        }
     }
     static private void _print(String msg)
     {
-        Log.i("tzbilling: ", msg);
+        if (logging(LOG_INFO)) {
+            Log.i("tzbilling: ", msg);
+        }
     }
     static private void _error(String msg)
     {
-        Log.e("tzbilling: ", msg);
+        if (logging(LOG_ERROR)) {
+            Log.e("tzbilling: ", msg);
+        }
     }
 
     //
@@ -30,8 +63,240 @@ public class payment
     public static abstract class CallbackHandler
     {
         abstract public void post(Runnable r);
+
+        /// Called from payment.shutdown() if this handler is in use.
+        public void shutdown()
+        {
+        }
     };
 
+    //
+    // Runs native callbacks on a single dedicated thread instead of
+    // the main looper, so they do not compete with UI frames.  The
+    // thread is a normal Java thread, so it is attached to the VM once
+    // for its lifetime.  Everything posted while a batch is running
+    // is picked up and run as the next batch with one wake-up.
+    // Within a batch, consecutive sendPurchaseInfo() entries for the
+    // same query (and its terminator, if present) cross into native
+    // as one nativePurchaseListQueryResponse.  Callbacks posted after
+    // the thread has exited run on the caller's thread, so that every
+    // native context still gets its final callback.
+    //
+    public static class ThreadCallbackHandler extends CallbackHandler
+    {
+        private final Object              mLock = new Object();
+        private ArrayList<Runnable>       mPending = new ArrayList<Runnable>();
+        private boolean                   mStopped = false;
+        private boolean                   mExited = false;
+        private final Thread              mThread;
+
+        public ThreadCallbackHandler()
+        {
+            mThread = new Thread(new Runnable() {
+                    @Override public void run() {
+                        try {
+                            loop();
+                        } finally {
+                            exit();
+                        }
+                    }
+                }, "tzbilling-callbacks");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+
+        @Override public void post(Runnable r)
+        {
+            synchronized (mLock) {
+                // Until the thread exits it drains everything posted,
+                // in order, even after shutdown().
+                if (!mExited) {
+                    mPending.add(r);
+                    if (1 == mPending.size()) {
+                        mLock.notify();
+                    }
+                    return;
+                }
+            }
+
+            if (logging(LOG_VERBOSE)) {
+                _log("ThreadCallbackHandler: post after shutdown, running on caller");
+            }
+            runCallback(r);
+        }
+
+        /// Runs anything already posted, then stops the thread.
+        @Override public void shutdown()
+        {
+            synchronized (mLock) {
+                mStopped = true;
+                mLock.notify();
+            }
+        }
+
+        private void loop()
+        {
+            ArrayList<Runnable> batch = new ArrayList<Runnable>();
+            for (;;) {
+                synchronized (mLock) {
+                    while (mPending.isEmpty() && !mStopped) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (mPending.isEmpty()) {
+                        return;
+                    }
+
+                    // Swap so that posting never waits for the batch
+                    ArrayList<Runnable> t = mPending;
+                    mPending = batch;
+                    batch = t;
+                }
+
+                int i = 0;
+                while (i < batch.size()) {
+                    final int end = purchaseRunEnd(batch, i);
+                    if (end > i + 1) {
+                        try {
+                            runPurchaseInfo(batch, i, end);
+                        } catch (RuntimeException e) {
+                            if (logging(LOG_ERROR)) {
+                                _error("ThreadCallbackHandler: callback threw: " + e);
+                            }
+                        }
+                    } else {
+                        runCallback(batch.get(i));
+                    }
+                    i = Math.max(end, i + 1);
+                }
+                batch.clear();
+            }
+        }
+
+        // From here on post() runs callbacks itself.  Anything left
+        // behind (if the loop was interrupted) is run now.
+        private void exit()
+        {
+            ArrayList<Runnable> left;
+            synchronized (mLock) {
+                mExited = true;
+                left = mPending;
+                mPending = new ArrayList<Runnable>();
+            }
+            for (Runnable r : left) {
+                runCallback(r);
+            }
+        }
+
+        private static void runCallback(Runnable r)
+        {
+            try {
+                r.run();
+            } catch (RuntimeException e) {
+                if (logging(LOG_ERROR)) {
+                    _error("ThreadCallbackHandler: callback threw: " + e);
+                }
+            }
+        }
+
+        // The end of the run of purchase entries for one query that
+        // starts at 'start', including a terminator that follows
+        // them.  Returns 'start' if there is no such run.
+        private static int purchaseRunEnd(ArrayList<Runnable> batch, int start)
+        {
+            final Runnable first = batch.get(start);
+            if (!(first instanceof PurchaseInfo) || !((PurchaseInfo )first).isEntry()) {
+                return start;
+            }
+
+            final long context = ((PurchaseInfo )first).context;
+            int end = start + 1;
+            while (end < batch.size()) {
+                final Runnable r = batch.get(end);
+                if (!(r instanceof PurchaseInfo) || context != ((PurchaseInfo )r).context) {
+                    break;
+                }
+                final PurchaseInfo p = (PurchaseInfo )r;
+                if (p.isEntry()) {
+                    ++end;
+                } else {
+                    if (p.isTerminator()) {
+                        ++end;
+                    }
+                    break;
+                }
+            }
+            return end;
+        }
+
+        private static void runPurchaseInfo(ArrayList<Runnable> batch, int start, int end)
+        {
+            final PurchaseInfo tail = (PurchaseInfo )batch.get(end - 1);
+            final boolean last = tail.isTerminator();
+            final int count = end - start - ((last)?(1):(0));
+
+            final String[] skus = new String[count];
+            final String[] data = new String[count];
+            final String[] tokens = new String[count];
+            final String[] devPayloads = new String[count];
+            final String[] sigs = new String[count];
+            for (int i = 0 ; i < count ; ++i) {
+                final PurchaseInfo p = (PurchaseInfo )batch.get(start + i);
+                skus[i] = p.sku;
+                data[i] = p.data;
+                tokens[i] = p.token;
+                devPayloads[i] = p.devPayload;
+                sigs[i] = p.sig;
+            }
+            nativePurchaseListQueryResponse(tail.context, skus, data, tokens,
+                                            devPayloads, sigs, last);
+        }
+    };
+
+    // A sendPurchaseInfo() entry or sendPurchaseInfoTerminator(), as
+    // posted to the CallbackHandler.  ThreadCallbackHandler recognizes
+    // these, to deliver a query's purchases with one native call.
+    static final class PurchaseInfo implements Runnable
+    {
+        final long   context;
+        final String sku;
+        final String data;
+        final String token;
+        final String devPayload;
+        final String sig;
+
+        PurchaseInfo(long context, String sku, String data, String token,
+                     String devPayload, String sig)
+        {
+            this.context = context;
+            this.sku = sku;
+            this.data = data;
+            this.token = token;
+            this.devPayload = devPayload;
+            this.sig = sig;
+        }
+
+        // As interpreted by nativePurchaseQueryResponse
+        boolean isEntry()
+        {
+            return null != sku && null != data;
+        }
+
+        boolean isTerminator()
+        {
+            return null != sku && null == data;
+        }
+
+        @Override public void run()
+        {
+            nativePurchaseQueryResponse(context, sku, data, token,
+                                        devPayload, sig);
+        }
+    }
+
     //
     //
     //
@@ -54,7 +319,9 @@ public class payment
 
         /// If this returns true, it must call sendPurchaseInfo() for
         /// each existing purchase, followed by
-        /// sendPurchaseInfoTerminator().  If an error occurs, call
+        /// sendPurchaseInfoTerminator().  Alternatively, whole pages
+        /// of purchases can be sent with sendPurchaseInfoList(), the
+        /// last one with 'last' set.  If an error occurs, call
         /// sendPurchaseInfoError(), and ensure no further calls are
         /// made.
         abstract public boolean doQueryPurchases(final long context);
@@ -64,45 +331,304 @@ public class payment
         abstract public boolean doQueryProduct(final String sku,
                                                final long context);
 
+        /// If this returns true, it must call sendProductInfoList()
+        /// exactly once, with one entry per requested sku in the
+        /// same order (a null title means no such product).  Agents
+        /// that cannot batch return false, and the caller should
+        /// fall back to doQueryProduct().
+        public boolean doQueryProducts(final String[] skus,
+                                       final long context)
+        {
+            return false;
+        }
+
+        /// As doPurchase, for a subscription.  'offerToken' selects
+        /// the base plan / offer (from the product's offers), or
+        /// null for the first one.
+        public boolean doPurchaseOffer(final String sku,
+                                       final String offerToken,
+                                       final String devPayload,
+                                       final long context)
+        {
+            return false;
+        }
+
+        /// Fetch product information for skus into the agent's cache,
+        /// in the background and with no callback, so that later
+        /// product queries are answered from memory.  Agents without
+        /// a cache return false.
+        public boolean doPrefetchProducts(final String[] skus)
+        {
+            return false;
+        }
+
         /// Consume the purchase corresponding to the agent-token.
         abstract public boolean doConsume(final String token);
 
-        boolean    mIsReady = false;
-        long       mReadyContext = 0;
+        /// Consume several purchases, with several requests in
+        /// flight.  If this returns true, it must call
+        /// sendTokenResult() exactly once per token, counting
+        /// 'remaining' down to 0.
+        public boolean doConsumePurchases(final String[] tokens,
+                                          final long context)
+        {
+            return false;
+        }
+
+        /// As doConsumePurchases, for non-consumable purchases that
+        /// need to be acknowledged.
+        public boolean doAcknowledgePurchases(final String[] tokens,
+                                              final long context)
+        {
+            return false;
+        }
+
+        /// Query the owned purchases and, if this returns true, call
+        /// sendPurchaseChanges() with the full list (or
+        /// sendPurchaseChangesError()) exactly once.  Only the
+        /// differences from the previous call are passed on.
+        public boolean doQueryPurchaseChanges(final long context)
+        {
+            return false;
+        }
+
+        /// Stream the purchase history (including consumed and
+        /// expired purchases) to native.  If this returns true, it
+        /// must deliver it through a purchasehistory.
+        public boolean doQueryPurchaseHistory(final long context)
+        {
+            return false;
+        }
+
+        /// Report purchases that were received but never delivered to
+        /// native (for example because the process was killed).  If
+        /// this returns true, it must deliver them with
+        /// sendDeliveredPurchaseList() (or sendPurchaseInfoError()).
+        public boolean doQueryIncompletePurchases(final long context)
+        {
+            return false;
+        }
+
+        /// Called on the callback thread once native code has
+        /// returned from handling a purchase, so the purchase can be
+        /// recorded as delivered.
+        protected void onPurchaseDelivered(final String token)
+        {
+        }
+
+        /// As onPurchaseDelivered(), for a list handed over in one
+        /// call.
+        protected void onPurchasesDelivered(final String[] tokens)
+        {
+            for (String token : tokens) {
+                onPurchaseDelivered(token);
+            }
+        }
+
+        /// Fetch fresh product information for the catalog.  If this
+        /// returns true, it must call onCatalogRefreshed() or
+        /// onCatalogRefreshFailed() exactly once.  Only called while
+        /// the agent is ready.
+        protected boolean refreshCatalog(final String[] skus,
+                                         final long context)
+        {
+            return false;
+        }
+
+        /// Deliver the stored catalog for skus immediately
+        /// (CATALOG_SNAPSHOT), then refresh it from the store once the
+        /// agent is ready and deliver only the products that changed
+        /// (CATALOG_DELTA, or CATALOG_REFRESH_FAILED).
+        public boolean doQueryCatalog(final String[] skus,
+                                      final long context)
+        {
+            productcatalog catalog = getCatalog();
+            if (null == catalog) {
+                _error("doQueryCatalog: no catalog (not initialized)");
+                return false;
+            }
+
+            final int count = skus.length;
+            final String[] titles = new String[count];
+            final String[] descriptions = new String[count];
+            final String[] prices = new String[count];
+            final String[] currencies = new String[count];
+            for (int i = 0 ; i < count ; ++i) {
+                productcatalog.Entry e = catalog.get(skus[i]);
+                if (null != e) {
+                    titles[i] = e.title;
+                    descriptions[i] = e.description;
+                    prices[i] = e.price;
+                    currencies[i] = e.currency;
+                }
+            }
+            sendCatalogInfo(context, CATALOG_SNAPSHOT, skus, titles,
+                            descriptions, prices, currencies);
+
+            // reportReady(true), markShutdown() and
+            // failDeferredCatalogQueries() publish the new state before
+            // taking this lock to drain the list, so a query added
+            // here is never missed.
+            boolean refusable;
+            synchronized (mPendingCatalogQueries) {
+                refusable = (isShutdown() || isUnavailable());
+                if (!refusable && !isReady()) {
+                    _log("doQueryCatalog: not ready, refresh deferred");
+                    mPendingCatalogQueries.add(new PendingCatalogQuery
+                                               (skus, context));
+                    return true;
+                }
+            }
+
+            if (refusable) {
+                onCatalogRefreshFailed(context);
+                return true;
+            }
+            startCatalogRefresh(skus, context);
+            return true;
+        }
+
+        /// True if the agent cannot become ready without a new
+        /// connection attempt, e.g. after billing was reported as not
+        /// supported.  Catalog refreshes fail instead of waiting.
+        protected boolean isUnavailable()
+        {
+            return false;
+        }
+
+        /// Called by subclasses once isUnavailable() has become true.
+        /// Fails the catalog refreshes waiting for the agent to be
+        /// ready.
+        protected final void failDeferredCatalogQueries()
+        {
+            ArrayList<PendingCatalogQuery> pending;
+            synchronized (mPendingCatalogQueries) {
+                pending = new ArrayList<PendingCatalogQuery>
+                    (mPendingCatalogQueries);
+                mPendingCatalogQueries.clear();
+            }
+            for (PendingCatalogQuery q : pending) {
+                onCatalogRefreshFailed(q.context);
+            }
+        }
+
+        // The ready flag and the native context for ready callbacks
+        // are written from store callback threads and read from the
+        // game thread.  They are kept in one immutable snapshot that
+        // is replaced with compareAndSet, so readers never lock and
+        // always see a consistent pair.  Once shut down, an agent
+        // stays not ready and reports nothing more.
+        static final class State
+        {
+            final boolean ready;
+            final long    readyContext;
+            final boolean shutdown;
+
+            State(boolean ready, long readyContext, boolean shutdown)
+            {
+                this.ready = ready;
+                this.readyContext = readyContext;
+                this.shutdown = shutdown;
+            }
+        }
+
+        private final AtomicReference<State> mState =
+            new AtomicReference<State>(new State(false, 0, false));
+
+        static final class PendingCatalogQuery
+        {
+            final String[] skus;
+            final long     context;
+
+            PendingCatalogQuery(String[] skus, long context)
+            {
+                this.skus = skus;
+                this.context = context;
+            }
+        }
+
+        final ArrayList<PendingCatalogQuery> mPendingCatalogQueries =
+            new ArrayList<PendingCatalogQuery>();
+
+        private final purchasebaseline mPurchaseBaseline = new purchasebaseline();
+
+        /// Purchases last reported by doQueryPurchaseChanges.
+        public purchasebaseline getPurchaseBaseline()
+        {
+            return mPurchaseBaseline;
+        }
 
         public boolean isReady()
         {
-            return mIsReady;
+            return mState.get().ready;
+        }
+
+        State getState()
+        {
+            return mState.get();
         }
 
         public void onReadyStateChange(long context)
         {
+            State s;
+            for (;;) {
+                s = mState.get();
+
+                // Polling with the registered context is a no-op
+                if (context == s.readyContext) {
+                    return;
+                }
+                if (mState.compareAndSet
+                    (s, new State(s.ready, context, s.shutdown))) {
+                    break;
+                }
+            }
+
             if (0 != context) {
-                if (0 != mReadyContext) {
+                if (0 != s.readyContext && logging(LOG_ERROR)) {
                     _error("onReadyStateChange: onreadystatus already enabled "
-                           + "with context: " + mReadyContext + ". Replacing "
+                           + "with context: " + s.readyContext + ". Replacing "
                            + "with " + context);
                 }
-                mReadyContext = context;
 
                 // If the system is already up, send an immediate
                 // signal.
 
-                if (mIsReady) {
-                    reportReady(mIsReady);
+                if (s.ready) {
+                    postReadyStatus();
                 }
 
                 return;
             }
 
             _log("onReadyStateChange: disabling onReady callbacks");
-            mReadyContext = 0;
+        }
+
+        /// Called by subclasses from shutdown().  After this the
+        /// agent is not ready, and reportReady() has no effect.
+        /// Deferred catalog refreshes are failed.
+        protected final void markShutdown()
+        {
+            mState.set(new State(false, 0, true));
+            publishReadyWord(this);
+            failDeferredCatalogQueries();
+        }
+
+        protected final boolean isShutdown()
+        {
+            return mState.get().shutdown;
         }
 
         public void onStart()
         {
         }
 
+        /// Start connecting now, if the agent defers its connection.
+        /// Must return quickly.
+        public void warmUp()
+        {
+        }
+
         // ------------------------------------------------------------
         // Internal methods
         // ------------------------------------------------------------
@@ -111,32 +637,187 @@ public class payment
         // creates one.
         CallbackHandler getCallbackHandler()
         {
-            if (null == sCallbackHandler) {
-                sCallbackHandler = new CallbackHandler() {
-                        Handler h = new Handler();
-                        @Override public void post(Runnable r) {
-                            h.post(r);
-                        }
-                    };
+            CallbackHandler handler = sCallbackHandler;
+            if (null != handler) {
+                return handler;
             }
 
-            return sCallbackHandler;
+            synchronized (payment.class) {
+                if (null == sCallbackHandler) {
+                    sCallbackHandler = new CallbackHandler() {
+                            Handler h = new Handler();
+                            @Override public void post(Runnable r) {
+                                h.post(r);
+                            }
+                        };
+                }
+                return sCallbackHandler;
+            }
         }
 
         protected void reportReady(final boolean ready)
         {
-            _log("reportReady: ready report: " + Boolean.toString(ready));
-            mIsReady = ready;
+            if (logging(LOG_VERBOSE)) {
+                _log("reportReady: ready report: " + Boolean.toString(ready));
+            }
+            State s;
+            for (;;) {
+                s = mState.get();
+                if (s.shutdown) {
+                    return;
+                }
+                if (s.ready == ready ||
+                    mState.compareAndSet
+                    (s, new State(ready, s.readyContext, false))) {
+                    break;
+                }
+            }
+            publishReadyWord(this);
+
+            if (ready) {
+                ArrayList<PendingCatalogQuery> pending;
+                synchronized (mPendingCatalogQueries) {
+                    pending = new ArrayList<PendingCatalogQuery>
+                        (mPendingCatalogQueries);
+                    mPendingCatalogQueries.clear();
+                }
+                for (PendingCatalogQuery q : pending) {
+                    startCatalogRefresh(q.skus, q.context);
+                }
+            }
 
-            if (0 == mReadyContext) {
+            if (0 == s.readyContext) {
                 _log("reportReady: no callback context");
                 return;
             }
 
+            postReadyStatus();
+        }
+
+        // The callback sends the state current when it runs, not when
+        // it was posted.  Reports racing on different threads may
+        // then be delivered out of order, but the last one delivered
+        // always carries the latest state.
+        private void postReadyStatus()
+        {
             getCallbackHandler().post(new Runnable() {
                 @Override public void run() {
-                    _log("reportReady (h): " + Boolean.toString(ready));
-                    nativeOnReadyStatus(mReadyContext, ready);
+                    final State s = mState.get();
+                    if (0 == s.readyContext) {
+                        return;
+                    }
+                    if (logging(LOG_VERBOSE)) {
+                        _log("reportReady (h): " + Boolean.toString(s.ready));
+                    }
+                    deliverReadyStatus(s.readyContext, s.ready);
+                }
+            });
+        }
+
+        /// Called on the callback thread to pass a ready report to
+        /// native.  The JVM benchmarks, which have no native library,
+        /// override this.
+        protected void deliverReadyStatus(final long context,
+                                          final boolean ready)
+        {
+            nativeOnReadyStatus(context, ready);
+        }
+
+        private void startCatalogRefresh(String[] skus, long context)
+        {
+            if (!refreshCatalog(skus, context)) {
+                onCatalogRefreshFailed(context);
+            }
+        }
+
+        /// Store the fresh information (a null title means the store
+        /// does not know the product) and send native the entries that
+        /// differ from the stored catalog.  The catalog file is read
+        /// and written on the catalog thread, not the (store callback)
+        /// caller's.
+        protected void onCatalogRefreshed(final long context,
+                                          final String[] skus,
+                                          final String[] titles,
+                                          final String[] descriptions,
+                                          final String[] prices,
+                                          final String[] currencies)
+        {
+            getCatalogWorker().execute(new Runnable() {
+                    @Override public void run() {
+                        updateCatalog(context, skus, titles,
+                                      descriptions, prices, currencies);
+                    }
+                });
+        }
+
+        // Catalog thread.  The delta is sent before the catalog is
+        // saved, so native does not wait for the write.
+        private void updateCatalog(final long context,
+                                   final String[] skus,
+                                   final String[] titles,
+                                   final String[] descriptions,
+                                   final String[] prices,
+                                   final String[] currencies)
+        {
+            productcatalog catalog = getCatalog();
+            if (null == catalog) {
+                onCatalogRefreshFailed(context);
+                return;
+            }
+
+            ArrayList<Integer> changed = new ArrayList<Integer>();
+            for (int i = 0 ; i < skus.length ; ++i) {
+                productcatalog.Entry e = (null == titles[i])?(null):
+                    (new productcatalog.Entry(titles[i], descriptions[i],
+                                              prices[i], currencies[i]));
+                if (catalog.update(skus[i], e)) {
+                    changed.add(i);
+                }
+            }
+
+            final int count = changed.size();
+            final String[] dSkus = new String[count];
+            final String[] dTitles = new String[count];
+            final String[] dDescriptions = new String[count];
+            final String[] dPrices = new String[count];
+            final String[] dCurrencies = new String[count];
+            for (int d = 0 ; d < count ; ++d) {
+                final int i = changed.get(d);
+                dSkus[d] = skus[i];
+                dTitles[d] = titles[i];
+                dDescriptions[d] = descriptions[i];
+                dPrices[d] = prices[i];
+                dCurrencies[d] = currencies[i];
+            }
+
+            if (logging(LOG_VERBOSE)) {
+                _log("onCatalogRefreshed: " + count + " of " + skus.length +
+                     " products changed");
+            }
+            sendCatalogInfo(context, CATALOG_DELTA, dSkus, dTitles,
+                            dDescriptions, dPrices, dCurrencies);
+            catalog.save();
+        }
+
+        protected void onCatalogRefreshFailed(final long context)
+        {
+            _error("catalog refresh failed");
+            final String[] empty = new String[0];
+            sendCatalogInfo(context, CATALOG_REFRESH_FAILED, empty, empty,
+                            empty, empty, empty);
+        }
+
+        protected void sendCatalogInfo(final long context, final int update,
+                                       final String[] skus,
+                                       final String[] titles,
+                                       final String[] descriptions,
+                                       final String[] prices,
+                                       final String[] currencies)
+        {
+            getCallbackHandler().post(new Runnable() {
+                @Override public void run() {
+                    nativeCatalogResponse(context, update, skus, titles,
+                                          descriptions, prices, currencies);
                 }
             });
         }
@@ -145,8 +826,10 @@ public class payment
         {
             getCallbackHandler().post(new Runnable() {
                 @Override public void run() {
-                    _log("sendPurchaseFailure (runnable): context: " + ctx +
-                         ", msg: " + msg);
+                    if (logging(LOG_VERBOSE)) {
+                        _log("sendPurchaseFailure (runnable): context: " + ctx +
+                             ", msg: " + msg);
+                    }
                     nativeOnPurchaseFailed(ctx, msg);
                     _log("sendPurchaseFailure (runnable): back from native");
                 }
@@ -161,19 +844,26 @@ public class payment
         {
             getCallbackHandler().post(new Runnable() {
                 @Override public void run() {
-                    _log("sendPurchaseResult (runnable): context: " + ctx);
-
-                    _log("sendPurchaseResult (h): " +
-                         "sku: " + ((null == sku)?("null"):(sku)) +
-                         ", data: " + ((null == data)?("null"):(data)) +
-                         ", token: " + ((null == token)?("null"):(token)) +
-                         ", devPayload: " + ((null == devPayload)?("null"):
-                                             (devPayload)) +
-                         ", sig: " + ((null == signature)?("null"):(signature)));
+                    if (logging(LOG_VERBOSE)) {
+                        _log("sendPurchaseResult (runnable): context: " + ctx);
+                    }
+
+                    if (logging(LOG_VERBOSE)) {
+                        _log("sendPurchaseResult (h): " +
+                             "sku: " + ((null == sku)?("null"):(sku)) +
+                             ", data: " + ((null == data)?("null"):(data)) +
+                             ", token: " + ((null == token)?("null"):(token)) +
+                             ", devPayload: " + ((null == devPayload)?("null"):
+                                                 (devPayload)) +
+                             ", sig: " + ((null == signature)?("null"):(signature)));
+                    }
 
                     nativeOnPurchaseComplete(ctx, sku, data, token,
                                              devPayload, signature);
                     _log("sendPurchaseResult (runnable): back from native");
+                    if (null != token) {
+                        onPurchaseDelivered(token);
+                    }
                 }
             });
         }
@@ -183,25 +873,95 @@ public class payment
                                         final String token,
                                         final String devPayload,
                                         final String sig)
+        {
+            getCallbackHandler().post
+                (new PurchaseInfo(context, sku, data, token, devPayload, sig));
+        }
+
+        /// Deliver many purchases with one native call.  Arrays are
+        /// parallel.  If 'last' is set, this also terminates the list.
+        protected void sendPurchaseInfoList(final long context,
+                                            final String[] skus,
+                                            final String[] data,
+                                            final String[] tokens,
+                                            final String[] devPayloads,
+                                            final String[] sigs,
+                                            final boolean last)
         {
             getCallbackHandler().post(new Runnable() {
                 @Override public void run() {
-                    nativePurchaseQueryResponse(context, sku, data, token,
-                                                devPayload, sig);
+                    nativePurchaseListQueryResponse(context, skus, data,
+                                                    tokens, devPayloads,
+                                                    sigs, last);
                 }
             });
         }
 
-        protected void sendPurchaseInfoTerminator(final long context)
+        /// As sendPurchaseInfoList (with 'last' set), then
+        /// onPurchasesDelivered() once native has returned.  For
+        /// purchases native is expected to fulfil.
+        protected void sendDeliveredPurchaseList(final long context,
+                                                 final String[] skus,
+                                                 final String[] data,
+                                                 final String[] tokens,
+                                                 final String[] sigs)
         {
             getCallbackHandler().post(new Runnable() {
                 @Override public void run() {
-                    nativePurchaseQueryResponse(context, "",
-                                                null, null, null, null);
+                    nativePurchaseListQueryResponse(context, skus, data,
+                                                    tokens,
+                                                    new String[tokens.length],
+                                                    sigs, true);
+                    onPurchasesDelivered(tokens);
                 }
             });
         }
 
+        /// Diff the owned purchases (parallel arrays) against the
+        /// baseline and deliver only what changed.  'states' is an
+        /// agent-defined value per purchase, which should change when
+        /// the purchase needs to be reported again.
+        protected void sendPurchaseChanges(final long context,
+                                           final String[] skus,
+                                           final String[] data,
+                                           final String[] tokens,
+                                           final String[] sigs,
+                                           final int[] states)
+        {
+            final purchasebaseline.Changes changes =
+                mPurchaseBaseline.update(skus, data, tokens, sigs, states);
+            if (logging(LOG_VERBOSE)) {
+                _log("sendPurchaseChanges: " + changes.size() + " of " +
+                     tokens.length + " purchases changed");
+            }
+
+            getCallbackHandler().post(new Runnable() {
+                @Override public void run() {
+                    nativePurchaseChangesResponse(context, true,
+                                                  changes.types, changes.skus,
+                                                  changes.data, changes.tokens,
+                                                  changes.sigs);
+                }
+            });
+        }
+
+        /// The baseline is left unchanged, so nothing is lost.
+        protected void sendPurchaseChangesError(final long context)
+        {
+            getCallbackHandler().post(new Runnable() {
+                @Override public void run() {
+                    nativePurchaseChangesResponse(context, false, null, null,
+                                                  null, null, null);
+                }
+            });
+        }
+
+        protected void sendPurchaseInfoTerminator(final long context)
+        {
+            getCallbackHandler().post
+                (new PurchaseInfo(context, "", null, null, null, null));
+        }
+
         protected void sendPurchaseInfoError(final long context,
                                              final String msg)
         {
@@ -213,6 +973,21 @@ public class payment
             });
         }
 
+        /// 'op' is consumepipeline.OP_CONSUME or OP_ACKNOWLEDGE,
+        /// 'responseCode' a BillingResponseCode.
+        protected void sendTokenResult(final long context, final int op,
+                                       final String token,
+                                       final int responseCode,
+                                       final int remaining)
+        {
+            getCallbackHandler().post(new Runnable() {
+                @Override public void run() {
+                    nativeTokenResponse(context, op, token, responseCode,
+                                        remaining);
+                }
+            });
+        }
+
         protected void sendProductInfoError(final long context,
                                             final String sku)
         {
@@ -231,52 +1006,254 @@ public class payment
                 }
             });
         }
+
+        protected void sendProductInfoList(final long context,
+                                           final String[] skus,
+                                           final String[] titles,
+                                           final String[] descriptions,
+                                           final String[] prices)
+        {
+            sendProductInfoList(context, skus, null, titles, descriptions,
+                                prices, null);
+        }
+
+        /// 'types' (PRODUCT_*) and 'offers' may be null, meaning
+        /// in-app products with no subscription offers.
+        protected void sendProductInfoList(final long context,
+                                           final String[] skus,
+                                           final int[] types,
+                                           final String[] titles,
+                                           final String[] descriptions,
+                                           final String[] prices,
+                                           final productoffers offers)
+        {
+            getCallbackHandler().post(new Runnable() {
+                @Override public void run() {
+                    if (null == offers) {
+                        nativeProductListQueryResponse
+                            (context, skus, types, titles, descriptions,
+                             prices, null, null, null, null, null, null);
+                        return;
+                    }
+                    nativeProductListQueryResponse
+                        (context, skus, types, titles, descriptions, prices,
+                         offers.offerCounts, offers.offerStrings,
+                         offers.phaseCounts, offers.phaseStrings,
+                         offers.phaseMicros, offers.phaseInts);
+                }
+            });
+        }
     }
 
     // ------------------------------------------------------------------
 
-    static Activity             sActivity = null;
-    static int                  sPurchaseRequestCode = 0;
-    static CallbackHandler      sCallbackHandler = null;
-    static BillingAgent         sBillingAgent = null;
+    // Written by initialize / shutdown (which hold the class lock)
+    // and read without locking by the do* methods, which take one
+    // copy of sBillingAgent per call.
+    static volatile Activity        sActivity = null;
+    static volatile int             sPurchaseRequestCode = 0;
+    static volatile CallbackHandler sCallbackHandler = null;
+    static volatile BillingAgent    sBillingAgent = null;
+    static volatile productcatalog  sCatalog = null;
+    static volatile boolean         sPreferLegacyAgent = false;
+    static volatile boolean         sDeferredStart = false;
+    static volatile long            sStartDelayMs = -1;
+    static final billingmetrics sMetrics = new billingmetrics();
+
+    // Null until setPublicKey is called, in which case purchases are
+    // not checked on the device.
+    static volatile purchaseverifier sVerifier = null;
+
+    static final String CATALOG_FILE_NAME = "tzbilling_catalog.bin";
+    static final String JOURNAL_FILE_NAME = "tzbilling_purchases.journal";
+
+    // Values for the 'update' parameter of nativeCatalogResponse.
+    // Keep in sync with GooglePlayBilling::CatalogUpdate.
+    static final int CATALOG_SNAPSHOT = 0;
+    static final int CATALOG_DELTA = 1;
+    static final int CATALOG_REFRESH_FAILED = 2;
+
+    // Product types passed to nativeProductListQueryResponse.  Keep
+    // in sync with GooglePlayBilling::ProductType.
+    static final int PRODUCT_INAPP = 0;
+    static final int PRODUCT_SUBS = 1;
+
+    // Loads and saves the catalog file for onCatalogRefreshed, off
+    // the store's callback thread.  Created on first use.
+    private static ExecutorService sCatalogWorker = null;
+
+    static synchronized ExecutorService getCatalogWorker()
+    {
+        if (null == sCatalogWorker) {
+            sCatalogWorker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "tzbilling-catalog");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+        return sCatalogWorker;
+    }
+
+    // The on-disk catalog is only loaded if it is used.
+    static synchronized productcatalog getCatalog()
+    {
+        if (null == sCatalog && null != sActivity) {
+            sCatalog = new productcatalog
+                (new File(sActivity.getFilesDir(), CATALOG_FILE_NAME));
+        }
+        return sCatalog;
+    }
 
     // ------------------------------------------------------------------
 
-    public static boolean initialize(Activity activity, int purchaseRequestCode)
+    public static synchronized boolean initialize(Activity activity, int purchaseRequestCode)
     {
         sActivity = activity;
         sPurchaseRequestCode = purchaseRequestCode;
 
-        // TODO: Detect the best billing agent to use
-
         if (null == sBillingAgent) {
-            sBillingAgent = new googlepayment(sActivity, sPurchaseRequestCode);
+            sBillingAgent = createAgent(sActivity, sPurchaseRequestCode);
         }
 
         return (null != sBillingAgent);
     }
 
-    public static boolean initialize(Activity activity, int purchaseRequestCode,
-                                     CallbackHandler handler)
+    // Probes are tried cheapest first: a class lookup in this
+    // process, then a PackageManager query for the billing service.
+    // Nothing is bound or connected until the chosen agent is
+    // created.
+    static BillingAgent createAgent(Activity activity, int purchaseRequestCode)
+    {
+        final boolean preferLegacy = sPreferLegacyAgent;
+        if (preferLegacy && legacypayment.isAvailable(activity)) {
+            _print("createAgent: using the billing service (preferred)");
+            return new legacypayment(activity, purchaseRequestCode);
+        }
+
+        if (hasBillingClient()) {
+            try {
+                return new googlepayment(activity, purchaseRequestCode,
+                                         sDeferredStart, sStartDelayMs);
+            } catch (RuntimeException e) {
+                _error("createAgent: BillingClient failed: " + e);
+            }
+        }
+
+        if (!preferLegacy && legacypayment.isAvailable(activity)) {
+            _print("createAgent: using the billing service");
+            return new legacypayment(activity, purchaseRequestCode);
+        }
+
+        _error("createAgent: no billing backend available");
+        return null;
+    }
+
+    private static boolean hasBillingClient()
+    {
+        try {
+            Class.forName("com.android.billingclient.api.BillingClient", false,
+                          payment.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    // Use legacypayment (the Play Store billing service, without the
+    // Play Billing Library) where it is available, for devices on
+    // which the library does not work.  Takes effect at the next
+    // initialize() that is not given an agent.
+    public static void setPreferLegacyAgent(boolean preferLegacy)
+    {
+        sPreferLegacyAgent = preferLegacy;
+    }
+
+    // Keep billing off the launch path.  With 'deferred' set, the
+    // agent created by the next initialize() is an empty shell: the
+    // store connection is only made (on a background thread) at the
+    // first billing call, at warmUp(), or 'startDelayMs' after
+    // initialize() if that is not negative.  The ready callback is
+    // made as usual once connected.
+    public static void setDeferredStart(boolean deferred, long startDelayMs)
+    {
+        sDeferredStart = deferred;
+        sStartDelayMs = startDelayMs;
+    }
+
+    public static synchronized boolean initialize(Activity activity, int purchaseRequestCode,
+                                                  CallbackHandler handler)
     {
         sCallbackHandler = handler;
         boolean ret = initialize(activity, purchaseRequestCode);
         return ret;
     }
 
-    public static boolean initialize(Activity activity, int purchaseRequestCode,
-                                     CallbackHandler handler, BillingAgent agent)
+    public static synchronized boolean initialize(Activity activity, int purchaseRequestCode,
+                                                  CallbackHandler handler, BillingAgent agent)
     {
         sBillingAgent = agent;
         boolean ret = initialize(activity, purchaseRequestCode, handler);
         return ret;
     }
 
+    // As above, setting the log level (LOG_NONE .. LOG_VERBOSE) before
+    // anything is created.  'agent' may be null to use the default.
+    public static synchronized boolean initialize(Activity activity, int purchaseRequestCode,
+                                                  CallbackHandler handler, BillingAgent agent,
+                                                  int logLevel)
+    {
+        setLogLevel(logLevel);
+        return initialize(activity, purchaseRequestCode, handler, agent);
+    }
+
+    // Returns the active agent, so that callers can reach agent
+    // specific configuration.  May be null.
+    public static BillingAgent getBillingAgent()
+    {
+        return sBillingAgent;
+    }
+
+    // Per-operation counters and latency histograms.  Survives
+    // shutdown / initialize so that a session can be reported as a
+    // whole.
+    public static billingmetrics getMetrics()
+    {
+        return sMetrics;
+    }
+
+    // Base64 RSA public key for the app (Play Console -> Monetization
+    // setup), used to check purchase signatures on the device.
+    // Purchases with bad signatures are rejected, and left out of
+    // purchase queries.  Returns false if the key is invalid.  Pass
+    // null to stop checking.
+    public static boolean setPublicKey(String base64PublicKey)
+    {
+        if (null == base64PublicKey) {
+            sVerifier = null;
+            return true;
+        }
+
+        final purchaseverifier verifier =
+            purchaseverifier.fromBase64(base64PublicKey);
+        if (null == verifier) {
+            return false;
+        }
+        sVerifier = verifier;
+        return true;
+    }
+
+    public static purchaseverifier getVerifier()
+    {
+        return sVerifier;
+    }
+
     // ------------------------------------------------------------------
     // shutdown
     // ------------------------------------------------------------------
 
-    public static void shutdown()
+    public static synchronized void shutdown()
     {
         _log("shutting down ...");
 
@@ -285,8 +1262,13 @@ public class payment
             sBillingAgent = null;
         }
 
-        sCallbackHandler = null;
+        if (null != sCallbackHandler) {
+            sCallbackHandler.shutdown();
+            sCallbackHandler = null;
+        }
+        sCatalog = null;
         sActivity = null;
+        publishReadyWord(null);
         _log("done shutting down.");
     }
 
@@ -296,13 +1278,31 @@ public class payment
 
     public static void onStart()
     {
-        if (null != sBillingAgent) {
-            sBillingAgent.onStart();
+        final BillingAgent agent = sBillingAgent;
+        if (null != agent) {
+            agent.onStart();
         } else {
             _error("onStart: !! no billing agent");
         }
     }
 
+    // ------------------------------------------------------------------
+    // warmUp
+    // ------------------------------------------------------------------
+
+    // Start a deferred connection now (see setDeferredStart), e.g.
+    // once the first frame is on screen.  Returns immediately.
+    public static boolean warmUp()
+    {
+        final BillingAgent agent = sBillingAgent;
+        if (null == agent) {
+            _error("warmUp: no billing agent");
+            return false;
+        }
+        agent.warmUp();
+        return true;
+    }
+
     // ------------------------------------------------------------------
     // handleActivityResult
     // ------------------------------------------------------------------
@@ -312,17 +1312,19 @@ public class payment
     public static boolean handleActivityResult(int requestCode, int resultCode,
                                                Intent data)
     {
-        _log("handleActivityResult: requestCode: " + requestCode +
-             " resultCode: " + resultCode);
+        if (logging(LOG_VERBOSE)) {
+            _log("handleActivityResult: requestCode: " + requestCode +
+                 " resultCode: " + resultCode);
+        }
 
         if (sPurchaseRequestCode != requestCode) {
             _error("handleActivityResult: !! requestCode does not match");
             return false;
         }
 
-        if (null != sBillingAgent) {
-            return sBillingAgent.handleActivityResult(resultCode, resultCode,
-                                                      data);
+        final BillingAgent agent = sBillingAgent;
+        if (null != agent) {
+            return agent.handleActivityResult(requestCode, resultCode, data);
         } else {
             _error("handleActivityResult: no billing agent");
         }
@@ -339,7 +1341,9 @@ public class payment
                                      final boolean isConsumable,
                                      long context)
     {
-        _print("doPurchase: " + sku);
+        if (logging(LOG_INFO)) {
+            _print("doPurchase: " + sku);
+        }
 
         if (0 == context) {
             _error("context must be non-zero");
@@ -348,14 +1352,45 @@ public class payment
 
         // Should this class handle moving everything to a thread?
 
-        if (null != sBillingAgent) {
-            return sBillingAgent.doPurchase(sku, devPayload, isConsumable, context);
+        final BillingAgent agent = sBillingAgent;
+        if (null != agent) {
+            return agent.doPurchase(sku, devPayload, isConsumable, context);
         }
 
         _error("doPurchase: no billing agent");
         return false;
     }
 
+    // ------------------------------------------------------------------
+    // doPurchaseOffer
+    // ------------------------------------------------------------------
+
+    // Subscribe to sku, with the base plan / offer given by
+    // offerToken (null for the first offer).  Reported like
+    // doPurchase.
+    public static boolean doPurchaseOffer(final String sku,
+                                          final String offerToken,
+                                          final String devPayload,
+                                          long context)
+    {
+        if (logging(LOG_INFO)) {
+            _print("doPurchaseOffer: " + sku);
+        }
+
+        if (0 == context) {
+            _error("context must be non-zero");
+            return false;
+        }
+
+        final BillingAgent agent = sBillingAgent;
+        if (null != agent) {
+            return agent.doPurchaseOffer(sku, offerToken, devPayload, context);
+        }
+
+        _error("doPurchaseOffer: no billing agent");
+        return false;
+    }
+
     // ------------------------------------------------------------------
     // doQueryPurchases
     // ------------------------------------------------------------------
@@ -365,30 +1400,184 @@ public class payment
     {
         _log("doQueryPurchases: ");
 
-        if (null != sBillingAgent) {
-            return sBillingAgent.doQueryPurchases(context);
+        final BillingAgent agent = sBillingAgent;
+        if (null != agent) {
+            return agent.doQueryPurchases(context);
         }
 
         _error("doQueryPurchases: no billing agent");
         return false;
     }
 
+    // ------------------------------------------------------------------
+    // doQueryPurchaseChanges
+    // ------------------------------------------------------------------
+
+    // Call back to native code with the purchases that were added,
+    // removed or changed since the previous call.  If 'full' is set,
+    // the baseline is cleared first and every owned purchase is
+    // reported as added.
+    public static boolean doQueryPurchaseChanges(final boolean full,
+                                                 final long context)
+    {
+        if (logging(LOG_VERBOSE)) {
+            _log("doQueryPurchaseChanges: full: " + full);
+        }
+
+        final BillingAgent agent = sBillingAgent;
+        if (null != agent) {
+            if (full) {
+                agent.getPurchaseBaseline().clear();
+            }
+            return agent.doQueryPurchaseChanges(context);
+        }
+
+        _error("doQueryPurchaseChanges: no billing agent");
+        return false;
+    }
+
+    // ------------------------------------------------------------------
+    // doQueryPurchaseHistory
+    // ------------------------------------------------------------------
+
+    // Call back to native code with the most recent purchase of each
+    // product ever bought, in chunks (see purchasehistory).
+    public static boolean doQueryPurchaseHistory(final long context)
+    {
+        _log("doQueryPurchaseHistory: ");
+
+        final BillingAgent agent = sBillingAgent;
+        if (null != agent) {
+            return agent.doQueryPurchaseHistory(context);
+        }
+
+        _error("doQueryPurchaseHistory: no billing agent");
+        return false;
+    }
+
+    // ------------------------------------------------------------------
+    // doQueryIncompletePurchases
+    // ------------------------------------------------------------------
+
+    // Call back to native code with purchases that were received in an
+    // earlier run but never delivered.  Delivery must be idempotent
+    // (keyed on the purchase token), since a purchase can be reported
+    // again if the process dies during delivery.
+    public static boolean doQueryIncompletePurchases(final long context)
+    {
+        _log("doQueryIncompletePurchases: ");
+
+        final BillingAgent agent = sBillingAgent;
+        if (null != agent) {
+            return agent.doQueryIncompletePurchases(context);
+        }
+
+        _error("doQueryIncompletePurchases: no billing agent");
+        return false;
+    }
+
     // ------------------------------------------------------------------
     // doQueryProduct
     // ------------------------------------------------------------------
 
     public static boolean doQueryProduct(final String sku, final long context)
     {
-        _log("doQueryProduct: " + sku);
+        if (logging(LOG_VERBOSE)) {
+            _log("doQueryProduct: " + sku);
+        }
 
-        if (null != sBillingAgent) {
-            return sBillingAgent.doQueryProduct(sku, context);
+        final BillingAgent agent = sBillingAgent;
+        if (null != agent) {
+            return agent.doQueryProduct(sku, context);
         }
 
         _error("doQueryProduct: no billing agent");
         return false;
     }
 
+    // ------------------------------------------------------------------
+    // doQueryProducts
+    // ------------------------------------------------------------------
+
+    // Query several skus with a single request.  All results are
+    // delivered in one native callback.
+    public static boolean doQueryProducts(final String[] skus,
+                                          final long context)
+    {
+        if (logging(LOG_VERBOSE)) {
+            _log("doQueryProducts: " + ((null == skus)?(0):(skus.length)) +
+                 " skus");
+        }
+
+        if (null == skus || 0 == skus.length) {
+            _error("doQueryProducts: no skus given");
+            return false;
+        }
+
+        final BillingAgent agent = sBillingAgent;
+        if (null != agent) {
+            return agent.doQueryProducts(skus, context);
+        }
+
+        _error("doQueryProducts: no billing agent");
+        return false;
+    }
+
+    // ------------------------------------------------------------------
+    // doPrefetchProducts
+    // ------------------------------------------------------------------
+
+    // Warm the agent's product cache for skus that will be needed
+    // soon (e.g. behind a loading screen).  There is no callback.
+    public static boolean doPrefetchProducts(final String[] skus)
+    {
+        if (logging(LOG_VERBOSE)) {
+            _log("doPrefetchProducts: " + ((null == skus)?(0):(skus.length)) +
+                 " skus");
+        }
+
+        if (null == skus || 0 == skus.length) {
+            _error("doPrefetchProducts: no skus given");
+            return false;
+        }
+
+        final BillingAgent agent = sBillingAgent;
+        if (null != agent) {
+            return agent.doPrefetchProducts(skus);
+        }
+
+        _error("doPrefetchProducts: no billing agent");
+        return false;
+    }
+
+    // ------------------------------------------------------------------
+    // doQueryCatalog
+    // ------------------------------------------------------------------
+
+    // Deliver the last-known product information immediately, then
+    // the products that changed once the store has been queried.
+    public static boolean doQueryCatalog(final String[] skus,
+                                         final long context)
+    {
+        if (logging(LOG_VERBOSE)) {
+            _log("doQueryCatalog: " + ((null == skus)?(0):(skus.length)) +
+                 " skus");
+        }
+
+        if (null == skus || 0 == skus.length) {
+            _error("doQueryCatalog: no skus given");
+            return false;
+        }
+
+        final BillingAgent agent = sBillingAgent;
+        if (null != agent) {
+            return agent.doQueryCatalog(skus, context);
+        }
+
+        _error("doQueryCatalog: no billing agent");
+        return false;
+    }
+
     // ------------------------------------------------------------------
     // doCheckInitialized
     // ------------------------------------------------------------------
@@ -397,7 +1586,9 @@ public class payment
     public static boolean doCheckInitialized()
     {
         boolean initialized = (null != sActivity);
-        _log("doCheckInitialized: " + Boolean.toString(initialized));
+        if (logging(LOG_VERBOSE)) {
+            _log("doCheckInitialized: " + Boolean.toString(initialized));
+        }
         return initialized;
     }
 
@@ -406,18 +1597,66 @@ public class payment
     // changes.
     public static boolean doCheckReady(long context)
     {
-        _log("doCheckReady: ctx: " + context);
+        // Called every frame by some engines.  Do not log here.
 
-        if (null != sBillingAgent) {
+        final BillingAgent agent = sBillingAgent;
+        if (null != agent) {
+            agent.onReadyStateChange(context);
+            return agent.isReady();
+        }
 
-            final boolean ready = sBillingAgent.isReady();
-            sBillingAgent.onReadyStateChange(context);
-            _log("doCheckReady: agent ready: " + Boolean.toString(ready));
+        return false;
+    }
+
+    // ------------------------------------------------------------------
+    // Ready word
+    // ------------------------------------------------------------------
+
+    // The ready state is mirrored into a word in native memory, so
+    // that native code can read it without a JNI call (see
+    // GooglePlayBilling::IsReady).  Bit 0 is the ready flag, and the
+    // remaining bits count the changes, so a poller can tell that the
+    // service went down and came back between two reads.  Nothing is
+    // pushed until native code asks for it, so the Java side also
+    // works without the native library.
+
+    private static final Object sReadyWordLock = new Object();
+    private static int          sReadyWord = 0;
+    private static boolean      sReadyWordEnabled = false;
+
+    // Publishes the agent's state as read under the lock, so that the
+    // last of several racing calls always publishes the latest
+    // state.  A null agent means not ready.
+    static void publishReadyWord(BillingAgent agent)
+    {
+        synchronized (sReadyWordLock) {
+            final boolean ready = (null != agent && agent.isReady());
+            if (ready == (0 != (sReadyWord & 1))) {
+                return;
+            }
+            sReadyWord = ((sReadyWord + 2) & ~1) | ((ready)?(1):(0));
+            if (sReadyWordEnabled) {
+                nativeSetReadyWord(sReadyWord);
+            }
+        }
+    }
 
-            return ready;
+    static int getReadyWord()
+    {
+        synchronized (sReadyWordLock) {
+            return sReadyWord;
         }
+    }
 
-        return false;
+    // Called by the native GooglePlayBilling constructor.  Pushes the
+    // current word, then every change.
+    public static boolean doEnableReadyWord()
+    {
+        synchronized (sReadyWordLock) {
+            sReadyWordEnabled = true;
+            nativeSetReadyWord(sReadyWord);
+        }
+        return true;
     }
 
     // ------------------------------------------------------------------
@@ -427,21 +1666,94 @@ public class payment
     // Consume a sku
     public static boolean doConsume(final String token)
     {
-        _log("doConsume: token: " + token);
+        if (logging(LOG_VERBOSE)) {
+            _log("doConsume: token: " + token);
+        }
 
-        if (null != sBillingAgent) {
-            final boolean result = sBillingAgent.doConsume(token);
-            _log("doConsume: agent returned: " + Boolean.toString(result));
+        final BillingAgent agent = sBillingAgent;
+        if (null != agent) {
+            final boolean result = agent.doConsume(token);
+            if (logging(LOG_VERBOSE)) {
+                _log("doConsume: agent returned: " + Boolean.toString(result));
+            }
             return result;
         }
 
         return false;
     }
 
+    // ------------------------------------------------------------------
+    // doGetMetrics
+    // ------------------------------------------------------------------
+
+    // Snapshot of the metrics in the flat layout documented at
+    // billingmetrics.pack(), for GooglePlayBilling::GetMetrics.
+    public static long[] doGetMetrics()
+    {
+        return sMetrics.pack();
+    }
+
+    // ------------------------------------------------------------------
+    // doConsumePurchases / doAcknowledgePurchases
+    // ------------------------------------------------------------------
+
+    // Consume a batch of purchases.  Each token is reported to native
+    // with nativeTokenResponse as it completes.
+    public static boolean doConsumePurchases(final String[] tokens,
+                                             final long context)
+    {
+        if (logging(LOG_VERBOSE)) {
+            _log("doConsumePurchases: " + ((null == tokens)?(0):(tokens.length)) +
+                 " tokens");
+        }
+        if (null == tokens || 0 == tokens.length) {
+            _error("doConsumePurchases: no tokens given");
+            return false;
+        }
+
+        final BillingAgent agent = sBillingAgent;
+        if (null != agent) {
+            return agent.doConsumePurchases(tokens, context);
+        }
+
+        _error("doConsumePurchases: no billing agent");
+        return false;
+    }
+
+    public static boolean doAcknowledgePurchases(final String[] tokens,
+                                                 final long context)
+    {
+        if (logging(LOG_VERBOSE)) {
+            _log("doAcknowledgePurchases: " + ((null == tokens)?(0):(tokens.length)) +
+                 " tokens");
+        }
+        if (null == tokens || 0 == tokens.length) {
+            _error("doAcknowledgePurchases: no tokens given");
+            return false;
+        }
+
+        final BillingAgent agent = sBillingAgent;
+        if (null != agent) {
+            return agent.doAcknowledgePurchases(tokens, context);
+        }
+
+        _error("doAcknowledgePurchases: no billing agent");
+        return false;
+    }
+
     //------------------------------------------------------------------
 
     static native void nativeOnReadyStatus(long context, boolean ready);
 
+    static native void nativeSetReadyWord(int word);
+
+    // One call per token of a doConsumePurchases /
+    // doAcknowledgePurchases batch.  The context is released by
+    // native when 'remaining' is 0.
+    static native void nativeTokenResponse
+        (long context, int op, String token, int responseCode,
+         int remaining);
+
     static native void nativeOnPurchaseComplete
         (long context, String sku, String details, String token,
          String devPayload, String sig);
@@ -453,6 +1765,43 @@ public class payment
         (long context, String sku, String title, String description,
          String price);
 
+    // Arrays are parallel and ordered as in the request.  A null
+    // entry in 'titles' means there is no such product.  'types'
+    // (PRODUCT_*) and the offer arrays (see productoffers) may be
+    // null.
+    static native void nativeProductListQueryResponse
+        (long context, String[] skus, int[] types, String[] titles,
+         String[] descriptions, String[] prices, int[] offerCounts,
+         String[] offerStrings, int[] phaseCounts, String[] phaseStrings,
+         long[] phaseMicros, int[] phaseInts);
+
+    // See CATALOG_* for 'update'.  Arrays are parallel.  In a delta,
+    // a null title means the product is no longer available.
+    static native void nativeCatalogResponse
+        (long context, int update, String[] skus, String[] titles,
+         String[] descriptions, String[] prices, String[] currencies);
+
+    // A page of purchases (parallel arrays).  'last' terminates the
+    // list.  Can be mixed with nativePurchaseQueryResponse entries for
+    // the same context.
+    static native void nativePurchaseListQueryResponse
+        (long context, String[] skus, String[] details, String[] tokens,
+         String[] devPayloads, String[] sigs, boolean last);
+
+    // Added / removed / changed purchases (see purchasebaseline).
+    // Arrays are parallel, and null if 'ok' is false.
+    static native void nativePurchaseChangesResponse
+        (long context, boolean ok, int[] types, String[] skus,
+         String[] details, String[] tokens, String[] sigs);
+
+    // A chunk of purchase history (parallel arrays, 'times' in ms
+    // since the epoch).  'last' ends the stream.  If 'error' is
+    // non-null the query failed, the arrays are null and 'last' is
+    // set.
+    static native void nativePurchaseHistoryResponse
+        (long context, String error, String[] skus, String[] details,
+         String[] tokens, String[] sigs, long[] times, boolean last);
+
     // sku == "", details == null, signature == null means end of purchases
     // sku == null, details != null means error (msg in 'details')
     static native void nativePurchaseQueryResponse
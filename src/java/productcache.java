@@ -0,0 +1,170 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import android.os.SystemClock;
+
+import com.android.billingclient.api.ProductDetails;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounded, LRU-ordered cache of ProductDetails keyed by product id
+// and product type.  Entries expire after a configurable TTL.  Shared
+// by the query and purchase paths so that a purchase of a product
+// that was just queried does not need another round trip.
+public class productcache
+{
+    public static final long DEFAULT_TTL_MS = 10 * 60 * 1000;
+    public static final int  DEFAULT_MAX_ENTRIES = 256;
+
+    private static final class Entry
+    {
+        final ProductDetails details;
+        final long           expiresAt;
+
+        Entry(ProductDetails details, long expiresAt)
+        {
+            this.details = details;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private long mTtlMs = DEFAULT_TTL_MS;
+    private int  mMaxEntries = DEFAULT_MAX_ENTRIES;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    // Insertion-ordered.  A hit in get() moves the entry to the end,
+    // so the eldest entry is the least recently used and contains()
+    // can look without changing the order.
+    private final LinkedHashMap<String, Entry> mEntries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> e)
+            {
+                if (size() <= mMaxEntries) {
+                    return false;
+                }
+                forgetType(e.getValue().details);
+                return true;
+            }
+        };
+
+    // The type each cached product id was stored under, so callers
+    // that only have the id look up one entry.
+    private final HashMap<String, String> mTypes = new HashMap<String, String>();
+
+    private static String key(String productId, String productType)
+    {
+        return productType + ":" + productId;
+    }
+
+    /// ttlMs <= 0 disables caching.
+    public synchronized void configure(long ttlMs, int maxEntries)
+    {
+        mTtlMs = ttlMs;
+        mMaxEntries = Math.max(1, maxEntries);
+
+        // Trim immediately if the new bound is smaller
+        while (mEntries.size() > mMaxEntries) {
+            String eldest = mEntries.keySet().iterator().next();
+            forgetType(mEntries.remove(eldest).details);
+        }
+    }
+
+    private void forgetType(ProductDetails details)
+    {
+        final String id = details.getProductId();
+        if (details.getProductType().equals(mTypes.get(id))) {
+            mTypes.remove(id);
+        }
+    }
+
+    /// Returns null (and counts a miss) if there is no valid entry.
+    public synchronized ProductDetails get(String productId,
+                                           String productType)
+    {
+        final String k = key(productId, productType);
+        Entry e = mEntries.remove(k);
+        if (null != e) {
+            if (SystemClock.elapsedRealtime() < e.expiresAt) {
+                mEntries.put(k, e);
+                mHits.incrementAndGet();
+                return e.details;
+            }
+            forgetType(e.details);
+        }
+
+        mMisses.incrementAndGet();
+        return null;
+    }
+
+    /// As get(productId, productType), for the type the product was
+    /// cached with.  Counts one hit or one miss.
+    public synchronized ProductDetails get(String productId)
+    {
+        final String productType = mTypes.get(productId);
+        if (null == productType) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        return get(productId, productType);
+    }
+
+    /// True if there is a valid entry.  Does not count as a hit or a
+    /// miss, and does not change the LRU order.
+    public synchronized boolean contains(String productId,
+                                         String productType)
+    {
+        Entry e = mEntries.get(key(productId, productType));
+        return (null != e && SystemClock.elapsedRealtime() < e.expiresAt);
+    }
+
+    /// As contains(productId, productType), for the type the product
+    /// was cached with.
+    public synchronized boolean contains(String productId)
+    {
+        final String productType = mTypes.get(productId);
+        return (null != productType && contains(productId, productType));
+    }
+
+    public synchronized void put(ProductDetails details)
+    {
+        if (null == details || mTtlMs <= 0) {
+            return;
+        }
+
+        final long expiresAt = SystemClock.elapsedRealtime() + mTtlMs;
+        final String k = key(details.getProductId(), details.getProductType());
+        // Re-insert, so a refreshed entry becomes the most recent
+        mEntries.remove(k);
+        mEntries.put(k, new Entry(details, expiresAt));
+        mTypes.put(details.getProductId(), details.getProductType());
+    }
+
+    public synchronized void clear()
+    {
+        mEntries.clear();
+        mTypes.clear();
+    }
+
+    public synchronized int size()
+    {
+        return mEntries.size();
+    }
+
+    public long getHitCount()
+    {
+        return mHits.get();
+    }
+
+    public long getMissCount()
+    {
+        return mMisses.get();
+    }
+}
@@ -0,0 +1,185 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+// Last-known product information, persisted in a small binary file
+// in app-private storage so that prices can be shown before the
+// billing service is connected.
+//
+// File layout (big-endian, strings in modified UTF-8):
+//   int    magic ('TZPC')
+//   int    version
+//   int    entry count
+//   entry  { utf sku, utf title, utf description, utf price,
+//            utf currency } * count
+class productcatalog
+{
+    static private void _error(String msg)
+    {
+        if (payment.logging(payment.LOG_ERROR)) {
+            Log.e("tzbilling(catalog)", msg);
+        }
+    }
+
+    static final class Entry
+    {
+        final String title;
+        final String description;
+        final String price;
+        final String currency;
+
+        Entry(String title, String description, String price,
+              String currency)
+        {
+            this.title = (null == title)?(""):(title);
+            this.description = (null == description)?(""):(description);
+            this.price = (null == price)?(""):(price);
+            this.currency = (null == currency)?(""):(currency);
+        }
+
+        boolean sameAs(Entry o)
+        {
+            return title.equals(o.title) &&
+                description.equals(o.description) &&
+                price.equals(o.price) &&
+                currency.equals(o.currency);
+        }
+    }
+
+    private static final int MAGIC = 0x545a5043;
+    private static final int VERSION = 1;
+
+    private final File                   mFile;
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+    private boolean                      mLoaded = false;
+    private boolean                      mDirty = false;
+
+    productcatalog(File file)
+    {
+        mFile = file;
+    }
+
+    synchronized Entry get(String sku)
+    {
+        load();
+        return mEntries.get(sku);
+    }
+
+    /// Record the latest information for sku.  A null entry means
+    /// the store does not know the product.  Returns true if the
+    /// stored information changed.
+    synchronized boolean update(String sku, Entry entry)
+    {
+        load();
+        Entry old = mEntries.get(sku);
+        if (null == entry) {
+            if (null == old) {
+                return false;
+            }
+            mEntries.remove(sku);
+        } else {
+            if (null != old && old.sameAs(entry)) {
+                return false;
+            }
+            mEntries.put(sku, entry);
+        }
+
+        mDirty = true;
+        return true;
+    }
+
+    /// Write the catalog if it has changed since it was loaded.  The
+    /// file is replaced atomically.
+    synchronized void save()
+    {
+        if (!mDirty) {
+            return;
+        }
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream
+                (new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(mEntries.size());
+                for (java.util.Map.Entry<String, Entry> e :
+                         mEntries.entrySet()) {
+                    Entry v = e.getValue();
+                    out.writeUTF(e.getKey());
+                    out.writeUTF(v.title);
+                    out.writeUTF(v.description);
+                    out.writeUTF(v.price);
+                    out.writeUTF(v.currency);
+                }
+            } finally {
+                out.close();
+            }
+
+            if (!tmp.renameTo(mFile)) {
+                if (payment.logging(payment.LOG_ERROR)) {
+                    _error("save: failed to replace " + mFile);
+                }
+                tmp.delete();
+                return;
+            }
+            mDirty = false;
+        } catch (IOException e) {
+            if (payment.logging(payment.LOG_ERROR)) {
+                _error("save: " + e);
+            }
+            tmp.delete();
+        }
+    }
+
+    private void load()
+    {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        if (!mFile.exists()) {
+            return;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream
+                (new BufferedInputStream(new FileInputStream(mFile)));
+            try {
+                if (MAGIC != in.readInt() || VERSION != in.readInt()) {
+                    _error("load: unrecognized catalog file, ignoring");
+                    return;
+                }
+
+                final int count = in.readInt();
+                for (int i = 0 ; i < count ; ++i) {
+                    String sku = in.readUTF();
+                    mEntries.put(sku, new Entry(in.readUTF(), in.readUTF(),
+                                                in.readUTF(), in.readUTF()));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            if (payment.logging(payment.LOG_ERROR)) {
+                _error("load: " + e);
+            }
+            mEntries.clear();
+        }
+    }
+}
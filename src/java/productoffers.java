@@ -0,0 +1,83 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import java.util.Arrays;
+
+// Subscription offers and their pricing phases for a list of
+// products, flattened into primitive and String arrays so that the
+// whole list crosses JNI in one call.  Build it by calling
+// beginProduct() once per product (in list order), then addOffer()
+// and addPhase() for that product's offers.
+//
+//   offerCounts[product]          offers per product
+//   offerStrings[3 * offer]       basePlanId, offerId, offerToken
+//   phaseCounts[offer]            pricing phases per offer
+//   phaseStrings[3 * phase]       formattedPrice, currency, billingPeriod
+//   phaseMicros[phase]            price in micros
+//   phaseInts[2 * phase]          billingCycleCount, recurrenceMode
+public class productoffers
+{
+    int[]    offerCounts = new int[8];
+    String[] offerStrings = new String[3 * 8];
+    int[]    phaseCounts = new int[8];
+    String[] phaseStrings = new String[3 * 8];
+    long[]   phaseMicros = new long[8];
+    int[]    phaseInts = new int[2 * 8];
+
+    private int mProducts = 0;
+    private int mOffers = 0;
+    private int mPhases = 0;
+
+    void beginProduct()
+    {
+        if (mProducts == offerCounts.length) {
+            offerCounts = Arrays.copyOf(offerCounts, 2 * mProducts);
+        }
+        offerCounts[mProducts++] = 0;
+    }
+
+    void addOffer(String basePlanId, String offerId, String offerToken)
+    {
+        if (mOffers == phaseCounts.length) {
+            phaseCounts = Arrays.copyOf(phaseCounts, 2 * mOffers);
+            offerStrings = Arrays.copyOf(offerStrings, 6 * mOffers);
+        }
+        ++offerCounts[mProducts - 1];
+        offerStrings[3 * mOffers] = basePlanId;
+        offerStrings[3 * mOffers + 1] = offerId;
+        offerStrings[3 * mOffers + 2] = offerToken;
+        phaseCounts[mOffers++] = 0;
+    }
+
+    void addPhase(String formattedPrice, String currency, String billingPeriod,
+                  long priceMicros, int billingCycleCount, int recurrenceMode)
+    {
+        if (mPhases == phaseMicros.length) {
+            phaseMicros = Arrays.copyOf(phaseMicros, 2 * mPhases);
+            phaseStrings = Arrays.copyOf(phaseStrings, 6 * mPhases);
+            phaseInts = Arrays.copyOf(phaseInts, 4 * mPhases);
+        }
+        ++phaseCounts[mOffers - 1];
+        phaseStrings[3 * mPhases] = formattedPrice;
+        phaseStrings[3 * mPhases + 1] = currency;
+        phaseStrings[3 * mPhases + 2] = billingPeriod;
+        phaseMicros[mPhases] = priceMicros;
+        phaseInts[2 * mPhases] = billingCycleCount;
+        phaseInts[2 * mPhases + 1] = recurrenceMode;
+        ++mPhases;
+    }
+
+    /// Trim the arrays to their used length, ready to pass to native.
+    productoffers finish()
+    {
+        offerCounts = Arrays.copyOf(offerCounts, mProducts);
+        offerStrings = Arrays.copyOf(offerStrings, 3 * mOffers);
+        phaseCounts = Arrays.copyOf(phaseCounts, mOffers);
+        phaseStrings = Arrays.copyOf(phaseStrings, 3 * mPhases);
+        phaseMicros = Arrays.copyOf(phaseMicros, mPhases);
+        phaseInts = Arrays.copyOf(phaseInts, 2 * mPhases);
+        return this;
+    }
+}
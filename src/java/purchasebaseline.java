@@ -0,0 +1,139 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+// The last set of owned purchases reported to native code, by token.
+// Each new query result is diffed against it, so that only purchases
+// that were added, removed or changed state need to cross JNI.
+public class purchasebaseline
+{
+    // Change types.  Keep in sync with GooglePlayBilling::PurchaseChangeType.
+    public static final int ADDED = 0;
+    public static final int REMOVED = 1;
+    public static final int CHANGED = 2;
+
+    private static final class Known
+    {
+        final String sku;
+        int          state;
+        long         generation;
+
+        Known(String sku, int state, long generation)
+        {
+            this.sku = sku;
+            this.state = state;
+            this.generation = generation;
+        }
+    }
+
+    /// Parallel arrays describing the changes.  For REMOVED entries
+    /// only sku and token are set.
+    static final class Changes
+    {
+        final int[]    types;
+        final String[] skus;
+        final String[] data;
+        final String[] tokens;
+        final String[] sigs;
+
+        Changes(int count)
+        {
+            types = new int[count];
+            skus = new String[count];
+            data = new String[count];
+            tokens = new String[count];
+            sigs = new String[count];
+        }
+
+        int size()
+        {
+            return types.length;
+        }
+    }
+
+    private final HashMap<String, Known> mKnown = new HashMap<String, Known>();
+
+    // Bumped by each update().  Entries not stamped with the current
+    // generation were not in the latest result.
+    private long mGeneration = 0;
+
+    public synchronized int size()
+    {
+        return mKnown.size();
+    }
+
+    /// Forget everything, so the next diff reports all purchases as
+    /// ADDED.
+    public synchronized void clear()
+    {
+        mKnown.clear();
+    }
+
+    /// Replace the baseline with the given purchases (parallel
+    /// arrays) and return the differences.  'states' is an
+    /// agent-defined value that changes whenever a purchase should
+    /// be reported again (purchase state, acknowledged flag).
+    synchronized Changes update(String[] skus, String[] data, String[] tokens,
+                                String[] sigs, int[] states)
+    {
+        final long generation = ++mGeneration;
+        final int count = tokens.length;
+
+        // Indices of added / changed purchases, with the change type
+        int[] changed = new int[count];
+        int[] changeTypes = new int[count];
+        int numChanged = 0;
+        int numSeen = 0;
+
+        for (int i = 0 ; i < count ; ++i) {
+            Known k = mKnown.get(tokens[i]);
+            if (null == k) {
+                mKnown.put(tokens[i], new Known(skus[i], states[i], generation));
+                ++numSeen;
+                changed[numChanged] = i;
+                changeTypes[numChanged++] = ADDED;
+            } else if (generation != k.generation) {
+                k.generation = generation;
+                ++numSeen;
+                if (k.state != states[i]) {
+                    k.state = states[i];
+                    changed[numChanged] = i;
+                    changeTypes[numChanged++] = CHANGED;
+                }
+            }
+        }
+
+        // Anything not seen has gone.  If every known purchase was in
+        // the result, there is nothing to look for.
+        final int numRemoved = mKnown.size() - numSeen;
+        Changes out = new Changes(numChanged + numRemoved);
+        int n = 0;
+        for (int c = 0 ; c < numChanged ; ++c, ++n) {
+            final int i = changed[c];
+            out.types[n] = changeTypes[c];
+            out.skus[n] = skus[i];
+            out.data[n] = data[i];
+            out.tokens[n] = tokens[i];
+            out.sigs[n] = sigs[i];
+        }
+        if (numRemoved > 0) {
+            Iterator<Map.Entry<String, Known>> it = mKnown.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Known> e = it.next();
+                if (generation != e.getValue().generation) {
+                    it.remove();
+                    out.types[n] = REMOVED;
+                    out.skus[n] = e.getValue().sku;
+                    out.tokens[n] = e.getKey();
+                    ++n;
+                }
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,135 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import java.util.ArrayDeque;
+
+// Streams purchase history records to native code in chunks of at
+// most CHUNK_SIZE, as the lists from each store query arrive.  Only
+// one chunk is in flight at a time: the next one is built after
+// native code has returned from the previous one, so the copies made
+// for JNI stay bounded however long the history is.  The final chunk
+// (possibly empty) has 'last' set.
+public class purchasehistory
+{
+    public static final int CHUNK_SIZE = 64;
+
+    /// One list of records, as returned by a store query.
+    interface Source
+    {
+        int size();
+
+        /// Copy record 'index' into slot 'at' of the chunk arrays.
+        void get(int index, int at, String[] skus, String[] data,
+                 String[] tokens, String[] sigs, long[] times);
+    }
+
+    private final payment.BillingAgent mAgent;
+    private final long                 mContext;
+    private final ArrayDeque<Source>   mSources = new ArrayDeque<Source>();
+
+    // Guarded by 'this'
+    private int     mPendingSources;
+    private int     mPosition = 0;
+    private boolean mPosting = false;
+    private boolean mDone = false;
+
+    /// 'sources' is the number of add() calls to expect.
+    purchasehistory(payment.BillingAgent agent, long context, int sources)
+    {
+        mAgent = agent;
+        mContext = context;
+        mPendingSources = sources;
+    }
+
+    /// One of the store queries has completed.
+    void add(Source source)
+    {
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+            --mPendingSources;
+            if (0 != source.size()) {
+                mSources.addLast(source);
+            }
+            if (mPosting) {
+                return;
+            }
+            mPosting = true;
+        }
+        postNext();
+    }
+
+    /// A store query failed.  Native gets an error as the final
+    /// call, after any chunks already posted.
+    void fail(final String msg)
+    {
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            mSources.clear();
+        }
+        mAgent.getCallbackHandler().post(new Runnable() {
+                @Override public void run() {
+                    payment.nativePurchaseHistoryResponse
+                        (mContext, msg, null, null, null, null, null, true);
+                }
+            });
+    }
+
+    // Called with mPosting set.  Builds and posts the next chunk, or
+    // clears mPosting if there is nothing to send yet.
+    private void postNext()
+    {
+        final String[] skus;
+        final String[] data;
+        final String[] tokens;
+        final String[] sigs;
+        final long[]   times;
+        final boolean  last;
+
+        synchronized (this) {
+            int available = -mPosition;
+            for (Source s : mSources) {
+                available += s.size();
+            }
+            final int count = Math.min(CHUNK_SIZE, available);
+            last = (0 == mPendingSources && count == available);
+            if (mDone || (0 == count && !last)) {
+                mPosting = false;
+                return;
+            }
+
+            skus = new String[count];
+            data = new String[count];
+            tokens = new String[count];
+            sigs = new String[count];
+            times = new long[count];
+            for (int at = 0 ; at < count ; ++at) {
+                Source s = mSources.peekFirst();
+                s.get(mPosition, at, skus, data, tokens, sigs, times);
+                if (++mPosition == s.size()) {
+                    mSources.removeFirst();
+                    mPosition = 0;
+                }
+            }
+            if (last) {
+                mDone = true;
+            }
+        }
+
+        mAgent.getCallbackHandler().post(new Runnable() {
+                @Override public void run() {
+                    payment.nativePurchaseHistoryResponse
+                        (mContext, null, skus, data, tokens, sigs, times, last);
+                    if (!last) {
+                        postNext();
+                    }
+                }
+            });
+    }
+}
@@ -0,0 +1,544 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Append-only journal of purchase state transitions, so that a
+// purchase that was received but not yet fulfilled survives a process
+// kill.  At startup only the incomplete entries need to be looked at.
+//
+// All file access happens on one background thread, in the order the
+// calls were made.  Records are buffered and written with a single
+// FileChannel write, then forced to disk either when sync() is called
+// (before acting on a purchase) or at most SYNC_DELAY_MS later.
+//
+// File layout (big-endian, strings in modified UTF-8):
+//   int     magic ('TZPJ')
+//   int     version
+//   record  { int length, int crc32, payload } *
+//   payload { byte state, utf token,
+//             [ utf sku, utf data, utf signature, bool consumable ] }
+// The bracketed fields are only present for RECEIVED.  A torn record
+// at the end of the file (from a kill during a write) is dropped.
+public class purchasejournal
+{
+    static private void _log(String msg)
+    {
+        if (payment.logging(payment.LOG_VERBOSE)) {
+            Log.i("tzbilling(journal)", msg);
+        }
+    }
+    static private void _error(String msg)
+    {
+        if (payment.logging(payment.LOG_ERROR)) {
+            Log.e("tzbilling(journal)", msg);
+        }
+    }
+
+    // State bits
+    public static final int RECEIVED = 1;
+    public static final int VERIFIED = 2;
+    public static final int DELIVERED = 4;
+    public static final int ACKNOWLEDGED = 8;
+    public static final int CONSUMED = 16;
+
+    public static final long SYNC_DELAY_MS = 1000;
+
+    private static final int MAGIC = 0x545a504a;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD = 256 * 1024;
+    private static final int FLUSH_BYTES = 16 * 1024;
+
+    // Rewrite the file when it holds at least this many records and
+    // most of them belong to complete entries.
+    private static final int COMPACT_MIN_RECORDS = 256;
+
+    public static final class Entry
+    {
+        public final String token;
+        public final String sku;
+        public final String data;
+        public final String signature;
+        public final boolean consumable;
+        int states;
+
+        Entry(String token, String sku, String data, String signature,
+              boolean consumable)
+        {
+            this.token = token;
+            this.sku = sku;
+            this.data = data;
+            this.signature = signature;
+            this.consumable = consumable;
+        }
+
+        public int getStates()
+        {
+            return states;
+        }
+
+        public boolean has(int state)
+        {
+            return 0 != (states & state);
+        }
+
+        /// Delivered to native, and consumed or acknowledged.
+        public boolean isComplete()
+        {
+            return has(DELIVERED) && has(ACKNOWLEDGED | CONSUMED);
+        }
+    }
+
+    interface EntriesCallback
+    {
+        void onEntries(List<Entry> entries);
+    }
+
+    private final File                     mFile;
+    private final ScheduledExecutorService mExecutor;
+
+    // Only touched on the journal thread
+    private final LinkedHashMap<String, Entry> mEntries =
+        new LinkedHashMap<String, Entry>();
+    private final ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+    private final CRC32                 mCrc = new CRC32();
+    private FileChannel                 mChannel = null;
+    private boolean                     mDirty = false;
+    private boolean                     mSyncScheduled = false;
+    private int                         mRecords = 0;
+    private int                         mIncomplete = 0;
+
+    private volatile long mSyncCount = 0;
+
+    purchasejournal(File file)
+    {
+        mFile = file;
+        mExecutor = Executors.newSingleThreadScheduledExecutor
+            (new ThreadFactory() {
+                    @Override public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "tzbilling-journal");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        run(new Runnable() {
+                @Override public void run() {
+                    open();
+                }
+            });
+    }
+
+    public long getSyncCount()
+    {
+        return mSyncCount;
+    }
+
+    /// A purchase was received from the store (and so is owned).
+    void received(final String token, final String sku, final String data,
+                  final String signature, final boolean consumable)
+    {
+        run(new Runnable() {
+                @Override public void run() {
+                    Entry e = mEntries.get(token);
+                    if (null == e) {
+                        e = new Entry(token, sku, data, signature, consumable);
+                        mEntries.put(token, e);
+                        ++mIncomplete;
+                    }
+                    e.states |= RECEIVED;
+                    append(RECEIVED, e);
+                }
+            });
+    }
+
+    /// Record a transition for a purchase already in the journal.
+    /// Unknown tokens are ignored.
+    void mark(final String token, final int state)
+    {
+        run(new Runnable() {
+                @Override public void run() {
+                    markEntry(token, state);
+                }
+            });
+    }
+
+    /// As mark(), for several tokens in one journal task.  Only the
+    /// tokens that change are written.
+    void markAll(final String[] tokens, final int state)
+    {
+        run(new Runnable() {
+                @Override public void run() {
+                    for (String token : tokens) {
+                        markEntry(token, state);
+                    }
+                }
+            });
+    }
+
+    // Journal thread only
+    private void markEntry(String token, int state)
+    {
+        Entry e = mEntries.get(token);
+        if (null == e || e.has(state)) {
+            return;
+        }
+        final boolean wasComplete = e.isComplete();
+        e.states |= state;
+        if (!wasComplete && e.isComplete()) {
+            --mIncomplete;
+        }
+        append(state, e);
+    }
+
+    /// Make everything recorded so far durable, then run 'then' on
+    /// the journal thread.  Calls queued together share one fsync.
+    void sync(final Runnable then)
+    {
+        run(new Runnable() {
+                @Override public void run() {
+                    flush(true);
+                    if (null != then) {
+                        then.run();
+                    }
+                }
+            });
+    }
+
+    /// Call back (on the journal thread) with the entries that are
+    /// not complete, in the order they were received.
+    void incomplete(final EntriesCallback callback)
+    {
+        run(new Runnable() {
+                @Override public void run() {
+                    ArrayList<Entry> out = new ArrayList<Entry>(mIncomplete);
+                    for (Entry e : mEntries.values()) {
+                        if (!e.isComplete()) {
+                            out.add(e);
+                        }
+                    }
+                    callback.onEntries(out);
+                }
+            });
+    }
+
+    /// Flush, fsync and close.  Further calls are ignored.
+    void close()
+    {
+        run(new Runnable() {
+                @Override public void run() {
+                    flush(true);
+                    closeChannel();
+                }
+            });
+        mExecutor.shutdown();
+    }
+
+    // ------------------------------------------------------------------
+    // Journal thread
+    // ------------------------------------------------------------------
+
+    private void run(Runnable r)
+    {
+        try {
+            mExecutor.execute(r);
+        } catch (RejectedExecutionException e) {
+            _error("journal closed, dropping request");
+        }
+    }
+
+    private void open()
+    {
+        try {
+            mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+            final long validSize = load();
+            if (validSize < mChannel.size()) {
+                _error("open: dropping " + (mChannel.size() - validSize) +
+                       " bytes of damaged records");
+                mChannel.truncate(validSize);
+            }
+            mChannel.position(validSize);
+            _log("open: " + mEntries.size() + " entries, " + mIncomplete +
+                 " incomplete");
+
+            // Completed entries are dropped at startup, so recovery
+            // stays proportional to outstanding work.
+            if (mIncomplete < mEntries.size()) {
+                compact();
+            }
+        } catch (IOException e) {
+            _error("open: " + e);
+            closeChannel();
+        }
+    }
+
+    // Read the whole file, returning the size of the valid part.
+    private long load() throws IOException
+    {
+        final long size = mChannel.size();
+        if (size < HEADER_SIZE) {
+            writeHeader();
+            return HEADER_SIZE;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        mChannel.read(header, 0);
+        header.flip();
+        if (MAGIC != header.getInt() || VERSION != header.getInt()) {
+            _error("load: unrecognized journal, starting a new one");
+            mChannel.truncate(0);
+            writeHeader();
+            return HEADER_SIZE;
+        }
+
+        ByteBuffer all = ByteBuffer.allocate((int )(size - HEADER_SIZE));
+        while (all.hasRemaining()) {
+            if (mChannel.read(all, HEADER_SIZE + all.position()) < 0) {
+                break;
+            }
+        }
+        all.flip();
+
+        long valid = HEADER_SIZE;
+        while (all.remaining() >= 8) {
+            final int length = all.getInt();
+            final int crc = all.getInt();
+            if (length <= 0 || length > MAX_RECORD || length > all.remaining()) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            all.get(payload);
+            mCrc.reset();
+            mCrc.update(payload, 0, length);
+            if ((int )mCrc.getValue() != crc) {
+                break;
+            }
+
+            apply(payload);
+            ++mRecords;
+            valid += 8 + length;
+        }
+
+        mIncomplete = 0;
+        for (Entry e : mEntries.values()) {
+            if (!e.isComplete()) {
+                ++mIncomplete;
+            }
+        }
+        return valid;
+    }
+
+    private void apply(byte[] payload) throws IOException
+    {
+        DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(payload));
+        final int state = in.readByte();
+        final String token = in.readUTF();
+
+        Entry e = mEntries.get(token);
+        if (RECEIVED == state && null == e) {
+            e = new Entry(token, in.readUTF(), in.readUTF(), in.readUTF(),
+                          in.readBoolean());
+            mEntries.put(token, e);
+        }
+        if (null != e) {
+            e.states |= state;
+        }
+    }
+
+    private void writeHeader() throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.flip();
+        mChannel.write(header, 0);
+        mChannel.force(false);
+    }
+
+    private void encode(ByteArrayOutputStream out, int state, Entry e)
+        throws IOException
+    {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+        DataOutputStream data = new DataOutputStream(payload);
+        data.writeByte(state);
+        data.writeUTF(e.token);
+        if (RECEIVED == state) {
+            data.writeUTF((null == e.sku)?(""):(e.sku));
+            data.writeUTF((null == e.data)?(""):(e.data));
+            data.writeUTF((null == e.signature)?(""):(e.signature));
+            data.writeBoolean(e.consumable);
+        }
+        data.flush();
+
+        final byte[] bytes = payload.toByteArray();
+        mCrc.reset();
+        mCrc.update(bytes, 0, bytes.length);
+        DataOutputStream record = new DataOutputStream(out);
+        record.writeInt(bytes.length);
+        record.writeInt((int )mCrc.getValue());
+        record.write(bytes);
+        record.flush();
+    }
+
+    private void append(int state, Entry e)
+    {
+        try {
+            encode(mPending, state, e);
+            ++mRecords;
+        } catch (IOException ex) {
+            _error("append: " + ex);
+            return;
+        }
+
+        if (mPending.size() >= FLUSH_BYTES) {
+            flush(false);
+        }
+        scheduleSync();
+    }
+
+    private void scheduleSync()
+    {
+        if (mSyncScheduled) {
+            return;
+        }
+        mSyncScheduled = true;
+        try {
+            mExecutor.schedule(new Runnable() {
+                    @Override public void run() {
+                        mSyncScheduled = false;
+                        flush(true);
+                    }
+                }, SYNC_DELAY_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // closing; close() flushes
+        }
+    }
+
+    private void flush(boolean force)
+    {
+        if (null == mChannel) {
+            mPending.reset();
+            return;
+        }
+
+        try {
+            if (0 != mPending.size()) {
+                ByteBuffer buf = ByteBuffer.wrap(mPending.toByteArray());
+                mPending.reset();
+                while (buf.hasRemaining()) {
+                    mChannel.write(buf);
+                }
+                mDirty = true;
+            }
+
+            if (force && mDirty) {
+                mChannel.force(false);
+                mDirty = false;
+                ++mSyncCount;
+
+                if (mRecords >= COMPACT_MIN_RECORDS &&
+                    mIncomplete * 4 < mRecords) {
+                    compact();
+                }
+            }
+        } catch (IOException e) {
+            _error("flush: " + e);
+        }
+    }
+
+    // Replace the file with one holding only the incomplete entries.
+    // Must be called with nothing pending.
+    private void compact()
+    {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.flush();
+
+            ArrayList<String> complete = new ArrayList<String>();
+            int records = 0;
+            for (Entry e : mEntries.values()) {
+                if (e.isComplete()) {
+                    complete.add(e.token);
+                    continue;
+                }
+                encode(out, RECEIVED, e);
+                ++records;
+                for (int bit = VERIFIED ; bit <= CONSUMED ; bit <<= 1) {
+                    if (e.has(bit)) {
+                        encode(out, bit, e);
+                        ++records;
+                    }
+                }
+            }
+
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            FileChannel channel = raf.getChannel();
+            try {
+                channel.truncate(0);
+                ByteBuffer buf = ByteBuffer.wrap(out.toByteArray());
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+                channel.force(false);
+            } finally {
+                raf.close();
+            }
+
+            closeChannel();
+            if (!tmp.renameTo(mFile)) {
+                _error("compact: failed to replace " + mFile);
+                tmp.delete();
+            } else {
+                for (String token : complete) {
+                    mEntries.remove(token);
+                }
+                mRecords = records;
+            }
+
+            mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+            mChannel.position(mChannel.size());
+            _log("compact: " + mEntries.size() + " entries kept");
+        } catch (IOException e) {
+            _error("compact: " + e);
+            tmp.delete();
+        }
+    }
+
+    private void closeChannel()
+    {
+        if (null != mChannel) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                _error("close: " + e);
+            }
+            mChannel = null;
+        }
+    }
+}
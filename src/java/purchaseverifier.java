@@ -0,0 +1,324 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import android.util.Base64;
+import android.util.Log;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Checks Play purchase signatures (SHA1withRSA over the purchase
+// JSON) against the app's Base64 public key from the Play Console.
+// The key is parsed once, and each thread keeps its own initialized
+// Signature.  Large lists are verified on several threads.
+public class purchaseverifier
+{
+    static private void _error(String msg)
+    {
+        if (payment.logging(payment.LOG_ERROR)) {
+            Log.e("tzbilling(verify)", msg);
+        }
+    }
+
+    static final String KEY_ALGORITHM = "RSA";
+    static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+
+    // Lists shorter than this are verified on the calling thread.
+    // Work is handed out in chunks of this size.
+    static final int PARALLEL_CHUNK = 16;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int sThreads =
+        Math.max(0, Runtime.getRuntime().availableProcessors() - 1);
+    private static ExecutorService sPool = null;
+
+    // Runs validIndicesAsync batches, one at a time.  Not a sPool
+    // thread: verifyAll waits for sPool helpers, which would deadlock
+    // if every sPool thread were itself waiting in verifyAll.
+    private static ExecutorService sBatchWorker = null;
+
+    private static synchronized ExecutorService getPool()
+    {
+        if (null == sPool) {
+            sPool = Executors.newFixedThreadPool(sThreads, new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+                    @Override public Thread newThread(Runnable r) {
+                        Thread t = new Thread
+                            (r, "tzbilling-verify-" + mCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+        return sPool;
+    }
+
+    private static synchronized ExecutorService getBatchWorker()
+    {
+        if (null == sBatchWorker) {
+            sBatchWorker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "tzbilling-verify");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+        return sBatchWorker;
+    }
+
+    private final PublicKey mKey;
+    private final ThreadLocal<Signature> mSignature;
+
+    private final AtomicLong mVerified = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+
+    /// Returns null (and logs) if the key cannot be parsed.
+    public static purchaseverifier fromBase64(String base64PublicKey)
+    {
+        try {
+            byte[] encoded = Base64.decode(base64PublicKey, Base64.DEFAULT);
+            PublicKey key = KeyFactory.getInstance(KEY_ALGORITHM)
+                .generatePublic(new X509EncodedKeySpec(encoded));
+            return new purchaseverifier(key);
+        } catch (IllegalArgumentException e) {
+            _error("fromBase64: bad Base64 in key: " + e);
+        } catch (GeneralSecurityException e) {
+            _error("fromBase64: invalid key: " + e);
+        }
+        return null;
+    }
+
+    purchaseverifier(final PublicKey key)
+    {
+        mKey = key;
+        mSignature = new ThreadLocal<Signature>() {
+                @Override protected Signature initialValue() {
+                    try {
+                        Signature sig = Signature.getInstance(SIGNATURE_ALGORITHM);
+                        sig.initVerify(key);
+                        return sig;
+                    } catch (GeneralSecurityException e) {
+                        _error("cannot create " + SIGNATURE_ALGORITHM + ": " + e);
+                        return null;
+                    }
+                }
+            };
+    }
+
+    public PublicKey getPublicKey()
+    {
+        return mKey;
+    }
+
+    public long getVerifiedCount()
+    {
+        return mVerified.get();
+    }
+
+    public long getRejectedCount()
+    {
+        return mRejected.get();
+    }
+
+    /// True if 'signature' (Base64) is a valid signature of 'data'.
+    public boolean verify(String data, String signature)
+    {
+        final boolean ok = check(data, signature);
+        if (ok) {
+            mVerified.incrementAndGet();
+        } else {
+            mRejected.incrementAndGet();
+        }
+        return ok;
+    }
+
+    private boolean check(String data, String signature)
+    {
+        if (null == data || null == signature || 0 == signature.length()) {
+            return false;
+        }
+
+        final Signature sig = mSignature.get();
+        if (null == sig) {
+            return false;
+        }
+
+        try {
+            final byte[] decoded = Base64.decode(signature, Base64.DEFAULT);
+            sig.update(data.getBytes(UTF8));
+            // verify() leaves sig ready for the next use, with the
+            // same key
+            return sig.verify(decoded);
+        } catch (IllegalArgumentException e) {
+            _error("verify: bad Base64 in signature");
+        } catch (GeneralSecurityException e) {
+            _error("verify: " + e);
+        }
+
+        // Throwing may leave sig part way through an update
+        mSignature.remove();
+        return false;
+    }
+
+    /// Verify parallel arrays of data and signatures.  The calling
+    /// thread takes part, and returns when all are done.
+    public boolean[] verifyAll(final String[] data, final String[] signatures)
+    {
+        final int count = data.length;
+        final boolean[] out = new boolean[count];
+
+        final int chunks = (count + PARALLEL_CHUNK - 1) / PARALLEL_CHUNK;
+        final int helpers = Math.min(sThreads, chunks - 1);
+        if (helpers <= 0) {
+            for (int i = 0 ; i < count ; ++i) {
+                out[i] = verify(data[i], signatures[i]);
+            }
+            return out;
+        }
+
+        final AtomicInteger nextChunk = new AtomicInteger(0);
+        final Runnable work = new Runnable() {
+                @Override public void run() {
+                    int chunk;
+                    while ((chunk = nextChunk.getAndIncrement()) < chunks) {
+                        final int end = Math.min(count, (chunk + 1) * PARALLEL_CHUNK);
+                        for (int i = chunk * PARALLEL_CHUNK ; i < end ; ++i) {
+                            out[i] = verify(data[i], signatures[i]);
+                        }
+                    }
+                }
+            };
+
+        final CountDownLatch done = new CountDownLatch(helpers);
+        final ExecutorService pool = getPool();
+        for (int h = 0 ; h < helpers ; ++h) {
+            try {
+                pool.execute(new Runnable() {
+                        @Override public void run() {
+                            try {
+                                work.run();
+                            } finally {
+                                done.countDown();
+                            }
+                        }
+                    });
+            } catch (RejectedExecutionException e) {
+                done.countDown();
+            }
+        }
+
+        work.run();
+
+        boolean interrupted = false;
+        for (;;) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return out;
+    }
+
+    /// Verify a query result (parallel arrays) with the configured
+    /// key, and return the indices of the purchases to keep, or null
+    /// to keep them all.
+    static int[] validIndices(String[] data, String[] sigs)
+    {
+        final purchaseverifier verifier = payment.getVerifier();
+        if (null == verifier || 0 == data.length) {
+            return null;
+        }
+
+        final boolean[] valid = verifier.verifyAll(data, sigs);
+        int count = 0;
+        for (boolean v : valid) {
+            if (v) {
+                ++count;
+            }
+        }
+        if (count == valid.length) {
+            return null;
+        }
+
+        if (payment.logging(payment.LOG_ERROR)) {
+            _error("validIndices: dropping " + (valid.length - count) +
+                   " purchases with invalid signatures");
+        }
+        final int[] keep = new int[count];
+        int n = 0;
+        for (int i = 0 ; i < valid.length ; ++i) {
+            if (valid[i]) {
+                keep[n++] = i;
+            }
+        }
+        return keep;
+    }
+
+    interface Verified
+    {
+        /// 'keep' as returned by validIndices.
+        void onVerified(int[] keep);
+    }
+
+    /// As validIndices, but the batch is verified on a worker thread,
+    /// which then calls 'callback'.  Use this on the main thread.  If
+    /// there is nothing to verify, the callback is called
+    /// immediately.
+    static void validIndicesAsync(final String[] data, final String[] sigs,
+                                  final Verified callback)
+    {
+        if (null == payment.getVerifier() || 0 == data.length) {
+            callback.onVerified(null);
+            return;
+        }
+
+        final Runnable work = new Runnable() {
+                @Override public void run() {
+                    callback.onVerified(validIndices(data, sigs));
+                }
+            };
+        try {
+            getBatchWorker().execute(work);
+        } catch (RejectedExecutionException e) {
+            work.run();
+        }
+    }
+
+    static String[] select(String[] values, int[] keep)
+    {
+        final String[] out = new String[keep.length];
+        for (int i = 0 ; i < keep.length ; ++i) {
+            out[i] = values[keep[i]];
+        }
+        return out;
+    }
+
+    static int[] select(int[] values, int[] keep)
+    {
+        final int[] out = new int[keep.length];
+        for (int i = 0 ; i < keep.length ; ++i) {
+            out[i] = values[keep[i]];
+        }
+        return out;
+    }
+}
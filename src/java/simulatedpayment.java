@@ -0,0 +1,618 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import android.content.Intent;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A BillingAgent that simulates the store entirely in-process, for
+// load testing the payment -> native callback path without Play
+// services.  Install it with:
+//
+//   payment.initialize(activity, code, handler, new simulatedpayment());
+//
+// Catalog, latency, error / cancel / pending rates and disconnects
+// are all configurable, and can be changed while running.
+public class simulatedpayment extends payment.BillingAgent
+{
+    static private void _log(String msg)
+    {
+        if (payment.logging(payment.LOG_VERBOSE)) {
+            Log.i("tzbilling(sim)", msg);
+        }
+    }
+
+    //
+    // Latency
+    //
+
+    /// Returns the delay, in microseconds, of the next simulated
+    /// store operation.
+    public interface LatencyModel
+    {
+        long nextDelayMicros(Random random);
+    }
+
+    public static LatencyModel fixedLatency(final long micros)
+    {
+        return new LatencyModel() {
+            @Override public long nextDelayMicros(Random random) {
+                return micros;
+            }
+        };
+    }
+
+    public static LatencyModel uniformLatency(final long minMicros,
+                                              final long maxMicros)
+    {
+        return new LatencyModel() {
+            @Override public long nextDelayMicros(Random random) {
+                return minMicros +
+                    (long )(random.nextDouble() * (maxMicros - minMicros));
+            }
+        };
+    }
+
+    /// minMicros plus an exponentially distributed tail with the
+    /// given mean, which gives the long tail typical of IPC.
+    public static LatencyModel exponentialLatency(final long minMicros,
+                                                  final long meanMicros)
+    {
+        return new LatencyModel() {
+            @Override public long nextDelayMicros(Random random) {
+                return minMicros +
+                    (long )(-Math.log(1.0 - random.nextDouble()) * meanMicros);
+            }
+        };
+    }
+
+    //
+    // Catalog
+    //
+
+    public static final class Product
+    {
+        final String title;
+        final String description;
+        final String price;
+        final String currency;
+
+        public Product(String title, String description, String price,
+                       String currency)
+        {
+            this.title = title;
+            this.description = description;
+            this.price = price;
+            this.currency = currency;
+        }
+    }
+
+    private static final class OwnedPurchase
+    {
+        final String sku;
+        final String data;
+        final String token;
+        final String devPayload;
+
+        OwnedPurchase(String sku, String data, String token,
+                      String devPayload)
+        {
+            this.sku = sku;
+            this.data = data;
+            this.token = token;
+            this.devPayload = devPayload;
+        }
+    }
+
+    // A purchase that has been accepted and not yet answered.  The
+    // simulated store and shutdown() race to claim it, so exactly one
+    // of them sends its result.
+    private final class InFlightPurchase extends AtomicBoolean
+    {
+        final long context;
+
+        InFlightPurchase(long context)
+        {
+            this.context = context;
+        }
+
+        boolean claim()
+        {
+            if (!compareAndSet(false, true)) {
+                return false;
+            }
+            mInFlight.remove(this);
+            return true;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Product> mCatalog =
+        new ConcurrentHashMap<String, Product>();
+    private final ConcurrentHashMap<String, OwnedPurchase> mOwned =
+        new ConcurrentHashMap<String, OwnedPurchase>();
+
+    private final Set<InFlightPurchase> mInFlight =
+        ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService mExecutor;
+    private final Random                   mRandom = new Random();
+    private final AtomicLong               mNextToken = new AtomicLong(1);
+
+    private volatile LatencyModel mLatency = fixedLatency(0);
+    private volatile double       mErrorRate = 0.0;
+    private volatile double       mCancelRate = 0.0;
+    private volatile double       mPendingRate = 0.0;
+    private volatile long         mPendingDelayMicros = 1000 * 1000;
+    private volatile boolean      mShutdown = false;
+
+    private final AtomicLong mPurchaseCount = new AtomicLong();
+    private final AtomicLong mQueryCount = new AtomicLong();
+
+    public simulatedpayment()
+    {
+        this(1);
+    }
+
+    /// 'threads' is the number of threads used to deliver simulated
+    /// store responses.
+    public simulatedpayment(int threads)
+    {
+        mExecutor = Executors.newScheduledThreadPool
+            (Math.max(1, threads), new ThreadFactory() {
+                    @Override public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "tzbilling-sim");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+        schedule(new Runnable() {
+                @Override public void run() {
+                    reportReady(true);
+                }
+            });
+    }
+
+    // ------------------------------------------------------------------
+    // Configuration
+    // ------------------------------------------------------------------
+
+    public simulatedpayment addProduct(String sku, String title,
+                                       String description, String price,
+                                       String currency)
+    {
+        mCatalog.put(sku, new Product(title, description, price, currency));
+        return this;
+    }
+
+    public simulatedpayment removeProduct(String sku)
+    {
+        mCatalog.remove(sku);
+        return this;
+    }
+
+    public simulatedpayment setLatency(LatencyModel latency)
+    {
+        mLatency = latency;
+        return this;
+    }
+
+    /// Fraction of operations that fail with a store error.
+    public simulatedpayment setErrorRate(double rate)
+    {
+        mErrorRate = rate;
+        return this;
+    }
+
+    /// Fraction of purchases that the simulated user cancels.
+    public simulatedpayment setCancelRate(double rate)
+    {
+        mCancelRate = rate;
+        return this;
+    }
+
+    /// Fraction of purchases that go through a pending state, which
+    /// completes after 'delayMicros'.
+    public simulatedpayment setPendingRate(double rate, long delayMicros)
+    {
+        mPendingRate = rate;
+        mPendingDelayMicros = delayMicros;
+        return this;
+    }
+
+    /// Drop the connection now and restore it after 'downMicros'.
+    /// Operations fail while disconnected.
+    public void injectDisconnect(long downMicros)
+    {
+        if (payment.logging(payment.LOG_VERBOSE)) {
+            _log("injectDisconnect: down for " + downMicros + "us");
+        }
+        reportReady(false);
+        scheduleAfter(new Runnable() {
+                @Override public void run() {
+                    reportReady(true);
+                }
+            }, downMicros);
+    }
+
+    public long getPurchaseCount()
+    {
+        return mPurchaseCount.get();
+    }
+
+    public long getQueryCount()
+    {
+        return mQueryCount.get();
+    }
+
+    public int getOwnedCount()
+    {
+        return mOwned.size();
+    }
+
+    // ------------------------------------------------------------------
+    // BillingAgent
+    // ------------------------------------------------------------------
+
+    /// Purchases that are still in flight fail, as they would when a
+    /// real store connection ends.
+    @Override
+    public void shutdown()
+    {
+        mShutdown = true;
+        markShutdown();
+        mExecutor.shutdownNow();
+        for (InFlightPurchase p : mInFlight) {
+            failShutdown(p);
+        }
+    }
+
+    private void failShutdown(InFlightPurchase p)
+    {
+        if (p.claim()) {
+            sendPurchaseFailure(p.context, "Billing service shut down");
+        }
+    }
+
+    @Override
+    public boolean handleActivityResult(int requestCode, int resultCode,
+                                        Intent data)
+    {
+        return false;
+    }
+
+    @Override
+    public boolean doPurchase(final String sku, final String devPayload,
+                              final boolean isConsumable, final long context)
+    {
+        if (!isReady()) {
+            return false;
+        }
+
+        mPurchaseCount.incrementAndGet();
+        final InFlightPurchase purchase = new InFlightPurchase(context);
+        mInFlight.add(purchase);
+        schedule(new Runnable() {
+                @Override public void run() {
+                    if (null == mCatalog.get(sku) || roll(mErrorRate)) {
+                        if (purchase.claim()) {
+                            sendPurchaseFailure(context, "Purchase did not complete");
+                        }
+                        return;
+                    }
+                    if (roll(mCancelRate)) {
+                        if (purchase.claim()) {
+                            sendPurchaseFailure(context, null);
+                        }
+                        return;
+                    }
+
+                    final Runnable complete = new Runnable() {
+                            @Override public void run() {
+                                if (purchase.claim()) {
+                                    completePurchase(sku, devPayload,
+                                                     isConsumable, context);
+                                }
+                            }
+                        };
+                    if (roll(mPendingRate)) {
+                        scheduleAfter(complete, mPendingDelayMicros);
+                    } else {
+                        complete.run();
+                    }
+                }
+            });
+
+        // shutdown() may have run since isReady(), without seeing
+        // this purchase
+        if (mShutdown) {
+            failShutdown(purchase);
+        }
+        return true;
+    }
+
+    private void completePurchase(String sku, String devPayload,
+                                  boolean isConsumable, long context)
+    {
+        final String token = "sim." + mNextToken.getAndIncrement();
+        final String data = "{\"productId\":\"" + sku +
+            "\",\"purchaseToken\":\"" + token +
+            "\",\"purchaseTime\":" + System.currentTimeMillis() +
+            ",\"purchaseState\":0}";
+
+        // Consumables stay owned until doConsume, as with Play
+        mOwned.put(token, new OwnedPurchase(sku, data, token, devPayload));
+        sendPurchaseResult(context, sku, data, token, devPayload, "");
+    }
+
+    @Override
+    public boolean doQueryPurchases(final long context)
+    {
+        if (!isReady()) {
+            return false;
+        }
+
+        mQueryCount.incrementAndGet();
+        schedule(new Runnable() {
+                @Override public void run() {
+                    if (roll(mErrorRate)) {
+                        sendPurchaseInfoError(context, "error getting purchase data");
+                        return;
+                    }
+
+                    ArrayList<OwnedPurchase> owned =
+                        new ArrayList<OwnedPurchase>(mOwned.values());
+                    final int count = owned.size();
+                    final String[] skus = new String[count];
+                    final String[] data = new String[count];
+                    final String[] tokens = new String[count];
+                    final String[] devPayloads = new String[count];
+                    final String[] sigs = new String[count];
+                    for (int i = 0 ; i < count ; ++i) {
+                        OwnedPurchase p = owned.get(i);
+                        skus[i] = p.sku;
+                        data[i] = p.data;
+                        tokens[i] = p.token;
+                        devPayloads[i] = p.devPayload;
+                        sigs[i] = "";
+                    }
+                    sendPurchaseInfoList(context, skus, data, tokens,
+                                         devPayloads, sigs, true);
+                }
+            });
+        return true;
+    }
+
+    @Override
+    public boolean doQueryPurchaseChanges(final long context)
+    {
+        if (!isReady()) {
+            return false;
+        }
+
+        mQueryCount.incrementAndGet();
+        schedule(new Runnable() {
+                @Override public void run() {
+                    if (roll(mErrorRate)) {
+                        sendPurchaseChangesError(context);
+                        return;
+                    }
+
+                    ArrayList<OwnedPurchase> owned =
+                        new ArrayList<OwnedPurchase>(mOwned.values());
+                    final int count = owned.size();
+                    final String[] skus = new String[count];
+                    final String[] data = new String[count];
+                    final String[] tokens = new String[count];
+                    final String[] sigs = new String[count];
+                    for (int i = 0 ; i < count ; ++i) {
+                        OwnedPurchase p = owned.get(i);
+                        skus[i] = p.sku;
+                        data[i] = p.data;
+                        tokens[i] = p.token;
+                        sigs[i] = "";
+                    }
+                    // Owned purchases here never change state
+                    sendPurchaseChanges(context, skus, data, tokens, sigs,
+                                        new int[count]);
+                }
+            });
+        return true;
+    }
+
+    @Override
+    public boolean doQueryProduct(final String sku, final long context)
+    {
+        if (!isReady()) {
+            return false;
+        }
+
+        mQueryCount.incrementAndGet();
+        schedule(new Runnable() {
+                @Override public void run() {
+                    Product p = mCatalog.get(sku);
+                    if (null == p || roll(mErrorRate)) {
+                        sendProductInfoError(context, sku);
+                        return;
+                    }
+                    sendProductInfo(context, sku, p.title, p.description,
+                                    p.price);
+                }
+            });
+        return true;
+    }
+
+    @Override
+    public boolean doQueryProducts(final String[] skus, final long context)
+    {
+        if (!isReady()) {
+            return false;
+        }
+
+        mQueryCount.incrementAndGet();
+        schedule(new Runnable() {
+                @Override public void run() {
+                    final int count = skus.length;
+                    final String[] titles = new String[count];
+                    final String[] descriptions = new String[count];
+                    final String[] prices = new String[count];
+                    if (!roll(mErrorRate)) {
+                        for (int i = 0 ; i < count ; ++i) {
+                            Product p = mCatalog.get(skus[i]);
+                            if (null != p) {
+                                titles[i] = p.title;
+                                descriptions[i] = p.description;
+                                prices[i] = p.price;
+                            }
+                        }
+                    }
+                    sendProductInfoList(context, skus, titles, descriptions,
+                                        prices);
+                }
+            });
+        return true;
+    }
+
+    @Override
+    protected boolean refreshCatalog(final String[] skus, final long context)
+    {
+        schedule(new Runnable() {
+                @Override public void run() {
+                    if (roll(mErrorRate)) {
+                        onCatalogRefreshFailed(context);
+                        return;
+                    }
+
+                    final int count = skus.length;
+                    final String[] titles = new String[count];
+                    final String[] descriptions = new String[count];
+                    final String[] prices = new String[count];
+                    final String[] currencies = new String[count];
+                    for (int i = 0 ; i < count ; ++i) {
+                        Product p = mCatalog.get(skus[i]);
+                        if (null != p) {
+                            titles[i] = p.title;
+                            descriptions[i] = p.description;
+                            prices[i] = p.price;
+                            currencies[i] = p.currency;
+                        }
+                    }
+                    onCatalogRefreshed(context, skus, titles, descriptions,
+                                       prices, currencies);
+                }
+            });
+        return true;
+    }
+
+    @Override
+    public boolean doConsume(final String token)
+    {
+        if (!isReady() || null == token) {
+            return false;
+        }
+
+        schedule(new Runnable() {
+                @Override public void run() {
+                    if (!roll(mErrorRate)) {
+                        mOwned.remove(token);
+                    }
+                }
+            });
+        return true;
+    }
+
+    @Override
+    public boolean doConsumePurchases(final String[] tokens, final long context)
+    {
+        return completeTokens(consumepipeline.OP_CONSUME, tokens, context);
+    }
+
+    @Override
+    public boolean doAcknowledgePurchases(final String[] tokens,
+                                          final long context)
+    {
+        return completeTokens(consumepipeline.OP_ACKNOWLEDGE, tokens, context);
+    }
+
+    // Each token completes independently, as with a pipelined store.
+    // Response codes: 0 OK, 6 ERROR, 8 ITEM_NOT_OWNED.
+    private boolean completeTokens(final int op, final String[] tokens,
+                                   final long context)
+    {
+        if (!isReady()) {
+            return false;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(tokens.length);
+        for (final String token : tokens) {
+            schedule(new Runnable() {
+                    @Override public void run() {
+                        int code = 0;
+                        if (roll(mErrorRate)) {
+                            code = 6;
+                        } else if (consumepipeline.OP_CONSUME == op) {
+                            code = (null == mOwned.remove(token))?(8):(0);
+                        } else {
+                            code = mOwned.containsKey(token)?(0):(8);
+                        }
+                        sendTokenResult(context, op, token, code,
+                                        remaining.decrementAndGet());
+                    }
+                });
+        }
+        return true;
+    }
+
+    // ------------------------------------------------------------------
+
+    private boolean roll(double rate)
+    {
+        if (rate <= 0.0) {
+            return false;
+        }
+        synchronized (mRandom) {
+            return mRandom.nextDouble() < rate;
+        }
+    }
+
+    private void schedule(Runnable r)
+    {
+        long delay;
+        synchronized (mRandom) {
+            delay = mLatency.nextDelayMicros(mRandom);
+        }
+        scheduleAfter(r, delay);
+    }
+
+    // Work scheduled after (or racing with) shutdown is dropped.
+    private void scheduleAfter(Runnable r, long delayMicros)
+    {
+        if (mShutdown) {
+            return;
+        }
+
+        try {
+            if (delayMicros <= 0) {
+                mExecutor.execute(r);
+            } else {
+                mExecutor.schedule(r, delayMicros, TimeUnit.MICROSECONDS);
+            }
+        } catch (RejectedExecutionException e) {
+            // shut down
+        }
+    }
+}